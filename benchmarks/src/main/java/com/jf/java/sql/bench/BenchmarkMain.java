@@ -0,0 +1,41 @@
+package com.jf.java.sql.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached so allocation rates are
+ * reported next to throughput and average time.  Accepts the usual JMH 
+ * command line options, such as a benchmark name filter.
+ * 
+ * @author james
+ *
+ */
+public final class BenchmarkMain
+{
+	/**
+	 * Not instantiable
+	 */
+	private BenchmarkMain()
+	{
+	}
+	
+	/**
+	 * @param args JMH command line options
+	 * @throws RunnerException 
+	 * @throws CommandLineOptionException 
+	 */
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException
+	{
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
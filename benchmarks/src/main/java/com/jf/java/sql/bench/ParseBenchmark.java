@@ -0,0 +1,65 @@
+package com.jf.java.sql.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.sf.jsqlparser.JSQLParserException;
+import net.sf.jsqlparser.parser.CCJSqlParserUtil;
+import net.sf.jsqlparser.statement.Statement;
+
+/**
+ * Cost of the raw JSqlParser parse, the baseline every other stage adds to
+ * 
+ * @author james
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark
+{
+	/** Name of the corpus query */
+	@Param({
+		QueryCorpus.SIMPLE, 
+		QueryCorpus.JOINS, 
+		QueryCorpus.DEEP, 
+		QueryCorpus.PREDICATES_1K, 
+		QueryCorpus.PREDICATES_5K})
+	public String query;
+	
+	/** Query text */
+	private String sql;
+	
+	/**
+	 * Resolves the query text
+	 */
+	@Setup
+	public void setup()
+	{
+		sql = QueryCorpus.query(query);
+	}
+	
+	/**
+	 * @return the parsed statement
+	 * @throws JSQLParserException 
+	 */
+	@Benchmark
+	public Statement parse() throws JSQLParserException
+	{
+		return CCJSqlParserUtil.parse(sql);
+	}
+}
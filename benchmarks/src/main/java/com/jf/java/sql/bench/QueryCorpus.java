@@ -0,0 +1,108 @@
+package com.jf.java.sql.bench;
+
+import java.util.Arrays;
+
+import com.jf.java.sql.QueryConstraints;
+
+/**
+ * Queries the benchmarks run against, from one-liners to deep nested joins
+ * and generated queries with thousands of predicates.  All of them are 
+ * accepted by {@link #constraints()}.
+ * 
+ * @author james
+ *
+ */
+public final class QueryCorpus
+{
+	/** A single table select */
+	public static final String SIMPLE = "simple";
+	/** Several joins with casts and sums */
+	public static final String JOINS = "joins";
+	/** Nested sub-selects and joins */
+	public static final String DEEP = "deep";
+	/** Generated WHERE with a thousand predicates */
+	public static final String PREDICATES_1K = "predicates-1k";
+	/** Generated WHERE with five thousand predicates */
+	public static final String PREDICATES_5K = "predicates-5k";
+	
+	/**
+	 * Not instantiable
+	 */
+	private QueryCorpus()
+	{
+	}
+	
+	/**
+	 * @param name name of the query
+	 * @return the query text
+	 */
+	public static String query(String name)
+	{
+		switch (name)
+		{
+			case SIMPLE:
+				return "select * from transaction";
+			case JOINS:
+				return "select p.composite, sum(cast(l.line_params->>'quantity' as numeric)) as qty, t.details->>'ship' as ship\n" + 
+						"from transaction_line l\n" + 
+						"join product p on p.composite = l.product\n" + 
+						"join transaction t on l.transaction = t.urid and t.closed is not null and t.type = 'e8033084-b14c-4ecf-aa9d-d838e0516414' and t.void is null\n" + 
+						"where p.category = '1bfbcca7-6fa7-4026-9926-93e1443c2b83'\n" + 
+						"group by p.composite,ship ";
+			case DEEP:
+				return "select DISTINCT g.y, fp.name, l.id + 5, l.urid, fp.details->>'qty' from operations.business_transaction t " + 
+						"join operations.business_transaction_line l on t.id = l.transaction " + 
+						"join ("
+						+ "select * from frontoffice.product dfp "
+						+ "join operations.business_transaction_line fpl on dfp.id = fpl.y "
+						+ "join ("
+						+ "select now(), 1 from operations.business_transaction_line"
+						+ ") xx on xx.id = dfp.id) g " + 
+						"join frontoffice.product fp on fp.composite = g.urid " + 
+						"join (select now()) " + 
+						"where fp.category ='t1' and operations.business_transaction.urid = 'xtz' and fp.id < 8.8 ";
+			case PREDICATES_1K:
+				return predicates(1000);
+			case PREDICATES_5K:
+				return predicates(5000);
+			default:
+				throw new IllegalArgumentException("Unknown query " + name);
+		}
+	}
+	
+	/**
+	 * Generates a select with the passed number of chained predicates
+	 * @param count
+	 * @return the query text
+	 */
+	public static String predicates(int count)
+	{
+		StringBuilder sb = new StringBuilder("select t.id, sum(l.amount) from transaction t ")
+				.append("join transaction_line l on l.transaction = t.id where ");
+		for (int i = 0; i < count; i++)
+		{
+			if (i > 0)
+				sb.append(i % 3 == 0 ? " or " : " and ");
+			sb.append("(t.c").append(i % 17).append(" = ").append(i)
+				.append(" or l.d").append(i % 11).append(" is null)");
+		}
+		return sb.append(" group by t.id").toString();
+	}
+	
+	/**
+	 * @return constraints accepting every query in the corpus
+	 */
+	public static QueryConstraints constraints()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList(
+				"transaction", 
+				"transaction_line",
+				"product",
+				"operations.business_transaction", 
+				"operations.business_transaction_line",
+				"frontoffice.product"));
+		constraints.setFunctionWhitelist(Arrays.asList("now", "sum"));
+		return constraints;
+	}
+}
@@ -0,0 +1,73 @@
+package com.jf.java.sql.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jf.java.sql.QueryConstraints;
+import com.jf.java.sql.QuerySanitiser;
+import com.jf.java.sql.SanitiseResult;
+
+/**
+ * End to end cost of {@link QuerySanitiser#doSanitise(String, QueryConstraints)}
+ * with no verdict cache
+ * 
+ * @author james
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SanitiseBenchmark
+{
+	/** Name of the corpus query */
+	@Param({
+		QueryCorpus.SIMPLE, 
+		QueryCorpus.JOINS, 
+		QueryCorpus.DEEP, 
+		QueryCorpus.PREDICATES_1K, 
+		QueryCorpus.PREDICATES_5K})
+	public String query;
+	
+	/** CUT */
+	private QuerySanitiser sanitiser;
+	/** Constraints accepting the corpus */
+	private QueryConstraints constraints;
+	/** Query text */
+	private String sql;
+	
+	/**
+	 * Creates the sanitiser with per-query logging off
+	 */
+	@Setup
+	public void setup()
+	{
+		sanitiser = new QuerySanitiser();
+		sanitiser.setLogQueries(false);
+		constraints = QueryCorpus.constraints();
+		sql = QueryCorpus.query(query);
+	}
+	
+	/**
+	 * Parses and checks the query
+	 * @return the result, consumed by JMH
+	 */
+	@Benchmark
+	public SanitiseResult sanitise()
+	{
+		return sanitiser.doSanitise(sql, constraints);
+	}
+}
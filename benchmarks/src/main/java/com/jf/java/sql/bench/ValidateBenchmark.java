@@ -0,0 +1,79 @@
+package com.jf.java.sql.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jf.java.sql.QueryConstraints;
+import com.jf.java.sql.QuerySanitiser;
+import com.jf.java.sql.SanitiseResult;
+
+import net.sf.jsqlparser.JSQLParserException;
+import net.sf.jsqlparser.parser.CCJSqlParserUtil;
+import net.sf.jsqlparser.statement.Statement;
+
+/**
+ * Cost of walking a pre-parsed statement, without the parse
+ * 
+ * @author james
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidateBenchmark
+{
+	/** Name of the corpus query */
+	@Param({
+		QueryCorpus.SIMPLE, 
+		QueryCorpus.JOINS, 
+		QueryCorpus.DEEP, 
+		QueryCorpus.PREDICATES_1K, 
+		QueryCorpus.PREDICATES_5K})
+	public String query;
+	
+	/** CUT */
+	private QuerySanitiser sanitiser;
+	/** Constraints accepting the corpus */
+	private QueryConstraints constraints;
+	/** Pre-parsed query */
+	private Statement statement;
+	
+	/**
+	 * Parses the query once
+	 * @throws JSQLParserException 
+	 */
+	@Setup
+	public void setup() throws JSQLParserException
+	{
+		sanitiser = new QuerySanitiser();
+		sanitiser.setLogQueries(false);
+		constraints = QueryCorpus.constraints();
+		statement = CCJSqlParserUtil.parse(QueryCorpus.query(query));
+		
+		if (!sanitiser.check(statement, constraints).isAccepted())
+			throw new IllegalStateException("Corpus query rejected: " + query);
+	}
+	
+	/**
+	 * @return the result of the walk
+	 */
+	@Benchmark
+	public SanitiseResult validate()
+	{
+		return sanitiser.check(statement, constraints);
+	}
+}
@@ -0,0 +1,78 @@
+package com.jf.java.sql;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Shared executors for asynchronous sanitisation.  The project targets Java 8,
+ * so virtual threads are looked up reflectively and only used when the running
+ * JDK provides them.
+ * 
+ * @author james
+ *
+ */
+final class AsyncSupport
+{
+	/** Default executor, virtual threads if available */
+	private static final Executor DEFAULT_EXECUTOR = createDefaultExecutor();
+	/** Single daemon thread enforcing deadlines */
+	private static final ScheduledThreadPoolExecutor DEADLINES = createDeadlines();
+	
+	/**
+	 * Not instantiable
+	 */
+	private AsyncSupport()
+	{
+	}
+	
+	/**
+	 * @return an executor starting a virtual thread per task on JDKs which 
+	 * support them, otherwise the common fork-join pool
+	 */
+	static Executor defaultExecutor()
+	{
+		return DEFAULT_EXECUTOR;
+	}
+	
+	/**
+	 * @return the scheduler used to enforce deadlines
+	 */
+	static ScheduledThreadPoolExecutor deadlines()
+	{
+		return DEADLINES;
+	}
+	
+	/**
+	 * @return the virtual thread per task executor or the common pool
+	 */
+	private static Executor createDefaultExecutor()
+	{
+		try
+		{
+			Method factory = java.util.concurrent.Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		}
+		catch (ReflectiveOperationException | RuntimeException e)
+		{
+			return ForkJoinPool.commonPool();
+		}
+	}
+	
+	/**
+	 * @return a scheduler with a single daemon thread
+	 */
+	private static ScheduledThreadPoolExecutor createDeadlines()
+	{
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "query-sanitiser-deadlines");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+}
@@ -0,0 +1,66 @@
+package com.jf.java.sql;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * A validated query with its values, ready to be run as a prepared
+ * statement.  Created by {@link QueryTemplate#bind(Object...)}.
+ *
+ * @author james
+ *
+ */
+public final class BoundQuery
+{
+	/** Query with JDBC placeholders */
+	private final String query;
+	/** Values of the placeholders in order */
+	private final List<Object> parameters;
+
+	/**
+	 * Creates a new bound query
+	 * @param query
+	 * @param parameters
+	 */
+	BoundQuery(String query, List<Object> parameters)
+	{
+		this.query = query;
+		this.parameters = parameters;
+	}
+
+	/**
+	 * @return the query with JDBC placeholders
+	 */
+	public String getQuery()
+	{
+		return query;
+	}
+
+	/**
+	 * @return the values of the placeholders in order, which cannot be
+	 * changed
+	 */
+	public List<Object> getParameters()
+	{
+		return parameters;
+	}
+
+	/**
+	 * Sets the values on a statement prepared from {@link #getQuery()}
+	 *
+	 * @param stmt
+	 * @throws SQLException if a value cannot be set
+	 */
+	public void setParameters(PreparedStatement stmt) throws SQLException
+	{
+		for (int i = 0; i < parameters.size(); i++)
+			stmt.setObject(i + 1, parameters.get(i));
+	}
+
+	@Override
+	public String toString()
+	{
+		return query + " " + parameters;
+	}
+}
@@ -0,0 +1,356 @@
+package com.jf.java.sql;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.jsqlparser.schema.Database;
+import net.sf.jsqlparser.schema.Table;
+
+/**
+ * A frozen copy of {@link QueryConstraints}, created through
+ * {@link QueryConstraints#compile()}.  The whitelists cannot be changed, so a
+ * single instance can be shared by any number of threads and its fingerprint
+ * is computed once.
+ *
+ * The complexity limits, row cap and cost limit are copied as they are, while
+ * column whitelists and row counts are folded like the table names they
+ * belong to.
+ *
+ * Tables are indexed by schema and name so that table references are resolved
+ * without building their fully qualified name.  Matching can optionally
+ * ignore case.
+ *
+ * @author james
+ *
+ */
+public final class CompiledQueryConstraints extends QueryConstraints
+{
+	/** Schema key of tables whitelisted without a schema */
+	private static final String NO_SCHEMA = "";
+
+	/** Whitelisted tables, as written or lower cased */
+	private final Set<String> tables;
+	/** Whitelisted functions, as written or lower cased */
+	private final Set<String> functions;
+	/** Whitelisted columns by table, as written or lower cased */
+	private final Map<String, Set<String>> columns;
+	/** Estimated number of rows by table, as written or lower cased */
+	private final Map<String, Long> rows;
+	/** Whitelisted table names by schema */
+	private final Map<String, Set<String>> tablesBySchema;
+	/** Whether names are matched regardless of case */
+	private final boolean ignoreCase;
+	/** Precomputed fingerprint */
+	private final long fingerprint;
+
+	/**
+	 * Compiles the passed constraints
+	 * @param source constraints to copy
+	 * @param ignoreCase true to match names regardless of case
+	 */
+	CompiledQueryConstraints(QueryConstraints source, boolean ignoreCase)
+	{
+		this.ignoreCase = ignoreCase;
+		this.tables = fold(source.getTableWhitelist());
+		this.functions = fold(source.getFunctionWhitelist());
+		this.columns = fold(source.getColumnWhitelist());
+		this.rows = foldRows(source.getTableRows());
+		this.tablesBySchema = index(tables);
+		copyLimits(source);
+
+		long hash = Fingerprints.SEED;
+		hash = Fingerprints.mix(hash, fingerprint(tables));
+		hash = Fingerprints.mix(hash, fingerprint(functions));
+		hash = Fingerprints.mix(hash, fingerprint(columns));
+		hash = Fingerprints.mix(hash, fingerprintRows(rows));
+		if (ignoreCase)
+			hash = Fingerprints.mix(hash, 1L);
+		this.fingerprint = fingerprintLimits(hash);
+	}
+
+	/**
+	 * @return true if names are matched regardless of case
+	 */
+	public boolean isIgnoreCase()
+	{
+		return ignoreCase;
+	}
+
+	@Override
+	public Set<String> getTableWhitelist()
+	{
+		return tables;
+	}
+
+	@Override
+	public void setTableWhitelist(Set<String> tableWhitelist)
+	{
+		throw new UnsupportedOperationException("Compiled constraints are immutable");
+	}
+
+	@Override
+	public void setTableWhitelist(List<String> tableWhitelist)
+	{
+		throw new UnsupportedOperationException("Compiled constraints are immutable");
+	}
+
+	@Override
+	public Set<String> getFunctionWhitelist()
+	{
+		return functions;
+	}
+
+	@Override
+	public void setFunctionWhitelist(Set<String> functionWhitelist)
+	{
+		throw new UnsupportedOperationException("Compiled constraints are immutable");
+	}
+
+	@Override
+	public void setFunctionWhitelist(List<String> functionWhitelist)
+	{
+		throw new UnsupportedOperationException("Compiled constraints are immutable");
+	}
+
+	@Override
+	public Map<String, Set<String>> getColumnWhitelist()
+	{
+		return columns;
+	}
+
+	@Override
+	public void setColumnWhitelist(Map<String, Set<String>> columnWhitelist)
+	{
+		throw new UnsupportedOperationException("Compiled constraints are immutable");
+	}
+
+	@Override
+	public void setColumnWhitelist(String table, List<String> columnWhitelist)
+	{
+		throw new UnsupportedOperationException("Compiled constraints are immutable");
+	}
+
+	@Override
+	public Map<String, Long> getTableRows()
+	{
+		return rows;
+	}
+
+	@Override
+	public void setTableRows(Map<String, Long> tableRows)
+	{
+		throw new UnsupportedOperationException("Compiled constraints are immutable");
+	}
+
+	@Override
+	public void setMaxQueryLength(int maxQueryLength)
+	{
+		throw new UnsupportedOperationException("Compiled constraints are immutable");
+	}
+
+	@Override
+	public void setMaxDepth(int maxDepth)
+	{
+		throw new UnsupportedOperationException("Compiled constraints are immutable");
+	}
+
+	@Override
+	public void setMaxNodes(int maxNodes)
+	{
+		throw new UnsupportedOperationException("Compiled constraints are immutable");
+	}
+
+	@Override
+	public void setMaxJoins(int maxJoins)
+	{
+		throw new UnsupportedOperationException("Compiled constraints are immutable");
+	}
+
+	@Override
+	public void setMaxMillis(long maxMillis)
+	{
+		throw new UnsupportedOperationException("Compiled constraints are immutable");
+	}
+
+	@Override
+	public void setMaxRows(long maxRows)
+	{
+		throw new UnsupportedOperationException("Compiled constraints are immutable");
+	}
+
+	@Override
+	public void setMaxCost(long maxCost)
+	{
+		throw new UnsupportedOperationException("Compiled constraints are immutable");
+	}
+
+	@Override
+	public boolean isTableAllowed(String table)
+	{
+		return tables.contains(fold(table));
+	}
+
+	/**
+	 * Resolves the table through the schema index.  Only tables with a
+	 * database or quoted parts fall back to their fully qualified name.
+	 */
+	@Override
+	public boolean isTableAllowed(Table table)
+	{
+		String schema = table.getSchemaName();
+		String name = table.getName();
+		Database database = table.getDatabase();
+		if ((database != null && (database.getDatabaseName() != null || database.getServer() != null))
+				|| isQuoted(schema) || isQuoted(name))
+			return isTableAllowed(table.getFullyQualifiedName());
+
+		if (schema == null)
+			schema = NO_SCHEMA;
+
+		Set<String> names = tablesBySchema.get(fold(schema));
+		return names != null && names.contains(fold(name));
+	}
+
+	@Override
+	public boolean isFunctionAllowed(String function)
+	{
+		return functions.contains(fold(function));
+	}
+
+	@Override
+	public boolean isColumnAllowed(String table, String column)
+	{
+		Set<String> names = columns.get(fold(table));
+		return names == null || names.contains(fold(column));
+	}
+
+	@Override
+	public boolean hasColumnWhitelist(String table)
+	{
+		return columns.containsKey(fold(table));
+	}
+
+	@Override
+	public long getRowEstimate(String table)
+	{
+		Long estimate = rows.get(fold(table));
+		return estimate == null ? 0 : estimate;
+	}
+
+	@Override
+	boolean hasColumnWhitelists()
+	{
+		return !columns.isEmpty();
+	}
+
+	@Override
+	boolean hasRowEstimates()
+	{
+		return !rows.isEmpty();
+	}
+
+	@Override
+	public long fingerprint()
+	{
+		return fingerprint;
+	}
+
+	@Override
+	public CompiledQueryConstraints compile(boolean ignoreCase)
+	{
+		if (ignoreCase == this.ignoreCase)
+			return this;
+		return super.compile(ignoreCase);
+	}
+
+	/**
+	 * Applies the case matching rule to a name
+	 * @param name
+	 * @return the name as is, or lower cased when ignoring case
+	 */
+	private String fold(String name)
+	{
+		if (!ignoreCase || name == null)
+			return name;
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Copies and folds a set of names into an unmodifiable set
+	 * @param names
+	 * @return the folded names
+	 */
+	private Set<String> fold(Set<String> names)
+	{
+		Set<String> folded = new HashSet<>();
+		for (String name : names)
+			folded.add(fold(name));
+		return Collections.unmodifiableSet(folded);
+	}
+
+	/**
+	 * Copies and folds whitelists by name into an unmodifiable map
+	 * @param lists
+	 * @return the folded whitelists
+	 */
+	private Map<String, Set<String>> fold(Map<String, Set<String>> lists)
+	{
+		Map<String, Set<String>> folded = new HashMap<>();
+		for (Map.Entry<String, Set<String>> e : lists.entrySet())
+			folded.put(fold(e.getKey()), fold(e.getValue()));
+		return Collections.unmodifiableMap(folded);
+	}
+
+	/**
+	 * Copies and folds row counts by table into an unmodifiable map
+	 * @param rows
+	 * @return the folded row counts
+	 */
+	private Map<String, Long> foldRows(Map<String, Long> rows)
+	{
+		Map<String, Long> folded = new HashMap<>();
+		for (Map.Entry<String, Long> e : rows.entrySet())
+			folded.put(fold(e.getKey()), e.getValue());
+		return Collections.unmodifiableMap(folded);
+	}
+
+	/**
+	 * Indexes whitelisted tables by schema.  Names with a database part or
+	 * quotes are only matched by their fully qualified name.
+	 *
+	 * @param tables folded whitelist
+	 * @return table names by schema
+	 */
+	private static Map<String, Set<String>> index(Set<String> tables)
+	{
+		Map<String, Set<String>> index = new HashMap<>();
+		for (String table : tables)
+		{
+			if (table.indexOf('"') >= 0 || table.indexOf('`') >= 0)
+				continue;
+
+			int dot = table.indexOf('.');
+			if (dot < 0)
+				index.computeIfAbsent(NO_SCHEMA, k -> new HashSet<>()).add(table);
+			else if (table.indexOf('.', dot + 1) < 0)
+				index.computeIfAbsent(table.substring(0, dot), k -> new HashSet<>())
+					.add(table.substring(dot + 1));
+		}
+		return index;
+	}
+
+	/**
+	 * @param part
+	 * @return true if the name part is quoted
+	 */
+	private static boolean isQuoted(String part)
+	{
+		return part != null && !part.isEmpty()
+				&& (part.charAt(0) == '"' || part.charAt(0) == '`');
+	}
+}
@@ -0,0 +1,394 @@
+package com.jf.java.sql;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiled constraints by tenant, loaded from a directory holding one
+ * <code>&lt;tenant&gt;.properties</code> file per tenant:
+ *
+ * <pre>
+ * tables=users,orders
+ * functions=sum,count
+ * columns.users=id,name
+ * rows.orders=1000000
+ * maxQueryLength=10000
+ * maxDepth=20
+ * maxNodes=5000
+ * maxJoins=8
+ * maxMillis=50
+ * maxRows=1000
+ * maxCost=5000000
+ * ignoreCase=true
+ * </pre>
+ *
+ * Every property is optional.  Lists are comma separated, and the columns and
+ * row counts are keyed by table after their prefix.
+ *
+ * The constraints of all tenants are published as one immutable snapshot
+ * which is replaced as a whole on every change, so lookups never lock and a
+ * check keeps the constraints it started with.  A file which cannot be read
+ * is logged and its tenant keeps its previous constraints.
+ *
+ * Once {@link #watch()} is called, files created, changed or deleted in the
+ * directory are reloaded by a daemon thread.  Files should be replaced by
+ * renaming them over the old ones so a half written file is never read.
+ *
+ * @author james
+ *
+ */
+public final class ConstraintRegistry implements Closeable
+{
+	/** Extension of constraint files */
+	private static final String SUFFIX = ".properties";
+	/** Prefix of the column whitelist properties */
+	private static final String COLUMNS = "columns.";
+	/** Prefix of the row count properties */
+	private static final String ROWS = "rows.";
+
+	/** Class logger */
+	private final Logger log;
+	/** Directory of the constraint files */
+	private final Path directory;
+	/** Guards the replacement of the snapshot and the watcher */
+	private final Object lock;
+	/** Current constraints by tenant, never changed once published */
+	private volatile Map<String, CompiledQueryConstraints> snapshot;
+	/** Watcher of the directory, null if not watching */
+	private WatchService watcher;
+
+	/**
+	 * Creates a registry and loads all the constraint files of the passed
+	 * directory
+	 * @param directory
+	 * @throws IOException if the directory cannot be listed
+	 */
+	public ConstraintRegistry(Path directory) throws IOException
+	{
+		this.log = LoggerFactory.getLogger(getClass());
+		this.directory = directory;
+		this.lock = new Object();
+		this.snapshot = Collections.emptyMap();
+		reload();
+	}
+
+	/**
+	 * @param tenant
+	 * @return the constraints of the tenant, null if unknown
+	 */
+	public CompiledQueryConstraints get(String tenant)
+	{
+		return snapshot.get(tenant);
+	}
+
+	/**
+	 * @return the current constraints by tenant, which do not change
+	 */
+	public Map<String, CompiledQueryConstraints> getSnapshot()
+	{
+		return snapshot;
+	}
+
+	/**
+	 * @return the known tenants
+	 */
+	public Set<String> getTenants()
+	{
+		return snapshot.keySet();
+	}
+
+	/**
+	 * @return the directory of the constraint files
+	 */
+	public Path getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * Reloads every constraint file, forgetting tenants whose file is gone
+	 * @throws IOException if the directory cannot be listed
+	 */
+	public void reload() throws IOException
+	{
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX))
+		{
+			for (Path file : stream)
+				files.add(file);
+		}
+
+		synchronized (lock)
+		{
+			Map<String, CompiledQueryConstraints> next = new HashMap<>();
+			for (Path file : files)
+			{
+				String tenant = tenant(file);
+				CompiledQueryConstraints constraints = load(file);
+				if (constraints == null)
+					constraints = snapshot.get(tenant);
+				if (constraints != null)
+					next.put(tenant, constraints);
+			}
+			publish(next);
+		}
+	}
+
+	/**
+	 * Replaces the constraints of a tenant without a file, until the next
+	 * full reload
+	 * @param tenant
+	 * @param constraints constraints to compile unless already compiled
+	 */
+	public void put(String tenant, QueryConstraints constraints)
+	{
+		CompiledQueryConstraints compiled = constraints instanceof CompiledQueryConstraints
+				? (CompiledQueryConstraints) constraints
+				: constraints.compile();
+		synchronized (lock)
+		{
+			Map<String, CompiledQueryConstraints> next = new HashMap<>(snapshot);
+			next.put(tenant, compiled);
+			publish(next);
+		}
+	}
+
+	/**
+	 * Forgets a tenant until the next full reload
+	 * @param tenant
+	 */
+	public void remove(String tenant)
+	{
+		synchronized (lock)
+		{
+			if (!snapshot.containsKey(tenant))
+				return;
+			Map<String, CompiledQueryConstraints> next = new HashMap<>(snapshot);
+			next.remove(tenant);
+			publish(next);
+		}
+	}
+
+	/**
+	 * Starts reloading files as they change, on a daemon thread.  Does
+	 * nothing if already watching.
+	 *
+	 * @throws IOException if the directory cannot be watched
+	 */
+	public void watch() throws IOException
+	{
+		synchronized (lock)
+		{
+			if (watcher != null)
+				return;
+			watcher = directory.getFileSystem().newWatchService();
+			directory.register(watcher,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE);
+
+			WatchService service = watcher;
+			Thread thread = new Thread(() -> doWatch(service), "query-sanitiser-constraints");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		reload();
+	}
+
+	/**
+	 * Stops watching the directory, keeping the current constraints
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		synchronized (lock)
+		{
+			if (watcher != null)
+				watcher.close();
+			watcher = null;
+		}
+	}
+
+	/**
+	 * Reloads files as the watcher reports them, until it is closed
+	 * @param service
+	 */
+	private void doWatch(WatchService service)
+	{
+		try
+		{
+			while (true)
+			{
+				WatchKey key = service.take();
+				boolean overflow = false;
+				for (WatchEvent<?> event : key.pollEvents())
+				{
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+					{
+						overflow = true;
+						continue;
+					}
+
+					Path file = directory.resolve((Path) event.context());
+					if (!file.getFileName().toString().endsWith(SUFFIX))
+						continue;
+					if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+						remove(tenant(file));
+					else
+						reload(file);
+				}
+
+				if (overflow)
+				{
+					try
+					{
+						reload();
+					}
+					catch (IOException e)
+					{
+						log.warn("failed to reload constraint directory {}", directory, e);
+					}
+				}
+				if (!key.reset())
+				{
+					log.warn("constraint directory {} is no longer watched", directory);
+					return;
+				}
+			}
+		}
+		catch (ClosedWatchServiceException | InterruptedException e)
+		{
+			log.debug("stopped watching constraint directory {}", directory);
+		}
+	}
+
+	/**
+	 * Reloads the constraints of a single file, keeping the previous ones if
+	 * it cannot be read.  The file is read under the lock so that overlapping
+	 * reloads publish in the order they read, and a stale copy never replaces
+	 * a newer one.
+	 * @param file
+	 */
+	private void reload(Path file)
+	{
+		synchronized (lock)
+		{
+			CompiledQueryConstraints constraints = load(file);
+			if (constraints == null)
+				return;
+
+			Map<String, CompiledQueryConstraints> next = new HashMap<>(snapshot);
+			next.put(tenant(file), constraints);
+			publish(next);
+		}
+		log.info("reloaded constraints of tenant {}", tenant(file));
+	}
+
+	/**
+	 * Publishes a new snapshot, called holding the lock
+	 * @param next
+	 */
+	private void publish(Map<String, CompiledQueryConstraints> next)
+	{
+		snapshot = Collections.unmodifiableMap(next);
+	}
+
+	/**
+	 * Loads and compiles a constraint file
+	 * @param file
+	 * @return the constraints, null if the file cannot be read
+	 */
+	private CompiledQueryConstraints load(Path file)
+	{
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+		{
+			Properties props = new Properties();
+			props.load(reader);
+			return parse(props);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			log.warn("failed to load constraints from {}", file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Builds constraints from properties
+	 * @param props
+	 * @return the compiled constraints
+	 * @throws NumberFormatException if a limit is not a number
+	 */
+	static CompiledQueryConstraints parse(Properties props)
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(list(props.getProperty("tables")));
+		constraints.setFunctionWhitelist(list(props.getProperty("functions")));
+		constraints.setMaxQueryLength(Integer.parseInt(props.getProperty("maxQueryLength", "0").trim()));
+		constraints.setMaxDepth(Integer.parseInt(props.getProperty("maxDepth", "0").trim()));
+		constraints.setMaxNodes(Integer.parseInt(props.getProperty("maxNodes", "0").trim()));
+		constraints.setMaxJoins(Integer.parseInt(props.getProperty("maxJoins", "0").trim()));
+		constraints.setMaxMillis(Long.parseLong(props.getProperty("maxMillis", "0").trim()));
+		constraints.setMaxRows(Long.parseLong(props.getProperty("maxRows", "0").trim()));
+		constraints.setMaxCost(Long.parseLong(props.getProperty("maxCost", "0").trim()));
+
+		Map<String, Long> rows = new HashMap<>();
+		for (String key : props.stringPropertyNames())
+		{
+			if (key.startsWith(COLUMNS))
+				constraints.setColumnWhitelist(key.substring(COLUMNS.length()), list(props.getProperty(key)));
+			else if (key.startsWith(ROWS))
+				rows.put(key.substring(ROWS.length()), Long.parseLong(props.getProperty(key).trim()));
+		}
+		constraints.setTableRows(rows);
+		return constraints.compile(Boolean.parseBoolean(props.getProperty("ignoreCase", "false").trim()));
+	}
+
+	/**
+	 * @param value comma separated names, may be null
+	 * @return the trimmed names which are not empty
+	 */
+	private static List<String> list(String value)
+	{
+		List<String> names = new ArrayList<>();
+		if (value == null)
+			return names;
+		for (String name : value.split(","))
+		{
+			name = name.trim();
+			if (!name.isEmpty())
+				names.add(name);
+		}
+		return names;
+	}
+
+	/**
+	 * @param file
+	 * @return the tenant of a constraint file, its name without extension
+	 */
+	private static String tenant(Path file)
+	{
+		String name = file.getFileName().toString();
+		return name.substring(0, name.length() - SUFFIX.length());
+	}
+}
@@ -0,0 +1,301 @@
+package com.jf.java.sql;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+import net.sf.jsqlparser.expression.BinaryExpression;
+import net.sf.jsqlparser.expression.CastExpression;
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.Function;
+import net.sf.jsqlparser.expression.Parenthesis;
+import net.sf.jsqlparser.expression.SignedExpression;
+import net.sf.jsqlparser.expression.operators.relational.InExpression;
+import net.sf.jsqlparser.expression.operators.relational.IsNullExpression;
+import net.sf.jsqlparser.schema.Table;
+import net.sf.jsqlparser.statement.Statement;
+import net.sf.jsqlparser.statement.select.FromItem;
+import net.sf.jsqlparser.statement.select.Join;
+import net.sf.jsqlparser.statement.select.PlainSelect;
+import net.sf.jsqlparser.statement.select.Select;
+import net.sf.jsqlparser.statement.select.SelectBody;
+import net.sf.jsqlparser.statement.select.SetOperation;
+import net.sf.jsqlparser.statement.select.SetOperationList;
+import net.sf.jsqlparser.statement.select.SubSelect;
+import net.sf.jsqlparser.statement.select.UnionOp;
+
+/**
+ * Estimates the cost of an accepted SELECT from its shape and the row counts
+ * hinted in the constraints, without asking the database.  The cost is the
+ * number of rows the database is expected to touch:
+ *
+ * <ul>
+ * <li>every table is scanned in full, or a tenth of it if the select has a
+ * WHERE clause</li>
+ * <li>a join with a condition yields as many rows as its larger side, while
+ * one without, such as a cross join or a comma join without a WHERE clause,
+ * yields their product</li>
+ * <li>DISTINCT, GROUP BY, ORDER BY and set operations other than UNION ALL
+ * touch their input once more</li>
+ * <li>the sub-select of an IN condition is run once, as the database turns
+ * it into a semi-join, and adds its own cost</li>
+ * </ul>
+ *
+ * Limits are ignored, since the rows may still have to be joined and sorted
+ * before the limit applies, and so that the estimate does not depend on the
+ * values of literals.  Costs saturate rather than overflow.
+ *
+ * @author james
+ *
+ */
+final class CostEstimator
+{
+	/** Rows assumed for a table without a hint */
+	static final long DEFAULT_ROWS = 1000;
+	/** Share of rows assumed to be left by a WHERE clause */
+	private static final long FILTER = 10;
+
+	/** Rows produced */
+	private long rows;
+	/** Rows touched to produce them */
+	private long cost;
+
+	/**
+	 * Creates a new estimate
+	 * @param rows
+	 * @param cost
+	 */
+	private CostEstimator(long rows, long cost)
+	{
+		this.rows = rows;
+		this.cost = cost;
+	}
+
+	/**
+	 * Estimates the cost of the passed statement
+	 *
+	 * @param stmt an accepted SELECT
+	 * @param constraints constraints holding the row count hints
+	 * @return the estimated number of rows touched
+	 */
+	static long estimate(Statement stmt, QueryConstraints constraints)
+	{
+		if (!(stmt instanceof Select))
+			return 0;
+		return estimateBody(((Select) stmt).getSelectBody(), constraints).cost;
+	}
+
+	/**
+	 * @param body
+	 * @param constraints
+	 * @return the rows and cost of a select body
+	 */
+	private static CostEstimator estimateBody(SelectBody body, QueryConstraints constraints)
+	{
+		if (body instanceof SetOperationList)
+		{
+			SetOperationList list = (SetOperationList) body;
+			CostEstimator total = new CostEstimator(0, 0);
+			for (SelectBody sel : list.getSelects())
+			{
+				CostEstimator branch = estimateBody(sel, constraints);
+				total.rows = add(total.rows, branch.rows);
+				total.cost = add(total.cost, branch.cost);
+			}
+			if (!isUnionAll(list.getOperations()))
+				total.touch();
+			if (!isEmpty(list.getOrderByElements()))
+				total.touch();
+			return total;
+		}
+
+		if (!(body instanceof PlainSelect))
+			return new CostEstimator(1, 0);
+
+		PlainSelect select = (PlainSelect) body;
+		boolean filtered = select.getWhere() != null;
+		CostEstimator total = select.getFromItem() == null
+				? new CostEstimator(1, 0)
+				: scan(select.getFromItem(), filtered, constraints);
+
+		if (select.getJoins() != null)
+		{
+			for (Join join : select.getJoins())
+			{
+				CostEstimator right = scan(join.getRightItem(), filtered, constraints);
+				total.cost = add(total.cost, right.cost);
+				total.rows = isCartesian(join, filtered)
+						? multiply(total.rows, right.rows)
+						: Math.max(total.rows, right.rows);
+				total.touch();
+				total.cost = add(total.cost, conditions(join.getOnExpression(), constraints));
+			}
+		}
+		total.cost = add(total.cost, conditions(select.getWhere(), constraints));
+		total.cost = add(total.cost, conditions(select.getHaving(), constraints));
+
+		if (select.getDistinct() != null)
+			total.touch();
+		if (!isEmpty(select.getGroupByColumnReferences()))
+			total.touch();
+		if (!isEmpty(select.getOrderByElements()))
+			total.touch();
+		return total;
+	}
+
+	/**
+	 * @param from
+	 * @param filtered true if the select has a WHERE clause
+	 * @param constraints
+	 * @return the rows and cost of reading a table or sub-select
+	 */
+	private static CostEstimator scan(FromItem from, boolean filtered, QueryConstraints constraints)
+	{
+		if (from instanceof SubSelect)
+		{
+			CostEstimator sub = estimateBody(((SubSelect) from).getSelectBody(), constraints);
+			if (filtered)
+				sub.rows = Math.max(1, sub.rows / FILTER);
+			return sub;
+		}
+
+		long rows = DEFAULT_ROWS;
+		if (from instanceof Table)
+		{
+			long hint = constraints.getRowEstimate(((Table) from).getFullyQualifiedName());
+			if (hint > 0)
+				rows = hint;
+		}
+		if (filtered)
+			rows = Math.max(1, rows / FILTER);
+		return new CostEstimator(rows, rows);
+	}
+
+	/**
+	 * Walks a condition with an explicit stack, like the sanitiser does, to 
+	 * find the sub-selects of its IN conditions
+	 * 
+	 * @param condition may be null
+	 * @param constraints
+	 * @return the cost of running each sub-select once
+	 */
+	private static long conditions(Expression condition, QueryConstraints constraints)
+	{
+		if (condition == null)
+			return 0;
+		
+		long cost = 0;
+		ArrayDeque<Expression> work = new ArrayDeque<>();
+		work.push(condition);
+		while (!work.isEmpty())
+		{
+			Expression exp = work.pop();
+			if (exp instanceof InExpression)
+			{
+				InExpression in = (InExpression) exp;
+				if (in.getRightItemsList() instanceof SubSelect)
+					cost = add(cost, estimateBody(((SubSelect) in.getRightItemsList()).getSelectBody(), constraints).cost);
+				if (in.getLeftExpression() != null)
+					work.push(in.getLeftExpression());
+			}
+			else if (exp instanceof BinaryExpression)
+			{
+				work.push(((BinaryExpression) exp).getRightExpression());
+				work.push(((BinaryExpression) exp).getLeftExpression());
+			}
+			else if (exp instanceof Parenthesis)
+			{
+				work.push(((Parenthesis) exp).getExpression());
+			}
+			else if (exp instanceof Function && ((Function) exp).getParameters() != null)
+			{
+				for (Expression arg : ((Function) exp).getParameters().getExpressions())
+					work.push(arg);
+			}
+			else if (exp instanceof CastExpression)
+			{
+				work.push(((CastExpression) exp).getLeftExpression());
+			}
+			else if (exp instanceof IsNullExpression)
+			{
+				work.push(((IsNullExpression) exp).getLeftExpression());
+			}
+			else if (exp instanceof SignedExpression)
+			{
+				work.push(((SignedExpression) exp).getExpression());
+			}
+		}
+		return cost;
+	}
+	
+	/**
+	 * Adds the rows produced so far to the cost
+	 */
+	private void touch()
+	{
+		cost = add(cost, rows);
+	}
+
+	/**
+	 * @param join
+	 * @param filtered true if the select has a WHERE clause
+	 * @return true if the join pairs every row of one side with every row of
+	 * the other
+	 */
+	private static boolean isCartesian(Join join, boolean filtered)
+	{
+		if (join.isCross())
+			return true;
+		if (join.getOnExpression() != null || !isEmpty(join.getUsingColumns()))
+			return false;
+		return !(join.isSimple() && filtered);
+	}
+
+	/**
+	 * @param operations
+	 * @return true if all the operations are UNION ALL
+	 */
+	private static boolean isUnionAll(List<SetOperation> operations)
+	{
+		for (SetOperation op : operations)
+			if (!(op instanceof UnionOp) || !((UnionOp) op).isAll())
+				return false;
+		return true;
+	}
+
+	/**
+	 * @param list
+	 * @return true if there are no elements
+	 */
+	private static boolean isEmpty(List<?> list)
+	{
+		return list == null || list.isEmpty();
+	}
+
+	/**
+	 * @param a
+	 * @param b
+	 * @return the sum, or {@link Long#MAX_VALUE} if it overflows
+	 */
+	private static long add(long a, long b)
+	{
+		long sum = a + b;
+		return sum < 0 ? Long.MAX_VALUE : sum;
+	}
+
+	/**
+	 * @param a
+	 * @param b
+	 * @return the product, or {@link Long#MAX_VALUE} if it overflows
+	 */
+	private static long multiply(long a, long b)
+	{
+		try
+		{
+			return Math.multiplyExact(a, b);
+		}
+		catch (ArithmeticException e)
+		{
+			return Long.MAX_VALUE;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package com.jf.java.sql;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A schema catalog read from CSV, one column per line as
+ * <code>table,column</code>.  Further fields, such as the column type of a
+ * catalog export, are ignored, as are blank lines, lines starting with
+ * <code>#</code> and a <code>table,column</code> header.  Fields are not
+ * quoted.
+ *
+ * The columns of each table are kept in a sorted array and looked up by
+ * binary search, and names shared by several tables are stored once, so tens
+ * of thousands of columns take little memory.  The catalog cannot be changed
+ * once loaded.
+ *
+ * @author james
+ *
+ */
+public final class CsvSchemaCatalog implements SchemaCatalog
+{
+	/** Sorted column names by table */
+	private final Map<String, String[]> columns;
+	/** Whether names are matched regardless of case */
+	private final boolean ignoreCase;
+	/** Number of columns across all tables */
+	private final int size;
+
+	/**
+	 * Creates a new catalog
+	 * @param columns sorted column names by table
+	 * @param ignoreCase
+	 * @param size
+	 */
+	private CsvSchemaCatalog(Map<String, String[]> columns, boolean ignoreCase, int size)
+	{
+		this.columns = columns;
+		this.ignoreCase = ignoreCase;
+		this.size = size;
+	}
+
+	/**
+	 * Loads a UTF-8 CSV file, matching names exactly
+	 * @param path
+	 * @return the catalog
+	 * @throws IOException if the file cannot be read or a line has no column
+	 */
+	public static CsvSchemaCatalog load(Path path) throws IOException
+	{
+		return load(path, false);
+	}
+
+	/**
+	 * Loads a UTF-8 CSV file
+	 * @param path
+	 * @param ignoreCase true to match names regardless of case
+	 * @return the catalog
+	 * @throws IOException if the file cannot be read or a line has no column
+	 */
+	public static CsvSchemaCatalog load(Path path, boolean ignoreCase) throws IOException
+	{
+		try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8))
+		{
+			return load(reader, ignoreCase);
+		}
+	}
+
+	/**
+	 * Loads CSV from the passed reader, which is not closed
+	 * @param reader
+	 * @param ignoreCase true to match names regardless of case
+	 * @return the catalog
+	 * @throws IOException if the CSV cannot be read or a line has no column
+	 */
+	public static CsvSchemaCatalog load(Reader reader, boolean ignoreCase) throws IOException
+	{
+		BufferedReader lines = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+		Map<String, List<String>> tables = new HashMap<>();
+		Map<String, String> names = new HashMap<>();
+
+		String line;
+		int number = 0;
+		while ((line = lines.readLine()) != null)
+		{
+			number++;
+			line = line.trim();
+			if (line.isEmpty() || line.charAt(0) == '#')
+				continue;
+
+			int comma = line.indexOf(',');
+			int end = comma < 0 ? -1 : line.indexOf(',', comma + 1);
+			String table = comma < 0 ? "" : line.substring(0, comma).trim();
+			String column = comma < 0 ? "" : line.substring(comma + 1, end < 0 ? line.length() : end).trim();
+			if (table.isEmpty() || column.isEmpty())
+				throw new IOException("Line " + number + " of the schema catalog is not table,column");
+			if (number == 1 && table.equalsIgnoreCase("table") && column.equalsIgnoreCase("column"))
+				continue;
+
+			table = fold(table, ignoreCase);
+			column = names.computeIfAbsent(fold(column, ignoreCase), k -> k);
+			tables.computeIfAbsent(table, k -> new ArrayList<>()).add(column);
+		}
+
+		Map<String, String[]> columns = new HashMap<>(tables.size() * 4 / 3 + 1);
+		int size = 0;
+		for (Map.Entry<String, List<String>> e : tables.entrySet())
+		{
+			String[] sorted = e.getValue().stream().distinct().sorted().toArray(String[]::new);
+			columns.put(e.getKey(), sorted);
+			size += sorted.length;
+		}
+		return new CsvSchemaCatalog(columns, ignoreCase, size);
+	}
+
+	@Override
+	public boolean hasTable(String table)
+	{
+		return columns.containsKey(fold(table, ignoreCase));
+	}
+
+	@Override
+	public boolean hasColumn(String table, String column)
+	{
+		String[] sorted = columns.get(fold(table, ignoreCase));
+		return sorted != null && Arrays.binarySearch(sorted, fold(column, ignoreCase)) >= 0;
+	}
+
+	/**
+	 * @return the number of tables in the catalog
+	 */
+	public int getTableCount()
+	{
+		return columns.size();
+	}
+
+	/**
+	 * @return the number of columns across all tables
+	 */
+	public int getColumnCount()
+	{
+		return size;
+	}
+
+	/**
+	 * @return true if names are matched regardless of case
+	 */
+	public boolean isIgnoreCase()
+	{
+		return ignoreCase;
+	}
+
+	/**
+	 * Applies the case matching rule to a name
+	 * @param name
+	 * @param ignoreCase
+	 * @return the name as is, or lower cased when ignoring case
+	 */
+	private static String fold(String name, boolean ignoreCase)
+	{
+		if (!ignoreCase || name == null)
+			return name;
+		return name.toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,48 @@
+package com.jf.java.sql;
+
+/**
+ * Receives the structured trace of the decisions taken while sanitising a
+ * query.  Events are only produced when a listener is attached to the
+ * sanitiser, so tracing costs nothing otherwise.
+ * 
+ * Implementations are called on the sanitising thread and must be thread-safe
+ * if the sanitiser is shared.
+ * 
+ * @author james
+ *
+ */
+public interface DecisionListener
+{
+	/**
+	 * Kind of node a decision was taken on
+	 */
+	enum NodeKind
+	{
+		/** A plain SELECT */
+		SELECT,
+		/** A set operation such as UNION */
+		SET_OPERATION,
+		/** A table in a FROM or JOIN */
+		TABLE,
+		/** A sub-select in a FROM or JOIN */
+		SUB_SELECT,
+		/** A column reference */
+		COLUMN,
+		/** A function call */
+		FUNCTION,
+		/** Any other expression */
+		EXPRESSION,
+		/** The estimated cost of the whole query, named by its value */
+		COST
+	}
+	
+	/**
+	 * Called for every decision taken on a node
+	 * 
+	 * @param kind kind of node
+	 * @param table table, alias or qualifier the node refers to, may be null
+	 * @param name name of the node such as the function or column, may be null
+	 * @param allowed true if the node was accepted
+	 */
+	void onDecision(NodeKind kind, String table, String name, boolean allowed);
+}
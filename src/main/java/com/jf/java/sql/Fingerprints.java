@@ -0,0 +1,72 @@
+package com.jf.java.sql;
+
+/**
+ * 64-bit FNV-1a hashing helpers used to fingerprint constraints and query
+ * shapes.  The values are stable across JVMs and releases, unlike
+ * {@link String#hashCode()} mixes of collections.
+ * 
+ * @author james
+ *
+ */
+final class Fingerprints
+{
+	/** FNV-1a 64-bit offset basis */
+	static final long SEED = 0xcbf29ce484222325L;
+	/** FNV-1a 64-bit prime */
+	private static final long PRIME = 0x100000001b3L;
+	
+	/**
+	 * Not instantiable
+	 */
+	private Fingerprints()
+	{
+	}
+	
+	/**
+	 * Mixes a single character into the hash
+	 * @param hash current hash
+	 * @param c character to mix
+	 * @return the updated hash
+	 */
+	static long mix(long hash, char c)
+	{
+		hash ^= (c & 0xff);
+		hash *= PRIME;
+		hash ^= (c >>> 8);
+		hash *= PRIME;
+		return hash;
+	}
+	
+	/**
+	 * Mixes a string into the hash, followed by a separator so that adjacent
+	 * values cannot run into each other
+	 * @param hash current hash
+	 * @param value string to mix, null is treated as empty
+	 * @return the updated hash
+	 */
+	static long mix(long hash, String value)
+	{
+		if (value != null)
+			for (int i = 0; i < value.length(); i++)
+				hash = mix(hash, value.charAt(i));
+		
+		return mix(hash, '\u0000');
+	}
+	
+	/**
+	 * Mixes a long value into the hash
+	 * @param hash current hash
+	 * @param value value to mix
+	 * @return the updated hash
+	 */
+	static long mix(long hash, long value)
+	{
+		for (int i = 0; i < 8; i++)
+		{
+			hash ^= (value & 0xff);
+			hash *= PRIME;
+			value >>>= 8;
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,111 @@
+package com.jf.java.sql;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of non-negative values with one bucket per power of
+ * two.  Recording is a couple of striped additions; percentiles are reported
+ * as the upper bound of their bucket, so they are at most twice the real value.
+ *
+ * @author james
+ *
+ */
+final class Histogram
+{
+	/** Number of buckets, one for zero and one per bit of a long */
+	private static final int BUCKETS = 64;
+
+	/** Values counted per bucket */
+	private final LongAdder[] buckets;
+	/** Sum of all values */
+	private final LongAdder sum;
+	/** Largest value */
+	private final LongAccumulator max;
+
+	/**
+	 * Creates an empty histogram
+	 */
+	Histogram()
+	{
+		this.buckets = new LongAdder[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			buckets[i] = new LongAdder();
+		this.sum = new LongAdder();
+		this.max = new LongAccumulator(Math::max, 0);
+	}
+
+	/**
+	 * Records a value, negative values are ignored
+	 * @param value
+	 */
+	void record(long value)
+	{
+		if (value < 0)
+			return;
+
+		buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Clears all recorded values
+	 */
+	void reset()
+	{
+		for (LongAdder bucket : buckets)
+			bucket.reset();
+		sum.reset();
+		max.reset();
+	}
+
+	/**
+	 * Takes a snapshot of the recorded values.  Values recorded while taking
+	 * the snapshot may or may not be included.
+	 *
+	 * @return the snapshot
+	 */
+	HistogramSnapshot snapshot()
+	{
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			counts[i] = buckets[i].sum();
+			count += counts[i];
+		}
+
+		long largest = max.get();
+		return new HistogramSnapshot(
+				count,
+				count == 0 ? 0 : (double) sum.sum() / count,
+				percentile(counts, count, largest, 0.50),
+				percentile(counts, count, largest, 0.90),
+				percentile(counts, count, largest, 0.99),
+				largest);
+	}
+
+	/**
+	 * @param counts values counted per bucket
+	 * @param count total values counted
+	 * @param largest largest value
+	 * @param fraction
+	 * @return the upper bound of the bucket holding the percentile
+	 */
+	private static long percentile(long[] counts, long count, long largest, double fraction)
+	{
+		if (count == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(count * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(largest, i == 0 ? 0 : (1L << i) - 1);
+		}
+		return largest;
+	}
+}
@@ -0,0 +1,99 @@
+package com.jf.java.sql;
+
+/**
+ * A point in time summary of a distribution of values, such as latencies in
+ * nanoseconds or query lengths in characters.  Percentiles are approximate,
+ * at most twice the real value.
+ *
+ * @author james
+ *
+ */
+public final class HistogramSnapshot
+{
+	/** Number of values */
+	private final long count;
+	/** Mean value */
+	private final double mean;
+	/** Median */
+	private final long p50;
+	/** 90th percentile */
+	private final long p90;
+	/** 99th percentile */
+	private final long p99;
+	/** Largest value */
+	private final long max;
+
+	/**
+	 * Creates a new snapshot
+	 * @param count
+	 * @param mean
+	 * @param p50
+	 * @param p90
+	 * @param p99
+	 * @param max
+	 */
+	public HistogramSnapshot(long count, double mean, long p50, long p90, long p99, long max)
+	{
+		this.count = count;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p90 = p90;
+		this.p99 = p99;
+		this.max = max;
+	}
+
+	/**
+	 * @return the number of values
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @return the mean value
+	 */
+	public double getMean()
+	{
+		return mean;
+	}
+
+	/**
+	 * @return the median
+	 */
+	public long getP50()
+	{
+		return p50;
+	}
+
+	/**
+	 * @return the 90th percentile
+	 */
+	public long getP90()
+	{
+		return p90;
+	}
+
+	/**
+	 * @return the 99th percentile
+	 */
+	public long getP99()
+	{
+		return p99;
+	}
+
+	/**
+	 * @return the largest value
+	 */
+	public long getMax()
+	{
+		return max;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "count=" + count + ", mean=" + mean + ", p50=" + p50
+				+ ", p90=" + p90 + ", p99=" + p99 + ", max=" + max;
+	}
+}
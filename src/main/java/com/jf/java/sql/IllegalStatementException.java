@@ -0,0 +1,25 @@
+package com.jf.java.sql;
+
+/**
+ * The statement or one of its parts is not an allowed kind (B001, B002, B006, B008)
+ * 
+ * @author james
+ *
+ */
+public class IllegalStatementException extends QueryRejectedException
+{
+	/** Serial version */
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Creates a new rejection
+	 * @param code error code
+	 * @param description description of the error code
+	 * @param identifier offending identifier, may be null
+	 * @param stackTrace true to capture the stack trace
+	 */
+	public IllegalStatementException(String code, String description, String identifier, boolean stackTrace)
+	{
+		super(code, description, identifier, stackTrace);
+	}
+}
@@ -0,0 +1,228 @@
+package com.jf.java.sql;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of a sanitiser kept in memory and published as an MXBean.  Uses
+ * nothing beyond the JDK, so it can be read with jconsole, VisualVM or any JMX
+ * exporter.
+ *
+ * <pre>
+ * JmxSanitiserMetrics.register(sanitiser, "reports");
+ * </pre>
+ *
+ * registers the metrics under
+ * <code>com.jf.java.sql:type=QuerySanitiser,name=reports</code> and attaches
+ * them to the sanitiser.
+ *
+ * @author james
+ *
+ */
+public class JmxSanitiserMetrics implements SanitiserMetrics, SanitiserMetricsMXBean
+{
+	/** Domain of the registered object names */
+	public static final String DOMAIN = "com.jf.java.sql";
+
+	/** Supplies the current verdict cache, which may be null */
+	private final Supplier<VerdictCache> cache;
+	/** Queries checked */
+	private final LongAdder checks;
+	/** Queries rejected */
+	private final LongAdder rejected;
+	/** Rejections by error code */
+	private final ConcurrentMap<String, LongAdder> rejections;
+	/** Parse times in nanoseconds */
+	private final Histogram parseNanos;
+	/** Validation times in nanoseconds */
+	private final Histogram validateNanos;
+	/** Query lengths in characters */
+	private final Histogram queryLength;
+	/** Start of the throughput window as a {@link System#nanoTime()} value */
+	private volatile long since;
+
+	/**
+	 * Creates new metrics without cache statistics
+	 */
+	public JmxSanitiserMetrics()
+	{
+		this(() -> null);
+	}
+
+	/**
+	 * Creates new metrics
+	 * @param cache supplies the verdict cache to report on, which may be null
+	 */
+	public JmxSanitiserMetrics(Supplier<VerdictCache> cache)
+	{
+		this.cache = cache;
+		this.checks = new LongAdder();
+		this.rejected = new LongAdder();
+		this.rejections = new ConcurrentHashMap<>();
+		this.parseNanos = new Histogram();
+		this.validateNanos = new Histogram();
+		this.queryLength = new Histogram();
+		this.since = System.nanoTime();
+	}
+
+	/**
+	 * Creates metrics for the passed sanitiser, attaches them and registers
+	 * them with the platform MBean server
+	 *
+	 * @param sanitiser
+	 * @param name value of the name key of the object name
+	 * @return the registered metrics
+	 * @throws JMException if the metrics cannot be registered
+	 */
+	public static JmxSanitiserMetrics register(QuerySanitiser sanitiser, String name) throws JMException
+	{
+		JmxSanitiserMetrics metrics = new JmxSanitiserMetrics(sanitiser::getVerdictCache);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(metrics, objectName(name));
+		sanitiser.setMetrics(metrics);
+		return metrics;
+	}
+
+	/**
+	 * @param name value of the name key
+	 * @return the object name metrics are registered under
+	 * @throws JMException if the name is not valid
+	 */
+	public static ObjectName objectName(String name) throws JMException
+	{
+		return new ObjectName(DOMAIN + ":type=QuerySanitiser,name=" + ObjectName.quote(name));
+	}
+
+	@Override
+	public void onCheck(int length, String code)
+	{
+		checks.increment();
+		queryLength.record(length);
+		if (code != null)
+		{
+			rejected.increment();
+			rejections.computeIfAbsent(code, k -> new LongAdder()).increment();
+		}
+	}
+
+	@Override
+	public void onParse(long nanos)
+	{
+		parseNanos.record(nanos);
+	}
+
+	@Override
+	public void onValidate(long nanos)
+	{
+		validateNanos.record(nanos);
+	}
+
+	@Override
+	public long getChecks()
+	{
+		return checks.sum();
+	}
+
+	@Override
+	public long getAccepted()
+	{
+		return checks.sum() - rejected.sum();
+	}
+
+	@Override
+	public long getRejected()
+	{
+		return rejected.sum();
+	}
+
+	@Override
+	public Map<String, Long> getRejectionsByCode()
+	{
+		Map<String, Long> counts = new TreeMap<>();
+		for (Map.Entry<String, LongAdder> entry : rejections.entrySet())
+			counts.put(entry.getKey(), entry.getValue().sum());
+		return counts;
+	}
+
+	@Override
+	public double getChecksPerSecond()
+	{
+		long nanos = System.nanoTime() - since;
+		if (nanos <= 0)
+			return 0;
+		return checks.sum() * 1e9 / nanos;
+	}
+
+	@Override
+	public HistogramSnapshot getParseNanos()
+	{
+		return parseNanos.snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getValidateNanos()
+	{
+		return validateNanos.snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getQueryLength()
+	{
+		return queryLength.snapshot();
+	}
+
+	@Override
+	public boolean isCacheEnabled()
+	{
+		return cache.get() != null;
+	}
+
+	@Override
+	public long getCacheSize()
+	{
+		VerdictCache c = cache.get();
+		return c == null ? 0 : c.size();
+	}
+
+	@Override
+	public long getCacheHits()
+	{
+		VerdictCache c = cache.get();
+		return c == null ? 0 : c.getHits();
+	}
+
+	@Override
+	public long getCacheMisses()
+	{
+		VerdictCache c = cache.get();
+		return c == null ? 0 : c.getMisses();
+	}
+
+	@Override
+	public long getCacheEvictions()
+	{
+		VerdictCache c = cache.get();
+		return c == null ? 0 : c.getEvictions();
+	}
+
+	@Override
+	public void reset()
+	{
+		checks.reset();
+		rejected.reset();
+		rejections.clear();
+		parseNanos.reset();
+		validateNanos.reset();
+		queryLength.reset();
+		since = System.nanoTime();
+	}
+}
@@ -0,0 +1,301 @@
+package com.jf.java.sql;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.jsqlparser.expression.BinaryExpression;
+import net.sf.jsqlparser.expression.CastExpression;
+import net.sf.jsqlparser.expression.DoubleValue;
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.Function;
+import net.sf.jsqlparser.expression.JdbcParameter;
+import net.sf.jsqlparser.expression.LongValue;
+import net.sf.jsqlparser.expression.Parenthesis;
+import net.sf.jsqlparser.expression.SignedExpression;
+import net.sf.jsqlparser.expression.StringValue;
+import net.sf.jsqlparser.expression.operators.relational.InExpression;
+import net.sf.jsqlparser.expression.operators.relational.IsNullExpression;
+import net.sf.jsqlparser.statement.Statement;
+import net.sf.jsqlparser.statement.select.FromItem;
+import net.sf.jsqlparser.statement.select.Join;
+import net.sf.jsqlparser.statement.select.PlainSelect;
+import net.sf.jsqlparser.statement.select.Select;
+import net.sf.jsqlparser.statement.select.SelectBody;
+import net.sf.jsqlparser.statement.select.SetOperationList;
+import net.sf.jsqlparser.statement.select.SubSelect;
+
+/**
+ * Replaces the string and number literals of an accepted SELECT with JDBC
+ * placeholders, so that queries differing only in their literals share one
+ * text and the database can reuse its plan.
+ *
+ * Only the literals of WHERE, ON and HAVING conditions are replaced, in the
+ * selects and sub-selects of the statement.  The selections, GROUP BY and
+ * ORDER BY ordinals and the limits keep theirs, since they change the shape
+ * of the result rather than select rows.  Strings are bound as strings,
+ * integers as longs, or big integers if they do not fit, and decimals as big
+ * decimals so that they keep the type of the literal rather than become
+ * doubles.  A sign in front of a number is folded into its value.
+ *
+ * The type of the column a literal is compared with is not known, as the
+ * schema catalog only has names, so a string stays a string even where the
+ * database would have read the literal as a UUID, date or timestamp.  Some
+ * databases, PostgreSQL among them, refuse to compare such a column with a
+ * string parameter (<code>uuid = character varying</code>), while the same
+ * literal inline was accepted.  Queries doing so should cast the literal,
+ * <code>cast('2020-01-01' as date)</code>, which keeps the cast around its
+ * placeholder, or use {@link QueryTemplate} and bind values of the right
+ * type.
+ *
+ * IN lists and their sub-selects keep their literals: a list of thousands of
+ * values would exceed the number of parameters a statement can take, and
+ * lists of different lengths do not share a plan anyway.
+ *
+ * @author james
+ *
+ */
+final class LiteralParameteriser
+{
+	/** Value of an expression which is not a literal */
+	private static final Object NOT_LITERAL = new Object();
+
+	/** Values replaced so far, in the order of their placeholders */
+	private final List<Object> values;
+	/** Work stack of the expression walk, reused across conditions */
+	private final ArrayDeque<Object> work;
+
+	/**
+	 * Creates a new parameteriser
+	 */
+	private LiteralParameteriser()
+	{
+		this.values = new ArrayList<>();
+		this.work = new ArrayDeque<>();
+	}
+
+	/**
+	 * Replaces the literals of the conditions of the passed statement,
+	 * changing it in place
+	 *
+	 * @param stmt an accepted SELECT
+	 * @return the values of the placeholders, in the order in which they
+	 * appear in the statement
+	 */
+	static List<Object> parameterise(Statement stmt)
+	{
+		LiteralParameteriser params = new LiteralParameteriser();
+		if (stmt instanceof Select)
+			params.select(((Select) stmt).getSelectBody());
+		return params.values;
+	}
+
+	/**
+	 * Replaces the literals of a select body, following the order in which
+	 * its clauses are written
+	 * @param body
+	 */
+	private void select(SelectBody body)
+	{
+		if (body instanceof SetOperationList)
+		{
+			for (SelectBody sel : ((SetOperationList) body).getSelects())
+				select(sel);
+			return;
+		}
+		if (!(body instanceof PlainSelect))
+			return;
+
+		PlainSelect select = (PlainSelect) body;
+		from(select.getFromItem());
+		if (select.getJoins() != null)
+		{
+			for (Join join : select.getJoins())
+			{
+				from(join.getRightItem());
+				if (join.getOnExpression() != null)
+					join.setOnExpression(condition(join.getOnExpression()));
+			}
+		}
+		if (select.getWhere() != null)
+			select.setWhere(condition(select.getWhere()));
+		if (select.getHaving() != null)
+			select.setHaving(condition(select.getHaving()));
+	}
+
+	/**
+	 * @param from
+	 */
+	private void from(FromItem from)
+	{
+		if (from instanceof SubSelect)
+			select(((SubSelect) from).getSelectBody());
+	}
+
+	/**
+	 * Replaces the literals of a condition, walking it with an explicit stack
+	 * so long chains of conditions do not overflow
+	 *
+	 * @param root
+	 * @return the condition, or a placeholder if it is a literal itself
+	 */
+	private Expression condition(Expression root)
+	{
+		Object value = valueOf(root);
+		if (value != NOT_LITERAL)
+		{
+			values.add(value);
+			return new JdbcParameter();
+		}
+
+		work.push(root);
+		while (!work.isEmpty())
+		{
+			Object next = work.pop();
+			if (next instanceof Slot)
+			{
+				Slot slot = (Slot) next;
+				values.add(slot.value);
+				slot.replace(new JdbcParameter());
+				continue;
+			}
+
+			Expression exp = (Expression) next;
+			if (exp instanceof BinaryExpression)
+			{
+				BinaryExpression bin = (BinaryExpression) exp;
+				child(bin, 1, bin.getRightExpression());
+				child(bin, 0, bin.getLeftExpression());
+			}
+			else if (exp instanceof Function)
+			{
+				Function func = (Function) exp;
+				if (func.getParameters() != null)
+				{
+					List<Expression> list = func.getParameters().getExpressions();
+					for (int i = list.size() - 1; i >= 0; i--)
+						child(func, i, list.get(i));
+				}
+			}
+			else if (exp instanceof Parenthesis)
+			{
+				child(exp, 0, ((Parenthesis) exp).getExpression());
+			}
+			else if (exp instanceof CastExpression)
+			{
+				child(exp, 0, ((CastExpression) exp).getLeftExpression());
+			}
+			else if (exp instanceof IsNullExpression)
+			{
+				child(exp, 0, ((IsNullExpression) exp).getLeftExpression());
+			}
+			else if (exp instanceof InExpression && ((InExpression) exp).getLeftExpression() != null)
+			{
+				child(exp, 0, ((InExpression) exp).getLeftExpression());
+			}
+		}
+		return root;
+	}
+
+	/**
+	 * Schedules the replacement of a literal child, or the walk of any other
+	 * @param parent
+	 * @param index position of the child in its parent
+	 * @param child
+	 */
+	private void child(Expression parent, int index, Expression child)
+	{
+		Object value = valueOf(child);
+		if (value == NOT_LITERAL)
+			work.push(child);
+		else
+			work.push(new Slot(parent, index, value));
+	}
+
+	/**
+	 * @param exp
+	 * @return the value of a literal, {@link #NOT_LITERAL} for any other
+	 * expression
+	 */
+	private static Object valueOf(Expression exp)
+	{
+		if (exp instanceof StringValue)
+			return ((StringValue) exp).getNotExcapedValue();
+		if (exp instanceof LongValue)
+		{
+			BigInteger value = ((LongValue) exp).getBigIntegerValue();
+			return value.bitLength() < Long.SIZE ? (Object) value.longValue() : value;
+		}
+		if (exp instanceof DoubleValue)
+			return new BigDecimal(exp.toString());
+		if (exp instanceof SignedExpression)
+		{
+			SignedExpression signed = (SignedExpression) exp;
+			Object value = valueOf(signed.getExpression());
+			if (value instanceof String || value == NOT_LITERAL || signed.getSign() == '~')
+				return NOT_LITERAL;
+			if (signed.getSign() == '+')
+				return value;
+			if (value instanceof Long)
+				return -(Long) value;
+			if (value instanceof BigInteger)
+				return ((BigInteger) value).negate();
+			return ((BigDecimal) value).negate();
+		}
+		return NOT_LITERAL;
+	}
+
+	/**
+	 * A literal waiting to be replaced, so placeholders are numbered in the
+	 * order the walk reaches them
+	 */
+	private static final class Slot
+	{
+		/** Expression holding the literal */
+		private final Expression parent;
+		/** Position of the literal in its parent */
+		private final int index;
+		/** Value of the literal */
+		private final Object value;
+
+		/**
+		 * Creates a new slot
+		 * @param parent
+		 * @param index
+		 * @param value
+		 */
+		private Slot(Expression parent, int index, Object value)
+		{
+			this.parent = parent;
+			this.index = index;
+			this.value = value;
+		}
+
+		/**
+		 * Replaces the literal in its parent
+		 * @param exp
+		 */
+		private void replace(Expression exp)
+		{
+			if (parent instanceof BinaryExpression)
+			{
+				if (index == 0)
+					((BinaryExpression) parent).setLeftExpression(exp);
+				else
+					((BinaryExpression) parent).setRightExpression(exp);
+			}
+			else if (parent instanceof Function)
+				((Function) parent).getParameters().getExpressions().set(index, exp);
+			else if (parent instanceof Parenthesis)
+				((Parenthesis) parent).setExpression(exp);
+			else if (parent instanceof CastExpression)
+				((CastExpression) parent).setLeftExpression(exp);
+			else if (parent instanceof IsNullExpression)
+				((IsNullExpression) parent).setLeftExpression(exp);
+			else if (parent instanceof InExpression)
+				((InExpression) parent).setLeftExpression(exp);
+		}
+	}
+}
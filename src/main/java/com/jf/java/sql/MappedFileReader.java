@@ -0,0 +1,113 @@
+package com.jf.java.sql;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a UTF-8 file through a sliding memory mapped window, so large files
+ * are decoded straight from the page cache without being copied through a
+ * stream buffer.  At most one window is mapped at a time.
+ *
+ * @author james
+ *
+ */
+final class MappedFileReader extends Reader
+{
+	/** Default size of the mapped window */
+	static final long WINDOW = 64L << 20;
+	/** Smallest window, enough for any UTF-8 sequence */
+	private static final long MIN_WINDOW = 16;
+
+	/** Channel of the file */
+	private final FileChannel channel;
+	/** Size of the file */
+	private final long size;
+	/** Size of the mapped window */
+	private final long windowSize;
+	/** Decoder of the file contents */
+	private final CharsetDecoder decoder;
+	/** Mapped window, null before the first read */
+	private MappedByteBuffer window;
+	/** File position of the window */
+	private long windowStart;
+	/** Whether the decoder was flushed at the end of the file */
+	private boolean flushed;
+
+	/**
+	 * Opens the passed file
+	 * @param path
+	 * @param windowSize size of the mapped window
+	 * @throws IOException if the file cannot be opened
+	 */
+	MappedFileReader(Path path, long windowSize) throws IOException
+	{
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		this.size = channel.size();
+		this.windowSize = Math.max(MIN_WINDOW, windowSize);
+		this.decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+		if (flushed)
+			return -1;
+
+		CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+		if (window == null)
+			map(0);
+
+		while (out.position() == off)
+		{
+			boolean last = windowStart + window.limit() >= size;
+			CoderResult result = decoder.decode(window, out, last);
+			if (out.position() > off || result.isOverflow())
+				break;
+
+			if (!last)
+			{
+				map(windowStart + window.position());
+			}
+			else
+			{
+				decoder.flush(out);
+				flushed = true;
+				break;
+			}
+		}
+
+		int read = out.position() - off;
+		return read == 0 && flushed ? -1 : read;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		window = null;
+		channel.close();
+	}
+
+	/**
+	 * Maps the window starting at the passed file position
+	 * @param position
+	 * @throws IOException
+	 */
+	private void map(long position) throws IOException
+	{
+		windowStart = position;
+		window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowSize, size - position));
+	}
+}
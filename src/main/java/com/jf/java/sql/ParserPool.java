@@ -0,0 +1,69 @@
+package com.jf.java.sql;
+
+import java.io.StringReader;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import net.sf.jsqlparser.JSQLParserException;
+import net.sf.jsqlparser.parser.CCJSqlParser;
+import net.sf.jsqlparser.parser.TokenMgrError;
+import net.sf.jsqlparser.statement.Statement;
+
+/**
+ * A bounded pool of reusable parsers.  {@link CCJSqlParser} allocates its
+ * character buffers, line and column tables and token manager on creation;
+ * re-initialising an idle parser keeps all of them and only resets its state.
+ * 
+ * Parsers are taken from the pool for the duration of a single parse, so the
+ * pool is safe to share between threads, including virtual threads which 
+ * would defeat a thread-local.  When the pool is empty a new parser is made,
+ * and when it is full a returned parser is dropped.
+ * 
+ * @author james
+ *
+ */
+final class ParserPool
+{
+	/** Idle parsers */
+	private final ArrayBlockingQueue<CCJSqlParser> idle;
+	
+	/**
+	 * Creates a new pool
+	 * @param capacity maximum number of idle parsers kept
+	 */
+	ParserPool(int capacity)
+	{
+		this.idle = new ArrayBlockingQueue<>(capacity);
+	}
+	
+	/**
+	 * Parses a single statement like {@link 
+	 * net.sf.jsqlparser.parser.CCJSqlParserUtil#parse(String)}, also turning 
+	 * lexical errors into a {@link JSQLParserException}
+	 * 
+	 * @param query
+	 * @return the parsed statement
+	 * @throws JSQLParserException if the query cannot be parsed
+	 */
+	Statement parse(String query) throws JSQLParserException
+	{
+		CCJSqlParser parser = idle.poll();
+		StringReader reader = new StringReader(query);
+		if (parser == null)
+			parser = new CCJSqlParser(reader);
+		else
+			parser.ReInit(reader);
+		
+		try
+		{
+			return parser.Statement();
+		}
+		catch (Exception | TokenMgrError e)
+		{
+			throw new JSQLParserException(e);
+		}
+		finally
+		{
+			idle.offer(parser);
+		}
+	}
+}
@@ -1,9 +1,14 @@
 package com.jf.java.sql;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import net.sf.jsqlparser.schema.Table;
+
 /**
  * An object defining the constrains of the query to run
  * 
@@ -16,6 +21,28 @@ public class QueryConstraints
 	private Set<String> tableWhitelist;
 	/** Whitelist of functions to allow */
 	private Set<String> functionWhitelist;
+	/** Whitelists of columns by table, tables without one allow any column */
+	private Map<String, Set<String>> columnWhitelist;
+	/** Estimated number of rows by table, for estimating the cost of queries */
+	private Map<String, Long> tableRows;
+	/** Maximum length of the query text, zero for no limit */
+	private int maxQueryLength;
+	/** Maximum nesting of parentheses and sub-selects, zero for no limit */
+	private int maxDepth;
+	/** Maximum number of nodes checked, zero for no limit */
+	private int maxNodes;
+	/** Maximum number of joins across the query, zero for no limit */
+	private int maxJoins;
+	/** Maximum time to parse and check the query in milliseconds, zero for no limit */
+	private long maxMillis;
+	/** Maximum number of rows an accepted query may return, zero for no cap */
+	private long maxRows;
+	/** Maximum estimated cost of an accepted query, zero for no limit */
+	private long maxCost;
+	/** Number of changes made so far */
+	private volatile int version;
+	/** Fingerprint computed at a version, null until first computed */
+	private volatile Stamp stamp;
 	
 	/**
 	 * Default constructor for QueryConstraints
@@ -24,54 +51,268 @@ public class QueryConstraints
 	{
 		this.tableWhitelist = new HashSet<>();
 		this.functionWhitelist = new HashSet<>();
+		this.columnWhitelist = new HashMap<>();
+		this.tableRows = new HashMap<>();
 	}
 
 	/**
 	 * @return the tableWhitelist
 	 */
-	public final Set<String> getTableWhitelist()
+	public Set<String> getTableWhitelist()
 	{
-		return tableWhitelist;
+		return Collections.unmodifiableSet(tableWhitelist);
 	}
 
 	/**
 	 * @param tableWhitelist the tableWhitelist to set
 	 */
-	public final void setTableWhitelist(Set<String> tableWhitelist)
+	public void setTableWhitelist(Set<String> tableWhitelist)
 	{
-		this.tableWhitelist = tableWhitelist;
+		this.tableWhitelist = new HashSet<String>(tableWhitelist);
+		changed();
 	}
 	
 	/**
 	 * @param tableWhitelist the tableWhitelist to set
 	 */
-	public final void setTableWhitelist(List<String> tableWhitelist)
+	public void setTableWhitelist(List<String> tableWhitelist)
 	{
 		this.tableWhitelist = new HashSet<String>(tableWhitelist);
+		changed();
 	}
 
 	/**
 	 * @return the functionWhitelist
 	 */
-	public final Set<String> getFunctionWhitelist()
+	public Set<String> getFunctionWhitelist()
 	{
-		return functionWhitelist;
+		return Collections.unmodifiableSet(functionWhitelist);
 	}
 
 	/**
 	 * @param functionWhitelist the functionWhitelist to set
 	 */
-	public final void setFunctionWhitelist(Set<String> functionWhitelist)
+	public void setFunctionWhitelist(Set<String> functionWhitelist)
 	{
-		this.functionWhitelist = functionWhitelist;
+		this.functionWhitelist = new HashSet<String>(functionWhitelist);
+		changed();
 	}
 	
 	/**
 	 * @param functionWhitelist the tableWhitelist to set
 	 */
-	public final void setFunctionWhitelist(List<String> functionWhitelist)
+	public void setFunctionWhitelist(List<String> functionWhitelist)
 	{
 		this.functionWhitelist = new HashSet<String>(functionWhitelist);
+		changed();
+	}
+	
+	/**
+	 * @return the whitelists of columns by table
+	 */
+	public Map<String, Set<String>> getColumnWhitelist()
+	{
+		return Collections.unmodifiableMap(columnWhitelist);
+	}
+
+	/**
+	 * Columns of a table with a whitelist are rejected unless they are in it
+	 * (B010).  Tables without a whitelist allow any column.
+	 * 
+	 * @param columnWhitelist the whitelists of columns by table
+	 */
+	public void setColumnWhitelist(Map<String, Set<String>> columnWhitelist)
+	{
+		Map<String, Set<String>> copy = new HashMap<>();
+		for (Map.Entry<String, Set<String>> e : columnWhitelist.entrySet())
+			copy.put(e.getKey(), Collections.unmodifiableSet(new HashSet<String>(e.getValue())));
+		this.columnWhitelist = copy;
+		changed();
+	}
+	
+	/**
+	 * @param table the table to restrict
+	 * @param columnWhitelist the columns of the table to allow
+	 */
+	public void setColumnWhitelist(String table, List<String> columnWhitelist)
+	{
+		Map<String, Set<String>> copy = new HashMap<>(this.columnWhitelist);
+		copy.put(table, Collections.unmodifiableSet(new HashSet<String>(columnWhitelist)));
+		this.columnWhitelist = copy;
+		changed();
+	}
+	
+	/**
+	 * @return the estimated number of rows by table
+	 */
+	public Map<String, Long> getTableRows()
+	{
+		return Collections.unmodifiableMap(tableRows);
+	}
+
+	/**
+	 * Row counts used to estimate the cost of queries, such as those kept by
+	 * the database statistics.  Tables without a hint are assumed to hold a
+	 * thousand rows.
+	 * 
+	 * @param tableRows the estimated number of rows by fully qualified table
+	 * name
+	 */
+	public void setTableRows(Map<String, Long> tableRows)
+	{
+		this.tableRows = new HashMap<String, Long>(tableRows);
+		changed();
+	}
+	
+	/**
+	 * @return the maximum length of the query text, zero for no limit
+	 */
+	public int getMaxQueryLength()
+	{
+		return maxQueryLength;
+	}
+
+	/**
+	 * Queries longer than this are rejected before they are parsed (C001)
+	 * @param maxQueryLength the maximum length of the query text, zero for no
+	 * limit
+	 */
+	public void setMaxQueryLength(int maxQueryLength)
+	{
+		this.maxQueryLength = maxQueryLength;
+		changed();
+	}
+
+	/**
+	 * @return the maximum nesting of parentheses and sub-selects, zero for no
+	 * limit
+	 */
+	public int getMaxDepth()
+	{
+		return maxDepth;
+	}
+
+	/**
+	 * Queries nested deeper than this are rejected (C002).  The nesting is 
+	 * checked on the raw text before parsing, since deep nesting is what makes
+	 * the parser slow, and again during the walk.
+	 * 
+	 * @param maxDepth the maximum nesting of parentheses and sub-selects, zero
+	 * for no limit
+	 */
+	public void setMaxDepth(int maxDepth)
+	{
+		this.maxDepth = maxDepth;
+		changed();
+	}
+
+	/**
+	 * @return the maximum number of nodes checked, zero for no limit
+	 */
+	public int getMaxNodes()
+	{
+		return maxNodes;
+	}
+
+	/**
+	 * Queries with more selects, tables and expressions than this are 
+	 * rejected (C003)
+	 * @param maxNodes the maximum number of nodes checked, zero for no limit
+	 */
+	public void setMaxNodes(int maxNodes)
+	{
+		this.maxNodes = maxNodes;
+		changed();
+	}
+
+	/**
+	 * @return the maximum number of joins across the query, zero for no limit
+	 */
+	public int getMaxJoins()
+	{
+		return maxJoins;
+	}
+
+	/**
+	 * Queries with more joins than this, counting those of sub-selects, are
+	 * rejected (C004)
+	 * @param maxJoins the maximum number of joins across the query, zero for 
+	 * no limit
+	 */
+	public void setMaxJoins(int maxJoins)
+	{
+		this.maxJoins = maxJoins;
+		changed();
+	}
+
+	/**
+	 * @return the maximum time to parse and check the query in milliseconds,
+	 * zero for no limit
+	 */
+	public long getMaxMillis()
+	{
+		return maxMillis;
+	}
+
+	/**
+	 * Queries which take longer than this to parse and check are rejected 
+	 * (C005).  The parser itself cannot be interrupted, so the deadline is 
+	 * checked once parsing ends and then throughout the walk; the length and
+	 * depth limits are what bound the parsing time.  Timeouts are never 
+	 * cached.
+	 * 
+	 * @param maxMillis the maximum time to parse and check the query in 
+	 * milliseconds, zero for no limit
+	 */
+	public void setMaxMillis(long maxMillis)
+	{
+		this.maxMillis = maxMillis;
+		changed();
+	}
+	
+	/**
+	 * @return the maximum number of rows an accepted query may return, zero
+	 * for no cap
+	 */
+	public long getMaxRows()
+	{
+		return maxRows;
+	}
+
+	/**
+	 * Accepted queries are rewritten to return no more than this many rows,
+	 * by adding a LIMIT or tightening their LIMIT, FETCH FIRST or TOP.
+	 * 
+	 * @param maxRows the maximum number of rows an accepted query may return,
+	 * zero for no cap
+	 */
+	public void setMaxRows(long maxRows)
+	{
+		this.maxRows = maxRows;
+		changed();
+	}
+	
+	/**
+	 * @return the maximum estimated cost of an accepted query, zero for no 
+	 * limit
+	 */
+	public long getMaxCost()
+	{
+		return maxCost;
+	}
+
+	/**
+	 * Queries estimated to touch more rows than this are rejected (C006), see
+	 * {@link SanitiseResult#getEstimatedCost()}.  The estimate relies on the 
+	 * row counts of {@link #setTableRows(Map)}.
+	 * 
+	 * @param maxCost the maximum estimated cost of an accepted query, zero for
+	 * no limit
+	 */
+	public void setMaxCost(long maxCost)
+	{
+		this.maxCost = maxCost;
+		changed();
 	}
 	
 	/**
@@ -84,6 +325,16 @@ public class QueryConstraints
 		return tableWhitelist.contains(table);
 	}
 	
+	/**
+	 * Return true if the passed table reference is allowed in the query
+	 * @param table
+	 * @return true if the passed table reference is allowed in the query
+	 */
+	public boolean isTableAllowed(Table table)
+	{
+		return isTableAllowed(table.getFullyQualifiedName());
+	}
+	
 	/**
 	 * Return true if the passed function name is allowed in the query
 	 * @param function
@@ -93,4 +344,210 @@ public class QueryConstraints
 	{
 		return functionWhitelist.contains(function);
 	}
+	
+	/**
+	 * Return true if the passed column of the passed table is allowed in the
+	 * query
+	 * @param table fully qualified table name
+	 * @param column
+	 * @return true if the table has no column whitelist or the column is in it
+	 */
+	public boolean isColumnAllowed(String table, String column)
+	{
+		Set<String> columns = columnWhitelist.get(table);
+		return columns == null || columns.contains(column);
+	}
+	
+	/**
+	 * Return true if the passed table has a column whitelist, so its columns
+	 * cannot be selected with a wildcard
+	 * @param table fully qualified table name
+	 * @return true if the table has a column whitelist
+	 */
+	public boolean hasColumnWhitelist(String table)
+	{
+		return columnWhitelist.containsKey(table);
+	}
+	
+	/**
+	 * Return the estimated number of rows of the passed table
+	 * @param table fully qualified table name
+	 * @return the hinted number of rows, zero if there is no hint
+	 */
+	public long getRowEstimate(String table)
+	{
+		Long rows = tableRows.get(table);
+		return rows == null ? 0 : rows;
+	}
+	
+	/**
+	 * Computes a stable 64-bit fingerprint of the whitelists.  Two constraints
+	 * with the same whitelists have the same fingerprint regardless of the set
+	 * implementation or iteration order, so it can be used in cache keys.
+	 * 
+	 * The fingerprint is computed once and kept until a setter is called.
+	 * Setters copy the collections passed to them and getters hand out views
+	 * which cannot be changed, so the setters are the only way to change the
+	 * values.  The fingerprint is kept with the version it was computed at, 
+	 * so one computed while a setter runs is never reused.
+	 * 
+	 * @return the fingerprint of these constraints
+	 */
+	public long fingerprint()
+	{
+		int current = version;
+		Stamp kept = stamp;
+		if (kept != null && kept.version == current)
+			return kept.fingerprint;
+		
+		long hash = Fingerprints.SEED;
+		hash = Fingerprints.mix(hash, fingerprint(tableWhitelist));
+		hash = Fingerprints.mix(hash, fingerprint(functionWhitelist));
+		hash = Fingerprints.mix(hash, fingerprint(columnWhitelist));
+		hash = Fingerprints.mix(hash, fingerprintRows(tableRows));
+		hash = fingerprintLimits(hash);
+		stamp = new Stamp(current, hash);
+		return hash;
+	}
+	
+	/**
+	 * @return true if any table has a column whitelist
+	 */
+	boolean hasColumnWhitelists()
+	{
+		return !columnWhitelist.isEmpty();
+	}
+	
+	/**
+	 * @return true if any table has a row count
+	 */
+	boolean hasRowEstimates()
+	{
+		return !tableRows.isEmpty();
+	}
+	
+	/**
+	 * Forgets the fingerprint once a setter has changed a value
+	 */
+	private synchronized void changed()
+	{
+		version++;
+	}
+	
+	/**
+	 * Creates a frozen, thread-safe copy of these constraints with a 
+	 * precomputed lookup index and fingerprint.  Names are matched exactly.
+	 * 
+	 * @return the compiled constraints
+	 */
+	public CompiledQueryConstraints compile()
+	{
+		return compile(false);
+	}
+	
+	/**
+	 * Creates a frozen, thread-safe copy of these constraints with a 
+	 * precomputed lookup index and fingerprint.
+	 * 
+	 * @param ignoreCase true to match table, column and function names
+	 * regardless of case
+	 * @return the compiled constraints
+	 */
+	public CompiledQueryConstraints compile(boolean ignoreCase)
+	{
+		return new CompiledQueryConstraints(this, ignoreCase);
+	}
+	
+	/**
+	 * Mixes the complexity limits, row cap and cost limit into a fingerprint
+	 * @param hash fingerprint so far
+	 * @return the fingerprint including the limits, row cap and cost limit
+	 */
+	final long fingerprintLimits(long hash)
+	{
+		hash = Fingerprints.mix(hash, maxQueryLength);
+		hash = Fingerprints.mix(hash, maxDepth);
+		hash = Fingerprints.mix(hash, maxNodes);
+		hash = Fingerprints.mix(hash, maxJoins);
+		hash = Fingerprints.mix(hash, maxMillis);
+		hash = Fingerprints.mix(hash, maxRows);
+		return Fingerprints.mix(hash, maxCost);
+	}
+	
+	/**
+	 * Copies the complexity limits, row cap and cost limit of the passed 
+	 * constraints
+	 * @param source
+	 */
+	final void copyLimits(QueryConstraints source)
+	{
+		this.maxQueryLength = source.getMaxQueryLength();
+		this.maxDepth = source.getMaxDepth();
+		this.maxNodes = source.getMaxNodes();
+		this.maxJoins = source.getMaxJoins();
+		this.maxMillis = source.getMaxMillis();
+		this.maxRows = source.getMaxRows();
+		this.maxCost = source.getMaxCost();
+	}
+	
+	/**
+	 * Order independent fingerprint of a set of names
+	 * @param names
+	 * @return the sum of the hashes of each name
+	 */
+	static long fingerprint(Set<String> names)
+	{
+		long sum = names.size();
+		for (String name : names)
+			sum += Fingerprints.mix(Fingerprints.SEED, name);
+		return sum;
+	}
+	
+	/**
+	 * Order independent fingerprint of whitelists by name
+	 * @param lists
+	 * @return the sum of the hashes of each name and its whitelist
+	 */
+	static long fingerprint(Map<String, Set<String>> lists)
+	{
+		long sum = lists.size();
+		for (Map.Entry<String, Set<String>> e : lists.entrySet())
+			sum += Fingerprints.mix(Fingerprints.mix(Fingerprints.SEED, e.getKey()), fingerprint(e.getValue()));
+		return sum;
+	}
+	
+	/**
+	 * Order independent fingerprint of row counts by name
+	 * @param rows
+	 * @return the sum of the hashes of each name and its row count
+	 */
+	static long fingerprintRows(Map<String, Long> rows)
+	{
+		long sum = rows.size();
+		for (Map.Entry<String, Long> e : rows.entrySet())
+			sum += Fingerprints.mix(Fingerprints.mix(Fingerprints.SEED, e.getKey()), e.getValue());
+		return sum;
+	}
+	
+	/**
+	 * A fingerprint and the version of the values it was computed from
+	 */
+	private static final class Stamp
+	{
+		/** Version of the values */
+		private final int version;
+		/** Fingerprint of the values */
+		private final long fingerprint;
+		
+		/**
+		 * Creates a new stamp
+		 * @param version
+		 * @param fingerprint
+		 */
+		private Stamp(int version, long fingerprint)
+		{
+			this.version = version;
+			this.fingerprint = fingerprint;
+		}
+	}
 }
@@ -0,0 +1,134 @@
+package com.jf.java.sql;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What an accepted query depends on, as resolved while checking it: the
+ * tables it reads, the aliases given to them and to its sub-selects, the
+ * aliases of its selections and the functions it calls.  Names are as written
+ * in the query and kept in the order they were first seen.
+ *
+ * None of these depend on the values of literals, so dependencies are cached
+ * with verdicts and shared by queries of the same shape.
+ *
+ * @author james
+ *
+ */
+public final class QueryDependencies
+{
+	/** Dependencies of a query which was never walked */
+	static final QueryDependencies EMPTY = new QueryDependencies(
+			Collections.emptySet(),
+			Collections.emptyMap(),
+			Collections.emptySet(),
+			Collections.emptySet(),
+			Collections.emptySet());
+
+	/** Fully qualified names of the tables read */
+	private final Set<String> tables;
+	/** Table names by alias */
+	private final Map<String, String> tableAliases;
+	/** Aliases of sub-selects */
+	private final Set<String> subSelects;
+	/** Aliases of selections */
+	private final Set<String> selectAliases;
+	/** Names of the functions called */
+	private final Set<String> functions;
+
+	/**
+	 * Creates new dependencies
+	 * @param tables
+	 * @param tableAliases
+	 * @param subSelects
+	 * @param selectAliases
+	 * @param functions
+	 */
+	private QueryDependencies(
+			Set<String> tables,
+			Map<String, String> tableAliases,
+			Set<String> subSelects,
+			Set<String> selectAliases,
+			Set<String> functions)
+	{
+		this.tables = tables;
+		this.tableAliases = tableAliases;
+		this.subSelects = subSelects;
+		this.selectAliases = selectAliases;
+		this.functions = functions;
+	}
+
+	/**
+	 * Creates unmodifiable copies of the passed collections
+	 * @param tables
+	 * @param tableAliases
+	 * @param subSelects
+	 * @param selectAliases
+	 * @param functions
+	 * @return the dependencies
+	 */
+	static QueryDependencies copyOf(
+			Set<String> tables,
+			Map<String, String> tableAliases,
+			Set<String> subSelects,
+			Set<String> selectAliases,
+			Set<String> functions)
+	{
+		return new QueryDependencies(
+				Collections.unmodifiableSet(new LinkedHashSet<>(tables)),
+				Collections.unmodifiableMap(new LinkedHashMap<>(tableAliases)),
+				Collections.unmodifiableSet(new LinkedHashSet<>(subSelects)),
+				Collections.unmodifiableSet(new LinkedHashSet<>(selectAliases)),
+				Collections.unmodifiableSet(new LinkedHashSet<>(functions)));
+	}
+
+	/**
+	 * @return the fully qualified names of the tables read
+	 */
+	public Set<String> getTables()
+	{
+		return tables;
+	}
+
+	/**
+	 * @return the fully qualified table names by alias
+	 */
+	public Map<String, String> getTableAliases()
+	{
+		return tableAliases;
+	}
+
+	/**
+	 * @return the aliases of sub-selects
+	 */
+	public Set<String> getSubSelects()
+	{
+		return subSelects;
+	}
+
+	/**
+	 * @return the aliases given to selections
+	 */
+	public Set<String> getSelectAliases()
+	{
+		return selectAliases;
+	}
+
+	/**
+	 * @return the names of the functions called
+	 */
+	public Set<String> getFunctions()
+	{
+		return functions;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "tables=" + tables + ", tableAliases=" + tableAliases + ", subSelects=" + subSelects
+				+ ", selectAliases=" + selectAliases + ", functions=" + functions;
+	}
+}
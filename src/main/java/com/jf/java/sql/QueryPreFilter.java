@@ -0,0 +1,380 @@
+package com.jf.java.sql;
+
+/**
+ * A single pass token scanner which rejects queries that are certain to fail
+ * sanitisation before the full parser runs.  It only rejects what it can prove:
+ * <ul>
+ * <li>blank queries or ones not starting with a statement (S001)</li>
+ * <li>statements other than a SELECT (B001)</li>
+ * <li>a plain table named after FROM or JOIN of a SELECT which is not in the
+ * whitelist (B005)</li>
+ * </ul>
+ * Anything it cannot read with certainty is left to the parser.  The code of a
+ * rejection may differ from the one the full check would report first, but a
+ * query rejected here is always rejected by the full check.
+ *
+ * Apart from the names of checked tables, scanning does not allocate.
+ *
+ * @author james
+ *
+ */
+final class QueryPreFilter
+{
+	/** Statements which are known not to be a SELECT */
+	private static final String[] STATEMENTS = {
+		"INSERT", "UPDATE", "DELETE", "DROP", "CREATE", "ALTER", "TRUNCATE",
+		"SET", "GRANT", "REVOKE", "MERGE", "REPLACE", "UPSERT", "EXECUTE",
+		"EXEC", "CALL", "COMMIT", "ROLLBACK", "DECLARE", "USE", "DESCRIBE",
+		"EXPLAIN", "SHOW", "COMMENT", "LOCK", "COPY", "VACUUM", "ANALYZE",
+		"BEGIN", "START", "RESET", "DO"};
+	/** Words which end a FROM list rather than alias a table */
+	private static final String[] CLAUSES = {
+		"WHERE", "JOIN", "INNER", "LEFT", "RIGHT", "FULL", "CROSS", "NATURAL",
+		"OUTER", "ON", "USING", "GROUP", "ORDER", "HAVING", "LIMIT", "OFFSET",
+		"UNION", "EXCEPT", "INTERSECT", "MINUS", "FETCH", "FOR", "WINDOW",
+		"STRAIGHT_JOIN", "START", "CONNECT", "INTO"};
+	/** Words after FROM which introduce something other than a table */
+	private static final String[] NOT_TABLES = {"LATERAL", "UNNEST", "TABLE", "ONLY"};
+	/** Deepest parenthesis nesting tracked */
+	private static final int MAX_DEPTH = 63;
+
+	/** Query to scan */
+	private final String query;
+	/** Constraints to check tables against */
+	private final QueryConstraints constraints;
+	/** Current position */
+	private int pos;
+	/** Code of the rejection, if any */
+	private String code;
+	/** Offending identifier of the rejection, if any */
+	private String identifier;
+
+	/**
+	 * Creates a new pre-filter for a single query
+	 * @param query
+	 * @param constraints
+	 */
+	QueryPreFilter(String query, QueryConstraints constraints)
+	{
+		this.query = query;
+		this.constraints = constraints;
+	}
+
+	/**
+	 * Scans the query
+	 * @return true if the query is certain to be rejected
+	 */
+	boolean rejects()
+	{
+		int start = next();
+		if (start < 0)
+			return reject("S001", null);
+
+		boolean[] select = new boolean[MAX_DEPTH + 1];
+		int depth = 0;
+
+		char first = query.charAt(start);
+		if (first == '(')
+		{
+			depth = 1;
+			pos = start + 1;
+		}
+		else if (isIdentifierStart(first))
+		{
+			int end = wordEnd(start);
+			if (is(start, end, "SELECT"))
+				select[0] = true;
+			else if (!is(start, end, "WITH"))
+				return reject(isAny(start, end, STATEMENTS) ? "B001" : "S001", null);
+			pos = end;
+		}
+		else
+		{
+			return reject("S001", null);
+		}
+
+		int i;
+		while ((i = next()) >= 0)
+		{
+			char c = query.charAt(i);
+			if (c == '\'')
+			{
+				if (!skipString(i))
+					return false;
+			}
+			else if (c == '$' || c == '\\')
+			{
+				return false;
+			}
+			else if (c == '"' || c == '`' || c == '[')
+			{
+				int end = query.indexOf(c == '[' ? ']' : c, i + 1);
+				if (end < 0)
+					return false;
+				pos = end + 1;
+			}
+			else if (c == '(')
+			{
+				depth++;
+				if (depth <= MAX_DEPTH)
+					select[depth] = false;
+				pos = i + 1;
+			}
+			else if (c == ')')
+			{
+				depth--;
+				if (depth < 0)
+					return false;
+				pos = i + 1;
+			}
+			else if (isIdentifierStart(c))
+			{
+				int end = wordEnd(i);
+				pos = end;
+				if (depth > MAX_DEPTH)
+					continue;
+
+				if (is(i, end, "SELECT"))
+					select[depth] = true;
+				else if (select[depth] && is(i, end, "FROM") && checkTables(true))
+					return true;
+				else if (select[depth] && is(i, end, "JOIN") && checkTables(false))
+					return true;
+			}
+			else
+			{
+				pos = i + 1;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the code of the rejection
+	 */
+	String getCode()
+	{
+		return code;
+	}
+
+	/**
+	 * @return the offending identifier of the rejection, may be null
+	 */
+	String getIdentifier()
+	{
+		return identifier;
+	}
+
+	/**
+	 * Checks the tables following a FROM or JOIN
+	 * @param list true to follow a comma separated FROM list
+	 * @return true if a table is not allowed
+	 */
+	private boolean checkTables(boolean list)
+	{
+		while (true)
+		{
+			int start = next();
+			if (start < 0 || !isIdentifierStart(query.charAt(start)))
+				return false;
+
+			int end = start;
+			int last = start;
+			while (true)
+			{
+				int partEnd = wordEnd(end);
+				if (partEnd < query.length() && query.charAt(partEnd) == '.'
+						&& partEnd + 1 < query.length() && isIdentifierStart(query.charAt(partEnd + 1)))
+				{
+					end = partEnd + 1;
+					last = end;
+					continue;
+				}
+				end = partEnd;
+				break;
+			}
+
+			if (start == last && isAny(start, end, NOT_TABLES))
+				return false;
+			if (end < query.length() && !isDelimiter(end))
+				return false;
+
+			pos = end;
+			int after = next();
+			if (after >= 0 && query.charAt(after) == '(')
+				return false;
+
+			String table = query.substring(start, end);
+			if (!constraints.isTableAllowed(table))
+				return reject("B005", query.substring(last, end));
+
+			if (!list || after < 0)
+				return false;
+
+			if (isIdentifierStart(query.charAt(after)))
+			{
+				int aliasEnd = wordEnd(after);
+				if (isAny(after, aliasEnd, CLAUSES))
+					return false;
+				if (is(after, aliasEnd, "AS"))
+				{
+					pos = aliasEnd;
+					after = next();
+					if (after < 0 || !isIdentifierStart(query.charAt(after)))
+						return false;
+					aliasEnd = wordEnd(after);
+				}
+				pos = aliasEnd;
+				after = next();
+			}
+
+			if (after < 0 || query.charAt(after) != ',')
+				return false;
+			pos = after + 1;
+		}
+	}
+
+	/**
+	 * Records a rejection
+	 * @param code
+	 * @param identifier
+	 * @return true
+	 */
+	private boolean reject(String code, String identifier)
+	{
+		this.code = code;
+		this.identifier = identifier;
+		return true;
+	}
+
+	/**
+	 * Skips whitespace and comments from the current position
+	 * @return the index of the next token, -1 at the end of the query
+	 */
+	private int next()
+	{
+		int len = query.length();
+		while (pos < len)
+		{
+			char c = query.charAt(pos);
+			if (Character.isWhitespace(c))
+			{
+				pos++;
+			}
+			else if (c == '-' && pos + 1 < len && query.charAt(pos + 1) == '-')
+			{
+				int end = query.indexOf('\n', pos);
+				pos = end < 0 ? len : end + 1;
+			}
+			else if (c == '/' && pos + 1 < len && query.charAt(pos + 1) == '*')
+			{
+				int end = query.indexOf("*/", pos + 2);
+				pos = end < 0 ? len : end + 2;
+			}
+			else
+			{
+				return pos;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Skips a quoted string
+	 * @param start index of the opening quote
+	 * @return false if the string cannot be read with certainty
+	 */
+	private boolean skipString(int start)
+	{
+		int i = start + 1;
+		while (i < query.length())
+		{
+			char c = query.charAt(i);
+			if (c == '\\')
+				return false;
+			if (c == '\'')
+			{
+				if (i + 1 < query.length() && query.charAt(i + 1) == '\'')
+				{
+					i += 2;
+					continue;
+				}
+				pos = i + 1;
+				return true;
+			}
+			i++;
+		}
+		return false;
+	}
+
+	/**
+	 * @param start
+	 * @return the index after the word starting at the passed index
+	 */
+	private int wordEnd(int start)
+	{
+		int end = start + 1;
+		while (end < query.length() && isIdentifierPart(query.charAt(end)))
+			end++;
+		return end;
+	}
+
+	/**
+	 * @param start
+	 * @param end
+	 * @param keyword upper case keyword
+	 * @return true if the word between the indices is the keyword
+	 */
+	private boolean is(int start, int end, String keyword)
+	{
+		return end - start == keyword.length()
+				&& query.regionMatches(true, start, keyword, 0, keyword.length());
+	}
+
+	/**
+	 * @param start
+	 * @param end
+	 * @param keywords upper case keywords
+	 * @return true if the word between the indices is any of the keywords
+	 */
+	private boolean isAny(int start, int end, String[] keywords)
+	{
+		for (String keyword : keywords)
+			if (is(start, end, keyword))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param i
+	 * @return true if the character at the passed index may end a table name
+	 */
+	private boolean isDelimiter(int i)
+	{
+		char c = query.charAt(i);
+		if (Character.isWhitespace(c) || c == ',' || c == ')' || c == ';')
+			return true;
+		
+		return i + 1 < query.length() 
+				&& ((c == '-' && query.charAt(i + 1) == '-') 
+				|| (c == '/' && query.charAt(i + 1) == '*'));
+	}
+
+	/**
+	 * @param c
+	 * @return true if the character can start an identifier
+	 */
+	private static boolean isIdentifierStart(char c)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c > 127;
+	}
+
+	/**
+	 * @param c
+	 * @return true if the character can be part of an identifier
+	 */
+	private static boolean isIdentifierPart(char c)
+	{
+		return isIdentifierStart(c) || (c >= '0' && c <= '9') || c == '$';
+	}
+}
@@ -0,0 +1,150 @@
+package com.jf.java.sql;
+
+/**
+ * Thrown when a query fails sanitisation.  Carries the error code and the 
+ * offending identifier so callers can tell the reason apart without parsing
+ * the message.
+ * 
+ * Rejections are created without a stack trace, which is only captured on
+ * request.  The message is built the first time it is asked for.
+ * 
+ * @author james
+ *
+ */
+public class QueryRejectedException extends IllegalArgumentException
+{
+	/** Serial version */
+	private static final long serialVersionUID = 1L;
+	
+	/** Error code, such as B005 */
+	private final String code;
+	/** Description of the error code */
+	private final String description;
+	/** Offending identifier, may be null */
+	private final String identifier;
+	/** Whether the stack trace may be filled in */
+	private boolean stackTrace;
+	/** Lazily built message */
+	private String message;
+	
+	/**
+	 * Creates a new rejection
+	 * @param code error code
+	 * @param description description of the error code
+	 * @param identifier offending identifier, may be null
+	 * @param stackTrace true to capture the stack trace
+	 */
+	public QueryRejectedException(String code, String description, String identifier, boolean stackTrace)
+	{
+		this.code = code;
+		this.description = description;
+		this.identifier = identifier;
+		this.stackTrace = stackTrace;
+		if (stackTrace)
+			fillInStackTrace();
+	}
+	
+	/**
+	 * Creates the rejection type matching the passed error code
+	 * @param code error code
+	 * @param description description of the error code
+	 * @param identifier offending identifier, may be null
+	 * @param stackTrace true to capture the stack trace
+	 * @return the rejection
+	 */
+	public static QueryRejectedException of(String code, String description, String identifier, boolean stackTrace)
+	{
+		switch (code)
+		{
+			case "S001":
+				return new QuerySyntaxException(code, description, identifier, stackTrace);
+			case "B001":
+			case "B002":
+			case "B006":
+			case "B008":
+				return new IllegalStatementException(code, description, identifier, stackTrace);
+			case "B003":
+			case "B009":
+				return new UnknownReferenceException(code, description, identifier, stackTrace);
+			case "B004":
+				return new IllegalExpressionException(code, description, identifier, stackTrace);
+			case "B005":
+				return new TableNotAllowedException(code, description, identifier, stackTrace);
+			case "B007":
+				return new FunctionNotAllowedException(code, description, identifier, stackTrace);
+			case "B010":
+				return new ColumnNotAllowedException(code, description, identifier, stackTrace);
+			case "B012":
+				return new IllegalParameterException(code, description, identifier, stackTrace);
+			case "C001":
+			case "C002":
+			case "C003":
+			case "C004":
+			case "C005":
+			case "C006":
+				return new QueryTooComplexException(code, description, identifier, stackTrace);
+			default:
+				return new QueryRejectedException(code, description, identifier, stackTrace);
+		}
+	}
+	
+	/**
+	 * Formats the message of a rejection
+	 * @param code
+	 * @param description
+	 * @param identifier
+	 * @return the message, such as [B005] - Table not allowed in query (users)
+	 */
+	static String message(String code, String description, String identifier)
+	{
+		StringBuilder sb = new StringBuilder(64);
+		sb.append('[').append(code).append("] - ").append(description);
+		if (identifier != null)
+			sb.append(" (").append(identifier).append(')');
+		return sb.toString();
+	}
+	
+	/**
+	 * @return the error code
+	 */
+	public final String getCode()
+	{
+		return code;
+	}
+	
+	/**
+	 * @return the description of the error code
+	 */
+	public final String getDescription()
+	{
+		return description;
+	}
+	
+	/**
+	 * @return the offending identifier, may be null
+	 */
+	public final String getIdentifier()
+	{
+		return identifier;
+	}
+	
+	@Override
+	public String getMessage()
+	{
+		if (message == null)
+			message = message(code, description, identifier);
+		return message;
+	}
+	
+	/**
+	 * Only fills in the stack trace if it was requested, so rejections thrown
+	 * deep in the walk cost no more than a plain object
+	 */
+	@Override
+	public synchronized Throwable fillInStackTrace()
+	{
+		if (!stackTrace)
+			return this;
+		return super.fillInStackTrace();
+	}
+}
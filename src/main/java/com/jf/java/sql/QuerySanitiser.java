@@ -1,28 +1,54 @@
 package com.jf.java.sql;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.NOPLogger;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.stereotype.Service;
 
+import com.jf.java.sql.DecisionListener.NodeKind;
+
 import net.sf.jsqlparser.JSQLParserException;
 import net.sf.jsqlparser.expression.BinaryExpression;
 import net.sf.jsqlparser.expression.CastExpression;
 import net.sf.jsqlparser.expression.DoubleValue;
 import net.sf.jsqlparser.expression.Expression;
 import net.sf.jsqlparser.expression.Function;
+import net.sf.jsqlparser.expression.JdbcNamedParameter;
+import net.sf.jsqlparser.expression.JdbcParameter;
 import net.sf.jsqlparser.expression.JsonExpression;
 import net.sf.jsqlparser.expression.LongValue;
 import net.sf.jsqlparser.expression.Parenthesis;
 import net.sf.jsqlparser.expression.SignedExpression;
 import net.sf.jsqlparser.expression.StringValue;
 import net.sf.jsqlparser.expression.operators.relational.ExpressionList;
+import net.sf.jsqlparser.expression.operators.relational.InExpression;
 import net.sf.jsqlparser.expression.operators.relational.IsNullExpression;
-import net.sf.jsqlparser.parser.CCJSqlParserUtil;
+import net.sf.jsqlparser.expression.operators.relational.ItemsList;
+import net.sf.jsqlparser.expression.operators.relational.MultiExpressionList;
 import net.sf.jsqlparser.schema.Column;
 import net.sf.jsqlparser.schema.Table;
 import net.sf.jsqlparser.statement.Statement;
@@ -45,104 +71,1131 @@ import net.sf.jsqlparser.statement.select.UnionOp;
  *
  */
 @Service
-public class QuerySanitiser
+public class QuerySanitiser implements InitializingBean
 {
+	/** Mixed into the fingerprint of shape keys so they never match raw text */
+	private static final long SHAPE_KEY = 1L;
+	/** Code of a check which ran out of time, never cached */
+	private static final String TIMEOUT = "C005";
+	/** Marks the end of a nesting level on the expression work stack */
+	private static final Object EXIT = new Object();
+	
 	/** Class logger */
 	private Logger log;
 	/** Map of error codes */
 	private Map<String, String> errorMap;
+	/** Optional cache of verdicts, null if caching is disabled */
+	private VerdictCache verdictCache;
+	/** Whether cached verdicts are shared by queries of the same shape */
+	private boolean normaliseLiterals;
+	/** Whether every query is logged at INFO */
+	private boolean logQueries;
+	/** Optional listener of the decision trace, null if not tracing */
+	private DecisionListener decisionListener;
+	/** Whether thrown rejections capture their stack trace */
+	private boolean stackTraces;
+	/** Executor for batches */
+	private Executor batchExecutor;
+	/** Number of tasks a batch is split into */
+	private int batchParallelism;
+	/** Executor for asynchronous checks */
+	private Executor asyncExecutor;
+	/** Whether the lexical pre-filter runs before parsing */
+	private boolean preFilter;
+	/** Reusable parsers */
+	private ParserPool parsers;
+	/** Optional receiver of measurements, null if not measuring */
+	private SanitiserMetrics metrics;
+	/** Optional catalog columns are resolved against, null if not resolving */
+	private SchemaCatalog schemaCatalog;
+	/** Optional constraints by tenant, null if checks name no tenant */
+	private ConstraintRegistry constraintRegistry;
+	/** Times the warm-up corpus is run, zero to skip warming up */
+	private int warmUpIterations;
+	/** Queries run to warm up */
+	private List<String> warmUpQueries;
+	/** Constraints the warm-up queries are checked with */
+	private QueryConstraints warmUpConstraints;
+	/** Whether the warm-up finished */
+	private volatile boolean warm;
+	/** Time the warm-up took in nanoseconds */
+	private volatile long warmUpNanos;
+	
+	/**
+	 * Default constructor for QuerySanitiser
+	 */
+	public QuerySanitiser()
+	{
+		log = LoggerFactory.getLogger(getClass());
+		logQueries = true;
+		stackTraces = true;
+		batchExecutor = ForkJoinPool.commonPool();
+		batchParallelism = Runtime.getRuntime().availableProcessors();
+		asyncExecutor = AsyncSupport.defaultExecutor();
+		parsers = new ParserPool(2 * Runtime.getRuntime().availableProcessors());
+		warmUpQueries = WarmUpCorpus.QUERIES;
+		warmUpConstraints = WarmUpCorpus.constraints();
+		init();
+		log.info("query sanitiser service created");
+	}
+	
+	/**
+	 * Creates the scratch sanitiser warming up the passed one.  It shares its
+	 * parsers, pre-filter and schema catalog, and logs nothing, since the
+	 * corpus is rejected on purpose.
+	 * @param warming sanitiser being warmed up
+	 */
+	private QuerySanitiser(QuerySanitiser warming)
+	{
+		log = NOPLogger.NOP_LOGGER;
+		parsers = warming.parsers;
+		preFilter = warming.preFilter;
+		schemaCatalog = warming.schemaCatalog;
+		init();
+	}
+	
+	/**
+	 * Initialises the sanitiser and errors
+	 */
+	public void init()
+	{
+		errorMap = new HashMap<String, String>();
+		errorMap.put("B001", "Query is not a SELECT");
+		errorMap.put("B002", "Joined expression is not a TABLE or SELECT");
+		errorMap.put("B003", "Unkown table or alias");
+		errorMap.put("B004", "Illegal expressions");
+		errorMap.put("B005", "Table not allowed in query");
+		errorMap.put("B006", "Illegal selections");
+		errorMap.put("B007", "Function not allowed in query");
+		errorMap.put("B008", "Set operation not allowed");
+		errorMap.put("B009", "Unknown column");
+		errorMap.put("B010", "Column not allowed in query");
+		errorMap.put("B012", "Illegal parameter");
+		errorMap.put("C001", "Query exceeds the length limit");
+		errorMap.put("C002", "Query exceeds the nesting limit");
+		errorMap.put("C003", "Query exceeds the node limit");
+		errorMap.put("C004", "Query exceeds the join limit");
+		errorMap.put("C005", "Query exceeds the time limit");
+		errorMap.put("C006", "Query exceeds the cost limit");
+		errorMap.put("S001", "Failed to parse query");
+		errorMap.put("S002", "Unknown tenant");
+	}
+	
+	/**
+	 * @return the verdict cache, null if caching is disabled
+	 */
+	public final VerdictCache getVerdictCache()
+	{
+		return verdictCache;
+	}
+
+	/**
+	 * @param verdictCache the verdict cache to use, null to disable caching
+	 */
+	public final void setVerdictCache(VerdictCache verdictCache)
+	{
+		this.verdictCache = verdictCache;
+	}
+	
+	/**
+	 * @return true if cached verdicts are shared by queries of the same shape
+	 */
+	public final boolean isNormaliseLiterals()
+	{
+		return normaliseLiterals;
+	}
+
+	/**
+	 * When enabled, queries which only differ in their literal values share 
+	 * one cached verdict, see {@link QueryShape}.  The message of a cached 
+	 * rejection may then mention the literals of the first query of the shape.
+	 * 
+	 * @param normaliseLiterals true to key cached verdicts on the query shape
+	 */
+	public final void setNormaliseLiterals(boolean normaliseLiterals)
+	{
+		this.normaliseLiterals = normaliseLiterals;
+	}
+	
+	/**
+	 * @return true if every query is logged at INFO
+	 */
+	public final boolean isLogQueries()
+	{
+		return logQueries;
+	}
+
+	/**
+	 * @param logQueries false to stop logging the raw SQL of every query
+	 */
+	public final void setLogQueries(boolean logQueries)
+	{
+		this.logQueries = logQueries;
+	}
+
+	/**
+	 * @return the listener of the decision trace, null if not tracing
+	 */
+	public final DecisionListener getDecisionListener()
+	{
+		return decisionListener;
+	}
+
+	/**
+	 * @param decisionListener listener of the decision trace, null to stop
+	 */
+	public final void setDecisionListener(DecisionListener decisionListener)
+	{
+		this.decisionListener = decisionListener;
+	}
+	
+	/**
+	 * @return true if thrown rejections capture their stack trace
+	 */
+	public final boolean isStackTraces()
+	{
+		return stackTraces;
+	}
+
+	/**
+	 * @param stackTraces false to throw rejections without a stack trace
+	 */
+	public final void setStackTraces(boolean stackTraces)
+	{
+		this.stackTraces = stackTraces;
+	}
+	
+	/**
+	 * @return the executor batches are spread across
+	 */
+	public final Executor getBatchExecutor()
+	{
+		return batchExecutor;
+	}
+
+	/**
+	 * @param batchExecutor the executor to spread batches across, defaults to
+	 * the common fork-join pool
+	 */
+	public final void setBatchExecutor(Executor batchExecutor)
+	{
+		this.batchExecutor = batchExecutor;
+	}
+
+	/**
+	 * @return the number of tasks a batch is split into
+	 */
+	public final int getBatchParallelism()
+	{
+		return batchParallelism;
+	}
+
+	/**
+	 * @param batchParallelism the number of tasks a batch is split into, 
+	 * defaults to the number of cores
+	 */
+	public final void setBatchParallelism(int batchParallelism)
+	{
+		this.batchParallelism = batchParallelism;
+	}
+	
+	/**
+	 * @return the executor asynchronous checks run on
+	 */
+	public final Executor getAsyncExecutor()
+	{
+		return asyncExecutor;
+	}
+
+	/**
+	 * @param asyncExecutor the executor to run asynchronous checks on, 
+	 * defaults to virtual threads where the JDK supports them and to the 
+	 * common fork-join pool otherwise
+	 */
+	public final void setAsyncExecutor(Executor asyncExecutor)
+	{
+		this.asyncExecutor = asyncExecutor;
+	}
+	
+	/**
+	 * @return true if the lexical pre-filter runs before parsing
+	 */
+	public final boolean isPreFilter()
+	{
+		return preFilter;
+	}
+
+	/**
+	 * When enabled, a single pass token scan rejects blank queries, non-SELECT
+	 * statements and plain tables outside the whitelist before the full 
+	 * parser runs, see {@link QueryPreFilter}.
+	 * 
+	 * @param preFilter true to run the lexical pre-filter
+	 */
+	public final void setPreFilter(boolean preFilter)
+	{
+		this.preFilter = preFilter;
+	}
+	
+	/**
+	 * @return the receiver of measurements, null if not measuring
+	 */
+	public final SanitiserMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * @param metrics receiver of measurements, null to stop measuring; see
+	 * {@link JmxSanitiserMetrics}
+	 */
+	public final void setMetrics(SanitiserMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * @return the catalog columns are resolved against, null if not resolving
+	 */
+	public final SchemaCatalog getSchemaCatalog()
+	{
+		return schemaCatalog;
+	}
+
+	/**
+	 * When set, every column is resolved against the tables of the query 
+	 * which the catalog knows, and unknown columns are rejected (B009).  The
+	 * verdict cache is cleared since its verdicts were reached without this
+	 * catalog.
+	 * 
+	 * @param schemaCatalog catalog to resolve columns against, null to stop
+	 * resolving; see {@link CsvSchemaCatalog}
+	 */
+	public final void setSchemaCatalog(SchemaCatalog schemaCatalog)
+	{
+		this.schemaCatalog = schemaCatalog;
+		if (verdictCache != null)
+			verdictCache.clear();
+	}
+	
+	/**
+	 * @return the constraints by tenant, null if checks name no tenant
+	 */
+	public final ConstraintRegistry getConstraintRegistry()
+	{
+		return constraintRegistry;
+	}
+
+	/**
+	 * @param constraintRegistry the constraints by tenant used by
+	 * {@link #doSanitiseForTenant(String, String)}, null to only accept constraints
+	 */
+	public final void setConstraintRegistry(ConstraintRegistry constraintRegistry)
+	{
+		this.constraintRegistry = constraintRegistry;
+	}
+	
+	/**
+	 * @return the times the warm-up corpus is run, zero if not warming up
+	 */
+	public final int getWarmUpIterations()
+	{
+		return warmUpIterations;
+	}
+
+	/**
+	 * Opts in to warming up when the bean starts, see {@link #warmUp()}.  Until
+	 * the warm-up finishes the sanitiser is not ready.
+	 * 
+	 * @param warmUpIterations times the warm-up corpus is run, zero to skip
+	 * warming up
+	 */
+	public final void setWarmUpIterations(int warmUpIterations)
+	{
+		this.warmUpIterations = warmUpIterations;
+	}
+
+	/**
+	 * @return the queries run to warm up
+	 */
+	public final List<String> getWarmUpQueries()
+	{
+		return warmUpQueries;
+	}
+
+	/**
+	 * @param warmUpQueries representative queries to warm up with, accepted 
+	 * or not, instead of the built-in corpus
+	 * @param warmUpConstraints constraints to check them with
+	 */
+	public final void setWarmUpQueries(List<String> warmUpQueries, QueryConstraints warmUpConstraints)
+	{
+		this.warmUpQueries = warmUpQueries;
+		this.warmUpConstraints = warmUpConstraints;
+	}
+
+	/**
+	 * @return true once the warm-up finished, or if there is none to run
+	 */
+	public final boolean isReady()
+	{
+		return warm || warmUpIterations <= 0;
+	}
+
+	/**
+	 * @return the time the warm-up took in nanoseconds, zero if it did not run
+	 */
+	public final long getWarmUpNanos()
+	{
+		return warmUpNanos;
+	}
+	
+	/**
+	 * Warms up once Spring has set the properties of the bean
+	 */
+	@Override
+	public void afterPropertiesSet()
+	{
+		warmUp();
+	}
+	
+	/**
+	 * Runs the warm-up corpus through parsing and validation, so that the
+	 * grammar classes are loaded and the walk is compiled before the 
+	 * sanitiser reports ready.  The corpus is checked by a scratch sanitiser 
+	 * with the same parsers, pre-filter and schema catalog, so warm-up 
+	 * queries fill the parser pool but are not logged, measured, traced or 
+	 * cached.  Does nothing if warming up is not enabled or already done.
+	 */
+	public void warmUp()
+	{
+		if (warmUpIterations <= 0 || warm)
+			return;
+		
+		long started = System.nanoTime();
+		QuerySanitiser scratch = new QuerySanitiser(this);
+		
+		int rejected = 0;
+		for (int i = 0; i < warmUpIterations; i++)
+			for (String query : warmUpQueries)
+				if (!scratch.check(query, warmUpConstraints).isAccepted())
+					rejected++;
+		
+		warmUpNanos = System.nanoTime() - started;
+		warm = true;
+		log.info("warmed up with {} checks, {} rejected, in {} ms", 
+				warmUpIterations * warmUpQueries.size(), rejected, TimeUnit.NANOSECONDS.toMillis(warmUpNanos));
+	}
+	
+	/**
+	 * Sanitise the passed raw query using the passed constraints.  The system
+	 * uses a least privilege and fail-fast approach so any missing value in 
+	 * the constraints will immediately fail.
+	 * 
+	 * If a verdict cache is set, the verdict for the same query and 
+	 * constraints is reused instead of parsing the query again.
+	 * 
+	 * @param query
+	 * @param constraints
+	 * @return the accepted result, holding the parsed statement unless the 
+	 * verdict was cached, and what the query depends on
+	 * @throws QueryRejectedException if the query is rejected
+	 */
+	public SanitiseResult doSanitise(String query, QueryConstraints constraints)
+	{
+		SanitiseResult result = check(query, constraints);
+		if (!result.isAccepted())
+			throw result.toException(stackTraces);
+		return result;
+	}
+	
+	/**
+	 * Checks the passed raw query using the passed constraints like 
+	 * {@link #doSanitise(String, QueryConstraints)}, but returns the verdict
+	 * instead of throwing so rejections are as cheap as acceptances.
+	 * 
+	 * @param query
+	 * @param constraints
+	 * @return the result of the check
+	 */
+	public SanitiseResult check(String query, QueryConstraints constraints)
+	{
+		SanitiseResult result = doCheckCached(query, constraints);
+		SanitiserMetrics m = metrics;
+		if (m != null)
+			m.onCheck(query.length(), result.getCode());
+		return result;
+	}
+	
+	/**
+	 * Sanitise the passed raw query using the current constraints of the
+	 * passed tenant in the constraint registry, see 
+	 * {@link #doSanitise(String, QueryConstraints)}.  Unknown tenants are 
+	 * rejected (S002).
+	 * 
+	 * @param query
+	 * @param tenant
+	 * @return the accepted result
+	 * @throws QueryRejectedException if the query is rejected
+	 */
+	public SanitiseResult doSanitiseForTenant(String query, String tenant)
+	{
+		SanitiseResult result = checkForTenant(query, tenant);
+		if (!result.isAccepted())
+			throw result.toException(stackTraces);
+		return result;
+	}
+	
+	/**
+	 * Checks the passed raw query using the current constraints of the 
+	 * passed tenant, see {@link #doSanitiseForTenant(String, String)}
+	 * 
+	 * @param query
+	 * @param tenant
+	 * @return the result of the check
+	 */
+	public SanitiseResult checkForTenant(String query, String tenant)
+	{
+		ConstraintRegistry registry = constraintRegistry;
+		QueryConstraints constraints = registry == null ? null : registry.get(tenant);
+		if (constraints != null)
+			return check(query, constraints);
+		
+		SanitiseResult result = SanitiseResult.rejected("S002", errorMap.get("S002"), tenant);
+		SanitiserMetrics m = metrics;
+		if (m != null)
+			m.onCheck(query.length(), result.getCode());
+		return result;
+	}
+	
+	/**
+	 * Validates a query holding JDBC <code>?</code> or named 
+	 * <code>:name</code> placeholders once, so that values can then be bound
+	 * to it without parsing it again.  Placeholders are allowed wherever a 
+	 * literal is, and the rows are capped like 
+	 * {@link #doSanitise(String, QueryConstraints)} does.  Templates are not
+	 * cached, since they are meant to be kept by the caller.
+	 * 
+	 * @param template
+	 * @param constraints
+	 * @return the validated template
+	 * @throws QueryRejectedException if the query is rejected, or its 
+	 * placeholders are indexed, mixed or capped away (B012)
+	 */
+	public QueryTemplate prepare(String template, QueryConstraints constraints)
+	{
+		SanitiseResult result = doPrepare(template, constraints);
+		QueryTemplate prepared = null;
+		if (result.isAccepted())
+		{
+			try
+			{
+				String sql = result.getRewrittenQuery();
+				if (sql != null && QueryTemplate.count(sql) != QueryTemplate.count(template))
+					error(QueryTemplate.ILLEGAL_PARAMETER, "capped placeholder");
+				prepared = QueryTemplate.of(sql == null ? template : sql, result, 
+						errorMap.get(QueryTemplate.ILLEGAL_PARAMETER), stackTraces);
+			}
+			catch (QueryRejectedException e)
+			{
+				result = SanitiseResult.rejected(e.getCode(), e.getDescription(), e.getIdentifier());
+			}
+		}
+		
+		SanitiserMetrics m = metrics;
+		if (m != null)
+			m.onCheck(template.length(), result.getCode());
+		if (!result.isAccepted())
+			throw result.toException(stackTraces);
+		return prepared;
+	}
+	
+	/**
+	 * Validates a template using the current constraints of the passed 
+	 * tenant, see {@link #prepare(String, QueryConstraints)}.  Unknown 
+	 * tenants are rejected (S002).
+	 * 
+	 * @param template
+	 * @param tenant
+	 * @return the validated template
+	 * @throws QueryRejectedException if the query is rejected
+	 */
+	public QueryTemplate prepareForTenant(String template, String tenant)
+	{
+		ConstraintRegistry registry = constraintRegistry;
+		QueryConstraints constraints = registry == null ? null : registry.get(tenant);
+		if (constraints != null)
+			return prepare(template, constraints);
+		
+		SanitiserMetrics m = metrics;
+		if (m != null)
+			m.onCheck(template.length(), "S002");
+		throw QueryRejectedException.of("S002", errorMap.get("S002"), tenant, stackTraces);
+	}
+	
+	/**
+	 * Sanitises the passed raw query like 
+	 * {@link #doSanitise(String, QueryConstraints)}, then replaces the string
+	 * and number literals of its conditions with JDBC placeholders so that
+	 * the database can reuse one plan for queries differing only in their
+	 * literals.  The query is always parsed, since the verdict cache does not
+	 * keep statements.  String literals are bound as strings whatever the 
+	 * type of the column they are compared with, see 
+	 * {@link LiteralParameteriser}.
+	 * 
+	 * @param query
+	 * @param constraints
+	 * @return the accepted query with its placeholders and their values, the
+	 * query itself if it has no such literals and was not capped
+	 * @throws QueryRejectedException if the query is rejected
+	 */
+	public BoundQuery parameterise(String query, QueryConstraints constraints)
+	{
+		SanitiseResult result;
+		int maxLength = constraints.getMaxQueryLength();
+		if (maxLength > 0 && query.length() > maxLength)
+			result = SanitiseResult.rejected("C001", errorMap.get("C001"), String.valueOf(maxLength));
+		else
+			result = doEvaluate(query, constraints);
+		
+		SanitiserMetrics m = metrics;
+		if (m != null)
+			m.onCheck(query.length(), result.getCode());
+		if (!result.isAccepted())
+			throw result.toException(stackTraces);
+		
+		Statement stmt = result.getStatement();
+		List<Object> values = LiteralParameteriser.parameterise(stmt);
+		String sql = values.isEmpty() && result.getRewrittenQuery() == null ? query : StatementPrinter.print(stmt);
+		return new BoundQuery(sql, Collections.unmodifiableList(values));
+	}
+	
+	/**
+	 * Checks a template with placeholders allowed
+	 * 
+	 * @param template
+	 * @param constraints
+	 * @return the result of the check
+	 */
+	private SanitiseResult doPrepare(String template, QueryConstraints constraints)
+	{
+		int maxLength = constraints.getMaxQueryLength();
+		if (maxLength > 0 && template.length() > maxLength)
+			return SanitiseResult.rejected("C001", errorMap.get("C001"), String.valueOf(maxLength));
+		try
+		{
+			SanitiseContext ctx = new SanitiseContext(constraints, schemaCatalog);
+			ctx.setTemplate(true);
+			Statement stmt = doCheck(template, ctx);
+			return accept(stmt, ctx);
+		}
+		catch (QueryRejectedException e)
+		{
+			return SanitiseResult.rejected(e.getCode(), e.getDescription(), e.getIdentifier());
+		}
+	}
+	
+	/**
+	 * Checks the passed raw query, going through the verdict cache if any
+	 * 
+	 * @param query
+	 * @param constraints
+	 * @return the result of the check
+	 */
+	private SanitiseResult doCheckCached(String query, QueryConstraints constraints)
+	{
+		int maxLength = constraints.getMaxQueryLength();
+		if (maxLength > 0 && query.length() > maxLength)
+			return SanitiseResult.rejected("C001", errorMap.get("C001"), String.valueOf(maxLength));
+		
+		VerdictCache cache = verdictCache;
+		if (cache == null)
+			return doEvaluate(query, constraints);
+		
+		String key = query;
+		long fingerprint = constraints.fingerprint();
+		if (normaliseLiterals && constraints.getMaxRows() <= 0)
+		{
+			QueryShape shape = QueryShape.of(query);
+			if (shape != null)
+			{
+				key = shape.getShape();
+				fingerprint = Fingerprints.mix(fingerprint, SHAPE_KEY);
+			}
+		}
+		
+		SanitiseResult[] computed = new SanitiseResult[1];
+		VerdictCache.Verdict verdict = cache.get(key, fingerprint, () -> {
+			SanitiseResult result = doEvaluate(query, constraints);
+			computed[0] = result;
+			if (result.isAccepted())
+				return VerdictCache.Verdict.accepted(
+						result.getDependencies(), 
+						result.getRewrittenQuery(), 
+						result.getEstimatedCost());
+			if (TIMEOUT.equals(result.getCode()))
+				return VerdictCache.Verdict.rejectedUncached(result.getCode(), result.getIdentifier());
+			return VerdictCache.Verdict.rejected(result.getCode(), result.getIdentifier());
+		});
+		
+		if (computed[0] != null)
+			return computed[0];
+		if (verdict.isAccepted())
+			return SanitiseResult.accepted(
+					null, 
+					verdict.getDependencies(), 
+					verdict.getRewrittenQuery(), 
+					verdict.getEstimatedCost());
+		return SanitiseResult.rejected(
+				verdict.getCode(), 
+				errorMap.get(verdict.getCode()), 
+				verdict.getIdentifier());
+	}
+	
+	/**
+	 * Checks an already parsed statement using the passed constraints.  The 
+	 * verdict cache is not used since there is no query text to key on.
+	 * 
+	 * @param stmt
+	 * @param constraints
+	 * @return the result of the check
+	 */
+	public SanitiseResult check(Statement stmt, QueryConstraints constraints)
+	{
+		SanitiseResult result;
+		try
+		{
+			SanitiseContext ctx = new SanitiseContext(constraints, schemaCatalog);
+			doValidate(stmt, ctx);
+			result = accept(stmt, ctx);
+		}
+		catch (QueryRejectedException e)
+		{
+			result = SanitiseResult.rejected(e.getCode(), e.getDescription(), e.getIdentifier());
+		}
+		
+		SanitiserMetrics m = metrics;
+		if (m != null)
+			m.onCheck(-1, result.getCode());
+		return result;
+	}
+	
+	/**
+	 * Checks the passed query on the async executor, see 
+	 * {@link #check(String, QueryConstraints)}.
+	 * 
+	 * @param query
+	 * @param constraints
+	 * @return a future completed with the result
+	 */
+	public CompletableFuture<SanitiseResult> checkAsync(String query, QueryConstraints constraints)
+	{
+		return checkAsync(query, constraints, 0, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Checks the passed query on the async executor with a deadline.  If the
+	 * deadline passes first, the future fails with a {@link TimeoutException}.
+	 * Cancelling the future, or the deadline passing, before the check starts
+	 * skips the check altogether; a check already running completes but its 
+	 * result is discarded.
+	 * 
+	 * @param query
+	 * @param constraints
+	 * @param timeout deadline from now, zero or less for none
+	 * @param unit unit of the timeout
+	 * @return a future completed with the result
+	 */
+	public CompletableFuture<SanitiseResult> checkAsync(
+			String query, 
+			QueryConstraints constraints, 
+			long timeout, 
+			TimeUnit unit)
+	{
+		CompletableFuture<SanitiseResult> future = new CompletableFuture<>();
+		if (timeout > 0)
+		{
+			ScheduledFuture<?> deadline = AsyncSupport.deadlines().schedule(
+					() -> future.completeExceptionally(
+							new TimeoutException("Query not checked within " + timeout + " " + unit)),
+					timeout, 
+					unit);
+			future.whenComplete((r, e) -> deadline.cancel(false));
+		}
+		
+		try
+		{
+			asyncExecutor.execute(() -> {
+				if (future.isDone())
+					return;
+				
+				try
+				{
+					future.complete(check(query, constraints));
+				}
+				catch (RuntimeException | Error e)
+				{
+					future.completeExceptionally(e);
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	
+	/**
+	 * Checks every statement of a script as it is read, see 
+	 * {@link #checkScript(Reader, QueryConstraints, Consumer)}.  The script 
+	 * is read as UTF-8 and the stream is not closed.
+	 * 
+	 * @param script
+	 * @param constraints
+	 * @param consumer receives the verdict of each statement
+	 * @return the number of statements checked
+	 * @throws IOException if the script cannot be read
+	 */
+	public int checkScript(InputStream script, QueryConstraints constraints, Consumer<ScriptVerdict> consumer) 
+			throws IOException
+	{
+		return checkScript(new InputStreamReader(script, StandardCharsets.UTF_8), constraints, consumer);
+	}
+	
+	/**
+	 * Checks every statement of a UTF-8 script file as it is read, see 
+	 * {@link #checkScript(Reader, QueryConstraints, Consumer)}.  The file is 
+	 * memory mapped a window at a time rather than read through a stream.
+	 * 
+	 * @param script
+	 * @param constraints
+	 * @param consumer receives the verdict of each statement
+	 * @return the number of statements checked
+	 * @throws IOException if the script cannot be read
+	 */
+	public int checkScript(Path script, QueryConstraints constraints, Consumer<ScriptVerdict> consumer) 
+			throws IOException
+	{
+		try (Reader reader = new MappedFileReader(script, MappedFileReader.WINDOW))
+		{
+			return checkScript(reader, constraints, consumer);
+		}
+	}
 	
 	/**
-	 * Default constructor for QuerySanitiser
+	 * Checks every statement of a script as it is read.  Statements are split
+	 * on semicolons outside strings, quoted names and comments, and each one
+	 * is checked and handed to the consumer before the next is read, so only
+	 * one statement is held in memory at a time.  A statement longer than the
+	 * length limit of the constraints is not kept in full; it is reported as
+	 * C001 with its first characters.
+	 * 
+	 * Results do not hold the parsed statements, only their dependencies, and
+	 * the reader is not closed.
+	 * 
+	 * @param script
+	 * @param constraints
+	 * @param consumer receives the verdict of each statement
+	 * @return the number of statements checked
+	 * @throws IOException if the script cannot be read
 	 */
-	public QuerySanitiser()
+	public int checkScript(Reader script, QueryConstraints constraints, Consumer<ScriptVerdict> consumer) 
+			throws IOException
 	{
-		log = LoggerFactory.getLogger(getClass());
-		init();
-		log.info("query sanitiser service created");
+		int maxLength = constraints.getMaxQueryLength();
+		ScriptSplitter splitter = new ScriptSplitter(script, maxLength);
+		int count = 0;
+		while (splitter.next())
+		{
+			String query = splitter.getText();
+			SanitiseResult result = splitter.isTruncated()
+					? SanitiseResult.rejected("C001", errorMap.get("C001"), String.valueOf(maxLength))
+					: check(query, constraints).withoutStatement();
+			consumer.accept(new ScriptVerdict(count++, splitter.getOffset(), splitter.getLine(), query, result));
+		}
+		return count;
 	}
 	
 	/**
-	 * Initialises the sanitiser and errors
+	 * Checks all the passed queries against the same constraints, see
+	 * {@link #checkAll(List)}.
+	 * 
+	 * @param queries
+	 * @param constraints
+	 * @return the results in the order of the queries
 	 */
-	public void init()
+	public List<SanitiseResult> checkAll(Collection<String> queries, QueryConstraints constraints)
 	{
-		errorMap = new HashMap<String, String>();
-		errorMap.put("B001", "Query is not a SELECT");
-		errorMap.put("B002", "Joined expression is not a TABLE or SELECT");
-		errorMap.put("B003", "Unkown table or alias");
-		errorMap.put("B004", "Illegal expressions");
-		errorMap.put("B005", "Table not allowed in query");
-		errorMap.put("B006", "Illegal selections");
-		errorMap.put("B007", "Function not allowed in query");
-		errorMap.put("B008", "Set operation not allowed");
-		errorMap.put("S001", "Failed to parse query");
+		List<SanitiseRequest> requests = new ArrayList<>(queries.size());
+		for (String query : queries)
+			requests.add(new SanitiseRequest(query, constraints));
+		return checkAll(requests);
 	}
 	
 	/**
-	 * Sanitise the passed raw query using the passed constraints.  The system
-	 * uses a least privilege and fail-fast approach so any missing value in 
-	 * the constraints will immediately fail.
+	 * Checks a batch of queries, each against its own constraints.  Every 
+	 * distinct query and constraints pair is checked once, and the work is 
+	 * spread across the batch executor.
+	 * 
+	 * @param requests
+	 * @return the results in the order of the requests
+	 */
+	public List<SanitiseResult> checkAll(List<SanitiseRequest> requests)
+	{
+		Map<VerdictCache.Key, Integer> index = new HashMap<>();
+		List<SanitiseRequest> distinct = new ArrayList<>();
+		int[] slots = new int[requests.size()];
+		for (int i = 0; i < slots.length; i++)
+		{
+			SanitiseRequest request = requests.get(i);
+			VerdictCache.Key key = new VerdictCache.Key(
+					request.getQuery(), request.getConstraints().fingerprint());
+			Integer slot = index.putIfAbsent(key, distinct.size());
+			if (slot == null)
+			{
+				slot = distinct.size();
+				distinct.add(request);
+			}
+			slots[i] = slot;
+		}
+		
+		SanitiseResult[] results = new SanitiseResult[distinct.size()];
+		int tasks = Math.min(distinct.size(), Math.max(1, batchParallelism));
+		if (tasks <= 1)
+		{
+			doCheckRange(distinct, results, 0, results.length);
+		}
+		else
+		{
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[tasks];
+			for (int t = 0; t < tasks; t++)
+			{
+				int from = (int) ((long) results.length * t / tasks);
+				int to = (int) ((long) results.length * (t + 1) / tasks);
+				futures[t] = CompletableFuture.runAsync(
+						() -> doCheckRange(distinct, results, from, to), 
+						batchExecutor);
+			}
+			
+			try
+			{
+				CompletableFuture.allOf(futures).join();
+			}
+			catch (CompletionException e)
+			{
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw e;
+			}
+		}
+		
+		List<SanitiseResult> ordered = new ArrayList<>(slots.length);
+		for (int slot : slots)
+			ordered.add(results[slot]);
+		return ordered;
+	}
+	
+	/**
+	 * Checks a range of a batch
+	 * 
+	 * @param requests
+	 * @param results where to store the results
+	 * @param from first index, inclusive
+	 * @param to last index, exclusive
+	 */
+	private void doCheckRange(List<SanitiseRequest> requests, SanitiseResult[] results, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+		{
+			SanitiseRequest request = requests.get(i);
+			results[i] = check(request.getQuery(), request.getConstraints());
+		}
+	}
+	
+	/**
+	 * Checks the query and captures the outcome as a result
 	 * 
 	 * @param query
 	 * @param constraints
+	 * @return the result for the query
+	 */
+	private SanitiseResult doEvaluate(String query, QueryConstraints constraints)
+	{
+		try
+		{
+			SanitiseContext ctx = new SanitiseContext(constraints, schemaCatalog);
+			Statement stmt = doCheck(query, ctx);
+			return accept(stmt, ctx);
+		}
+		catch (QueryRejectedException e)
+		{
+			return SanitiseResult.rejected(e.getCode(), e.getDescription(), e.getIdentifier());
+		}
+	}
+	
+	/**
+	 * Creates the result of an accepted statement with its estimated cost,
+	 * capping the rows it returns if the constraints ask for it
+	 * 
+	 * @param stmt
+	 * @param ctx state of the check
+	 * @return the accepted result
+	 */
+	private SanitiseResult accept(Statement stmt, SanitiseContext ctx)
+	{
+		long maxRows = ctx.getConstraints().getMaxRows();
+		String rewritten = null;
+		if (maxRows > 0 && RowLimiter.cap(stmt, maxRows))
+			rewritten = StatementPrinter.print(stmt);
+		return SanitiseResult.accepted(stmt, ctx.getDependencies(), rewritten, ctx.getCost());
+	}
+	
+	/**
+	 * Parses and checks the passed query, failing on the first violation
+	 * 
+	 * @param query
+	 * @param ctx state of the check
+	 * @return the parsed statement
 	 */
-	public void doSanitise(String query, QueryConstraints constraints)
+	private Statement doCheck(String query, SanitiseContext ctx)
 	{
-		Map<String, Table> tblIndex = new HashMap<String, Table>();
-		Map<String, SubSelect> subSelIndex = new HashMap<String, SubSelect>();
-		Set<String> aliases = new HashSet<>();
+		QueryConstraints constraints = ctx.getConstraints();
+		int maxDepth = constraints.getMaxDepth();
+		if (maxDepth > 0 && SanitiseContext.isTooDeep(query, maxDepth))
+			error("C002", String.valueOf(maxDepth));
+		
+		if (preFilter)
+		{
+			QueryPreFilter filter = new QueryPreFilter(query, constraints);
+			if (filter.rejects())
+				error(filter.getCode(), filter.getIdentifier());
+		}
 		
+		SanitiserMetrics m = metrics;
+		long started = m == null ? 0 : System.nanoTime();
 		Statement stmt = null;
 		try
 		{
-			log.info("Parsing " + query);
-			stmt = CCJSqlParserUtil.parse(query);
-			if (!(stmt instanceof Select))
-				error("B001");
+			if (logQueries)
+				log.info("Parsing {}", query);
+			stmt = parsers.parse(query);
 		}
 		catch (JSQLParserException e) 
 		{
 			error("S001");
 		}
+		catch (StackOverflowError e)
+		{
+			error("C002", String.valueOf(maxDepth));
+		}
+		finally
+		{
+			if (m != null)
+				m.onParse(System.nanoTime() - started);
+		}
 		
-		Select selection = (Select) stmt;
-		SelectBody selBody = selection.getSelectBody();
+		if (ctx.isExpired())
+			error(TIMEOUT, String.valueOf(constraints.getMaxMillis()));
+		
+		doValidate(stmt, ctx);
+		return stmt;
+	}
+	
+	/**
+	 * Checks an already parsed statement, failing on the first violation, then
+	 * estimates its cost.  A walk which overflows the stack is reported as too
+	 * deeply nested.
+	 * 
+	 * @param stmt
+	 * @param ctx
+	 */
+	private void doValidate(Statement stmt, SanitiseContext ctx)
+	{
+		SanitiserMetrics m = metrics;
+		long started = m == null ? 0 : System.nanoTime();
+		try
+		{
+			if (!(stmt instanceof Select))
+				error("B001");
+			
+			Select selection = (Select) stmt;
+			SelectBody selBody = selection.getSelectBody();
+			doProcessSelect(selBody, null, ctx);
+			doEstimate(stmt, ctx);
+		}
+		catch (StackOverflowError e)
+		{
+			error("C002", String.valueOf(ctx.getConstraints().getMaxDepth()));
+		}
+		finally
+		{
+			if (m != null)
+				m.onValidate(System.nanoTime() - started);
+		}
+	}
+	
+	/**
+	 * Estimates the cost of a valid statement if the constraints have a cost
+	 * limit or row count hints, failing if it is over the limit
+	 * 
+	 * @param stmt
+	 * @param ctx state of the check
+	 */
+	private void doEstimate(Statement stmt, SanitiseContext ctx)
+	{
+		QueryConstraints constraints = ctx.getConstraints();
+		long maxCost = constraints.getMaxCost();
+		if (maxCost <= 0 && !constraints.hasRowEstimates())
+			return;
 		
-		doProcessSelect(selBody, tblIndex, subSelIndex, aliases, constraints);
+		long cost = CostEstimator.estimate(stmt, constraints);
+		ctx.setCost(cost);
+		boolean allowed = maxCost <= 0 || cost <= maxCost;
+		decide(NodeKind.COST, null, String.valueOf(cost), allowed);
+		if (!allowed)
+			error("C006", String.valueOf(maxCost));
 	}
 	
 	/**
-	 * Processes a SELECT body to verify the tables are whitelisted.  All tables
-	 * are added to the index of aliases, as well as the full name.
+	 * Processes a SELECT body to verify the tables are whitelisted.  Each 
+	 * SELECT gets its own scope, where its tables are added by alias as well
+	 * as full name, and which falls back to the passed parent: the enclosing
+	 * SELECT for a correlated sub-select, or the one around it for a 
+	 * sub-select in FROM, which cannot see its siblings but whose selected 
+	 * names are visible to the SELECT reading it.
 	 * 
 	 * @param selBody
-	 * @param tblIndex
-	 * @param subSelIndex
-	 * @param aliases 
-	 * @param constraints 
-	 */
-	private void doProcessSelect(
-			SelectBody selBody, 
-			Map<String, Table> tblIndex, 
-			Map<String, SubSelect> subSelIndex,
-			Set<String> aliases,
-			QueryConstraints constraints)
+	 * @param parent scope names fall back to, null for the outermost
+	 * @param ctx state of the check
+	 * @return the scope of the SELECT, or of the first SELECT of a set 
+	 * operation, which names its output columns
+	 */
+	private SymbolScope doProcessSelect(SelectBody selBody, SymbolScope parent, SanitiseContext ctx)
 	{
 		log.trace("Processing SELECT");
+		count(ctx);
 		
 		if (!(selBody instanceof PlainSelect))
 		{
 			if (selBody instanceof SetOperationList)
 			{
 				for (SetOperation op : ((SetOperationList) selBody).getOperations())
-					if (!(op instanceof UnionOp))
+				{
+					boolean allowed = op instanceof UnionOp;
+					decide(NodeKind.SET_OPERATION, null, op.getClass().getSimpleName(), allowed);
+					if (!allowed)
 						error("B008");
+				}
 				
+				SymbolScope first = null;
 				for (SelectBody sel : ((SetOperationList)selBody).getSelects())
-					doProcessSelect(sel, tblIndex, subSelIndex, aliases, constraints);
-				
-				return;
+				{
+					SymbolScope scope = doProcessSelect(sel, parent, ctx);
+					if (first == null)
+						first = scope;
+				}
+				return first;
 			}
 			else
 			{
@@ -151,6 +1204,10 @@ public class QuerySanitiser
 		}
 		
 		PlainSelect select = (PlainSelect) selBody;
+		decide(NodeKind.SELECT, null, null, true);
+		SymbolScope outer = ctx.getScope();
+		SymbolScope scope = new SymbolScope(parent);
+		ctx.setScope(scope);
 		
 		log.trace("Processing SELECTed aliases");
 		for (SelectItem si : select.getSelectItems())
@@ -159,9 +1216,14 @@ public class QuerySanitiser
 			{
 				SelectExpressionItem sei = (SelectExpressionItem) si;
 				if (sei.getExpression() instanceof Column)
-					aliases.add(((Column)sei.getExpression()).getColumnName());
+					scope.addColumn(((Column)sei.getExpression()).getColumnName());
+				if (sei.getExpression() instanceof Column && sei.getAlias() == null)
+					scope.addOutput(((Column)sei.getExpression()).getColumnName());
 				if (sei.getAlias() != null)
-					aliases.add(sei.getAlias().getName());
+				{
+					scope.addAlias(sei.getAlias().getName());
+					ctx.addSelectAlias(sei.getAlias().getName());
+				}
 			}
 		}
 		
@@ -169,7 +1231,7 @@ public class QuerySanitiser
 		{
 			log.trace("Processing FROM");
 			FromItem from = select.getFromItem();
-			doProcessFrom(from, tblIndex, subSelIndex, aliases, constraints);
+			doProcessFrom(from, ctx);
 		}
 		
 		if (select.getJoins() != null)
@@ -177,40 +1239,35 @@ public class QuerySanitiser
 			log.trace("Processing JOINs");
 			for (Join join : select.getJoins())
 			{
-				log.trace(join.toString());
+				log.trace("{}", join);
+				if (!ctx.join())
+					error("C004", String.valueOf(ctx.getConstraints().getMaxJoins()));
 				
 				FromItem from = join.getRightItem();
-				doProcessFrom(from, tblIndex, subSelIndex, aliases, constraints);
+				doProcessFrom(from, ctx);
 				
 				if (join.getOnExpression() != null)
-					doProcessExpression(
-							join.getOnExpression(), 
-							tblIndex, 
-							subSelIndex,
-							aliases,
-							constraints);
+					doProcessExpression(join.getOnExpression(), ctx);
 			}
 		}
 		
 		if (select.getWhere() != null)
 		{
 			log.trace("Processing WHERE");
-			doProcessExpression(select.getWhere(), tblIndex, 
-					subSelIndex, aliases, constraints);
+			doProcessExpression(select.getWhere(), ctx);
 		}
 		
 		if (select.getGroupByColumnReferences() != null)
 		{
 			log.trace("Processing GROUP BY");
 			for (Expression gb : select.getGroupByColumnReferences())
-				doProcessExpression(gb, tblIndex, subSelIndex, aliases, constraints);
+				doProcessExpression(gb, ctx);
 		}
 		
 		if (select.getHaving() != null)
 		{
 			log.trace("Processing HAVING");
-			doProcessExpression(select.getHaving(), tblIndex, 
-					subSelIndex, aliases, constraints);
+			doProcessExpression(select.getHaving(), ctx);
 		}
 		
 		log.trace("Processing FIELDS");
@@ -220,14 +1277,20 @@ public class QuerySanitiser
 			{
 				SelectExpressionItem sei = (SelectExpressionItem) si;
 				Expression exp = sei.getExpression();
-				doProcessExpression(exp, tblIndex, subSelIndex, aliases, constraints);
+				doProcessExpression(exp, ctx);
 			}
 			else if (si instanceof AllColumns)
 			{
 				log.trace("All columns");
+				scope.addWildcard();
+				String restricted = restricted(scope, ctx.getConstraints());
+				decide(NodeKind.COLUMN, restricted, "*", restricted == null);
+				if (restricted != null)
+					error("B010", restricted + ".*");
 			}
 			else
 			{
+				decide(NodeKind.EXPRESSION, null, si.getClass().getSimpleName(), false);
 				error("B006");
 			}
 		}
@@ -241,7 +1304,7 @@ public class QuerySanitiser
 				{
 					SelectExpressionItem sei = (SelectExpressionItem) distinctItem;
 					Expression exp = sei.getExpression();
-					doProcessExpression(exp, tblIndex, subSelIndex, aliases, constraints);
+					doProcessExpression(exp, ctx);
 				}
 			}
 		}
@@ -250,9 +1313,34 @@ public class QuerySanitiser
 		{
 			log.trace("Processing ORDER BY");
 			for (OrderByElement oe : select.getOrderByElements())
-				doProcessExpression(oe.getExpression(), tblIndex, 
-						subSelIndex, aliases, constraints);
+				doProcessOrderBy(oe, ctx);
+		}
+		ctx.setScope(outer);
+		return scope;
+	}
+	
+	/**
+	 * Processes an ORDER BY element.  A bare name which is the alias of a 
+	 * selection sorts by that selection, which has been checked already, 
+	 * even if a table has a column of the same name.  Any other expression 
+	 * reads the columns of the tables, so aliases in it are resolved as 
+	 * columns.
+	 * 
+	 * @param oe
+	 * @param ctx state of the check
+	 */
+	private void doProcessOrderBy(OrderByElement oe, SanitiseContext ctx)
+	{
+		Expression exp = oe.getExpression();
+		if (exp instanceof Column && ((Column) exp).getTable().getFullyQualifiedName().isEmpty() 
+				&& ctx.getScope().isAlias(((Column) exp).getColumnName()))
+		{
+			count(ctx);
+			log.trace("ALIS:{}", exp);
+			decide(NodeKind.COLUMN, null, ((Column) exp).getColumnName(), true);
+			return;
 		}
+		doProcessExpression(exp, ctx);
 	}
 	
 	/**
@@ -260,40 +1348,45 @@ public class QuerySanitiser
 	 * query
 	 * 
 	 * @param from item to process
-	 * @param tblIndex Index of table aliases
-	 * @param subSelIndex Index of sub-select aliases
-	 * @param aliases 
-	 * @param constraints constraints for the query
-	 */
-	private void doProcessFrom(
-			FromItem from, 
-			Map<String, Table> tblIndex, 
-			Map<String, SubSelect> subSelIndex,
-			Set<String> aliases,
-			QueryConstraints constraints)
+	 * @param ctx state of the check
+	 */
+	private void doProcessFrom(FromItem from, SanitiseContext ctx)
 	{
+		count(ctx);
 		if (from instanceof Table)
 		{
 			Table tbl = (Table) from;
-			if (!constraints.isTableAllowed(tbl.getFullyQualifiedName()))
+			boolean allowed = ctx.getConstraints().isTableAllowed(tbl);
+			decide(NodeKind.TABLE, tbl.getName(), tbl.getAlias() == null ? null : tbl.getAlias().getName(), allowed);
+			if (!allowed)
 				error("B005", tbl.getName());
 				
-			log.trace("From of type table, " + tbl.getName() + " AS " + tbl.getAlias());
-			if (tbl.getAlias() != null)
-				tblIndex.put(tbl.getAlias().getName(), tbl);
-			tblIndex.put(tbl.getFullyQualifiedName(), tbl);
+			log.trace("From of type table, {} AS {}", tbl.getName(), tbl.getAlias());
+			String name = tbl.getFullyQualifiedName();
+			String alias = tbl.getAlias() == null ? null : tbl.getAlias().getName();
+			ctx.getScope().addTable(name, alias, tbl);
+			ctx.addTable(name, alias);
 		}
 		else if (from instanceof SubSelect)
 		{
 			SubSelect sub= (SubSelect) from;
 			log.trace("From of type sub-select");
-			doProcessSelect(sub.getSelectBody(), tblIndex, subSelIndex, aliases, constraints);
+			enter(ctx);
+			SymbolScope scope = ctx.getScope();
+			SymbolScope inner = doProcessSelect(sub.getSelectBody(), scope.getParent(), ctx);
+			ctx.exit();
 			
-			if (from.getAlias() != null)
-				subSelIndex.put(from.getAlias().getName(), sub);
+			String alias = from.getAlias() == null ? null : from.getAlias().getName();
+			scope.addSubSelect(alias, inner);
+			if (alias != null)
+				ctx.addSubSelect(alias);
+			decide(NodeKind.SUB_SELECT, from.getAlias() == null ? null : from.getAlias().getName(), null, true);
 		}
 		else
+		{
+			decide(NodeKind.SUB_SELECT, null, from.getClass().getSimpleName(), false);
 			error("B002", from.toString());
+		}
 	}
 	
 	/**
@@ -301,121 +1394,399 @@ public class QuerySanitiser
 	 * white list and every column reference is checked against the used tables
 	 * and their aliases.  
 	 * 
-	 * @param exp
-	 * @param tblIndex
-	 * @param subselIndex
-	 * @param aliases 
-	 * @param constraints 
-	 */
-	private void doProcessExpression(
-			Expression exp, 
-			Map<String, Table> tblIndex, 
-			Map<String, SubSelect> subselIndex,
-			Set<String> aliases,
-			QueryConstraints constraints)
-	{
-		log.trace("Processing expression " + exp);
-		if (exp instanceof Column)
-		{
-			Column col = (Column) exp;
-			String tbl = col.getTable().getFullyQualifiedName();
-			log.trace("COLM:" + col.getColumnName() + " OF " + tbl);
-			
-			if (!tblIndex.containsKey(tbl) && 
-					!subselIndex.containsKey(tbl) && 
-					!aliases.contains(col.getColumnName()))
-				error("B003", tbl);
-			
-			if (tblIndex.containsKey(tbl))
-				log.trace("table (" + tblIndex.get(tbl).getFullyQualifiedName() + ")");
-			if (subselIndex.containsKey(tbl))
-				log.trace("sub-select (" + subselIndex.get(tbl).getAlias() + ")");
-		}
-		else if (exp instanceof JsonExpression)
+	 * The expression tree is walked with an explicit work stack rather than 
+	 * recursion, so long chains of AND and OR terms do not grow the thread 
+	 * stack.  Nodes are still visited depth first, left to right, so the first
+	 * violation reported is the same as with a recursive walk.  The stack is 
+	 * shared with the walks of sub-selects in IN conditions, which only pop 
+	 * what they pushed.
+	 * 
+	 * @param root
+	 * @param ctx state of the check
+	 */
+	private void doProcessExpression(Expression root, SanitiseContext ctx)
+	{
+		ArrayDeque<Object> work = ctx.getWork();
+		int base = work.size();
+		work.push(root);
+		
+		while (work.size() > base)
 		{
-			JsonExpression json = (JsonExpression) exp;
-			doProcessExpression(json.getColumn(), tblIndex, subselIndex, aliases, constraints);
-			log.trace("JSON:" + json + " - on column " + json.getColumn());
+			Object next = work.pop();
+			if (next == EXIT)
+			{
+				ctx.exit();
+				continue;
+			}
+			
+			Expression exp = (Expression) next;
+			count(ctx);
+			if (exp instanceof Column)
+			{
+				Column col = (Column) exp;
+				String tbl = col.getTable().getFullyQualifiedName();
+				log.trace("COLM:{} OF {}", col.getColumnName(), tbl);
+				
+				SymbolScope scope = ctx.getScope();
+				boolean allowed = tbl.isEmpty() ? scope.hasColumn(col.getColumnName()) : scope.isDefined(tbl);
+				String code = allowed ? resolve(col, tbl, ctx) : "B003";
+				decide(NodeKind.COLUMN, tbl, col.getColumnName(), code == null);
+				if (code != null)
+					error(code, code.equals("B003") ? tbl : col.getFullyQualifiedName());
+			}
+			else if (exp instanceof JsonExpression)
+			{
+				JsonExpression json = (JsonExpression) exp;
+				log.trace("JSON on column");
+				work.push(json.getColumn());
+			}
+			else if (exp instanceof Function)
+			{
+				Function func = (Function) exp;
+				log.trace("FUNC:{}", func.getName());
+				
+				boolean allowed = ctx.getConstraints().isFunctionAllowed(func.getName());
+				decide(NodeKind.FUNCTION, null, func.getName(), allowed);
+				if (!allowed)
+					error("B007", func.getName());
+				ctx.addFunction(func.getName());
+				
+				ExpressionList args = func.getParameters();
+				if (args != null)
+				{
+					enter(ctx);
+					work.push(EXIT);
+					List<Expression> list = args.getExpressions();
+					for (int i = list.size() - 1; i >= 0; i--)
+						work.push(list.get(i));
+				}
+			}
+			else if (exp instanceof BinaryExpression)
+			{
+				BinaryExpression bin = (BinaryExpression) exp;
+				log.trace("BINR:{}", bin.getStringExpression());
+				work.push(bin.getRightExpression());
+				work.push(bin.getLeftExpression());
+			}
+			else if (exp instanceof LongValue || exp instanceof DoubleValue)
+			{
+				log.trace("NMBR:{}", exp);
+			}
+			else if (exp instanceof SignedExpression)
+			{
+				SignedExpression signed = (SignedExpression) exp;
+				log.trace("SIGN:{}", signed.getSign());
+				work.push(signed.getExpression());
+			}
+			else if (exp instanceof StringValue)
+			{
+				log.trace("STRG:{}", exp);
+			}
+			else if (exp instanceof InExpression)
+			{
+				InExpression in = (InExpression) exp;
+				ItemsList right = in.getRightItemsList();
+				if (right instanceof SubSelect)
+				{
+					log.trace("IN:sub-select");
+					enter(ctx);
+					doProcessLeft(in, ctx);
+					doProcessSelect(((SubSelect) right).getSelectBody(), ctx.getScope(), ctx);
+					ctx.exit();
+					decide(NodeKind.SUB_SELECT, null, null, true);
+				}
+				else if (right instanceof ExpressionList)
+				{
+					doProcessValues(((ExpressionList) right).getExpressions(), work);
+					pushLeft(in, work);
+				}
+				else if (right instanceof MultiExpressionList)
+				{
+					List<ExpressionList> rows = ((MultiExpressionList) right).getExprList();
+					for (int i = rows.size() - 1; i >= 0; i--)
+						doProcessValues(rows.get(i).getExpressions(), work);
+					pushLeft(in, work);
+				}
+				else
+				{
+					decide(NodeKind.EXPRESSION, null, exp.getClass().getSimpleName(), false);
+					error("B004", String.valueOf(right));
+				}
+			}
+			else if (exp instanceof Parenthesis)
+			{
+				Parenthesis par = (Parenthesis) exp;
+				log.trace("PRTS");
+				enter(ctx);
+				work.push(EXIT);
+				work.push(par.getExpression());
+			}
+			else if (exp instanceof IsNullExpression)
+			{
+				IsNullExpression isNull = (IsNullExpression) exp;
+				log.trace("INUL");
+				work.push(isNull.getLeftExpression());
+			}
+			else if (exp instanceof CastExpression)
+			{
+				CastExpression cast = (CastExpression) exp;
+				log.trace("CAST:{}", cast.getType());
+				work.push(cast.getLeftExpression());
+			}
+			else if (ctx.isTemplate() && (exp instanceof JdbcParameter || exp instanceof JdbcNamedParameter))
+			{
+				log.trace("PARM:{}", exp);
+				decide(NodeKind.EXPRESSION, null, exp.toString(), true);
+			}
+			else
+			{
+				decide(NodeKind.EXPRESSION, null, exp.getClass().getSimpleName(), false);
+				error("B004", exp.getClass().toString());
+			}
 		}
-		else if (exp instanceof Function)
+	}
+	
+	/**
+	 * Checks the values of an IN list.  A list of literals of one kind, 
+	 * numbers or strings, is checked in a single pass without logging, so 
+	 * lists of thousands of values cost little more than parsing them and 
+	 * count as a single node.  Any other list is pushed on the work stack to 
+	 * be walked like other expressions.
+	 * 
+	 * @param values
+	 * @param work
+	 */
+	private void doProcessValues(List<Expression> values, ArrayDeque<Object> work)
+	{
+		int size = values.size();
+		int kind = size == 0 ? 0 : literalKind(values.get(0));
+		int i = 1;
+		while (kind != 0 && i < size && literalKind(values.get(i)) == kind)
+			i++;
+		
+		if (kind != 0 && i == size)
 		{
-			Function func = (Function) exp;
-			
-			if (!constraints.isFunctionAllowed(func.getName()))
-				error("B007", func.getName());
-			
-			ExpressionList args = func.getParameters();
-			if (args != null)
-				for (Expression e : args.getExpressions())
-					doProcessExpression(e, tblIndex, subselIndex, aliases, constraints);
-			
-			log.trace("FUNC:" + func.getName() + " (" + args + ")");
+			log.trace("IN:{} literals", size);
+			return;
 		}
-		else if (exp instanceof BinaryExpression)
+		for (i = size - 1; i >= 0; i--)
+			work.push(values.get(i));
+	}
+	
+	/**
+	 * Walks what is tested by an IN condition with a sub-select, before the
+	 * sub-select itself
+	 * 
+	 * @param in
+	 * @param ctx state of the check
+	 */
+	private void doProcessLeft(InExpression in, SanitiseContext ctx)
+	{
+		if (in.getLeftExpression() != null)
 		{
-			BinaryExpression bin = (BinaryExpression) exp;
-			Expression left = bin.getLeftExpression();
-			Expression right = bin.getRightExpression();
-			doProcessExpression(left, tblIndex, subselIndex, aliases, constraints);
-			doProcessExpression(right, tblIndex, subselIndex, aliases, constraints);
-			log.trace("BINR: " + bin.getStringExpression() + "(" + left + "," + right + ")");
+			doProcessExpression(in.getLeftExpression(), ctx);
 		}
-		else if (exp instanceof LongValue || exp instanceof DoubleValue)
+		else if (in.getLeftItemsList() instanceof ExpressionList)
 		{
-			log.trace("NMBR:" + exp.toString());
+			for (Expression exp : ((ExpressionList) in.getLeftItemsList()).getExpressions())
+				doProcessExpression(exp, ctx);
 		}
-		else if (exp instanceof SignedExpression)
+	}
+	
+	/**
+	 * Pushes what is tested by an IN condition on the work stack, so it is 
+	 * walked before the values
+	 * 
+	 * @param in
+	 * @param work
+	 */
+	private static void pushLeft(InExpression in, ArrayDeque<Object> work)
+	{
+		if (in.getLeftExpression() != null)
 		{
-			SignedExpression signed = (SignedExpression) exp;
-			doProcessExpression(signed.getExpression(), tblIndex, subselIndex, aliases, constraints);
-			log.trace("SIGN:" + signed.getExpression() + "(" + signed.getSign() + ")");
+			work.push(in.getLeftExpression());
 		}
-		else if (exp instanceof StringValue)
+		else if (in.getLeftItemsList() instanceof ExpressionList)
 		{
-			StringValue sv = (StringValue) exp;
-			log.trace("STRG:" + sv.getNotExcapedValue() + " => " + sv.getValue());
+			List<Expression> list = ((ExpressionList) in.getLeftItemsList()).getExpressions();
+			for (int i = list.size() - 1; i >= 0; i--)
+				work.push(list.get(i));
 		}
-		else if (exp instanceof Parenthesis)
+	}
+	
+	/**
+	 * @param exp
+	 * @return 1 for a string literal, 2 for a number, possibly signed, and 0 
+	 * for any other expression
+	 */
+	private static int literalKind(Expression exp)
+	{
+		if (exp instanceof LongValue || exp instanceof DoubleValue)
+			return 2;
+		if (exp instanceof StringValue)
+			return 1;
+		if (exp instanceof SignedExpression && ((SignedExpression) exp).getSign() != '~')
 		{
-			Parenthesis par = (Parenthesis) exp;
-			doProcessExpression(par.getExpression(), tblIndex, subselIndex, aliases, constraints);
-			log.trace("PRTS:" + par.getExpression());
+			Expression signed = ((SignedExpression) exp).getExpression();
+			return signed instanceof LongValue || signed instanceof DoubleValue ? 2 : 0;
 		}
-		else if (exp instanceof IsNullExpression)
+		return 0;
+	}
+	
+	/**
+	 * Resolves a column against the catalog and checks it against the column
+	 * whitelists.  A qualified column belongs to the table it names, or must 
+	 * be an output column of the sub-select it names; an unqualified one to
+	 * the tables in scope which have it and the sub-selects which output it.
+	 * If the catalog cannot tell which table that is, the column must be 
+	 * allowed by the whitelist of every table in scope.  Columns which could
+	 * belong to a table the catalog does not know are not resolved.  Aliases
+	 * of selections are resolved like columns, since only ORDER BY reads 
+	 * them, see {@link #doProcessOrderBy(OrderByElement, SanitiseContext)}.
+	 * 
+	 * @param col
+	 * @param qualifier table or alias the column is qualified with, empty if
+	 * none
+	 * @param ctx state of the check
+	 * @return null if the column is allowed, otherwise the error code
+	 */
+	private String resolve(Column col, String qualifier, SanitiseContext ctx)
+	{
+		SchemaCatalog catalog = ctx.getCatalog();
+		QueryConstraints constraints = ctx.getConstraints();
+		SymbolScope scope = ctx.getScope();
+		String name = col.getColumnName();
+		if (!qualifier.isEmpty())
 		{
-			IsNullExpression isNull = (IsNullExpression) exp;
-			doProcessExpression(isNull.getLeftExpression(), tblIndex, subselIndex, aliases, constraints);
-			log.trace("INUL:" + isNull.getLeftExpression());
+			SymbolScope sub = scope.getSubSelect(qualifier);
+			if (sub != null)
+				return sub.outputs(name) ? null : "B009";
+			
+			Table table = scope.getTable(qualifier);
+			if (table == null || (catalog == null && !constraints.hasColumnWhitelists()))
+				return null;
+			
+			String tbl = table.getFullyQualifiedName();
+			if (catalog != null && catalog.hasTable(tbl) && !catalog.hasColumn(tbl, name))
+				return "B009";
+			return constraints.isColumnAllowed(tbl, name) ? null : "B010";
 		}
-		else if (exp instanceof CastExpression)
+		
+		if (catalog == null && !constraints.hasColumnWhitelists())
+			return null;
+		
+		boolean found = false;
+		boolean unknown = false;
+		boolean sources = false;
+		boolean denied = false;
+		for (SymbolScope s = scope; s != null; s = s.getParent())
 		{
-			CastExpression cast = (CastExpression) exp;
-			doProcessExpression(cast.getLeftExpression(), tblIndex, subselIndex, aliases, constraints);
-			log.trace("CAST:" + cast.getLeftExpression() + " to " + cast.getType().getDataType());
+			unknown |= s.readsColumn(name);
+			sources |= s.getSubSelectCount() > 0;
+			for (int i = 0; i < s.getTableCount(); i++)
+			{
+				String tbl = s.getTableName(i);
+				sources = true;
+				denied |= !constraints.isColumnAllowed(tbl, name);
+				
+				if (catalog == null || !catalog.hasTable(tbl))
+				{
+					unknown = true;
+					continue;
+				}
+				if (!catalog.hasColumn(tbl, name))
+					continue;
+				
+				found = true;
+				if (!constraints.isColumnAllowed(tbl, name))
+					return "B010";
+			}
 		}
-		else
-			error("B004", exp.getClass().toString());
+		
+		if (found)
+			return null;
+		if (!unknown && sources)
+			return "B009";
+		return denied ? "B010" : null;
+	}
+	
+	/**
+	 * A wildcard would select the columns of a table left out of its column
+	 * whitelist, and the catalog cannot list the columns to check them one by
+	 * one, so it is only allowed if no table of the SELECT has a whitelist.
+	 * Sub-selects have checked their own columns.
+	 * 
+	 * @param scope scope of the SELECT
+	 * @param constraints
+	 * @return the first table of the SELECT with a column whitelist, null if
+	 * none has one
+	 */
+	private static String restricted(SymbolScope scope, QueryConstraints constraints)
+	{
+		for (int i = 0; i < scope.getTableCount(); i++)
+			if (constraints.hasColumnWhitelist(scope.getTableName(i)))
+				return scope.getTableName(i);
+		return null;
+	}
+	
+	/**
+	 * Goes one level deeper into the query, failing if it is nested too deep
+	 * @param ctx
+	 */
+	private void enter(SanitiseContext ctx)
+	{
+		if (!ctx.enter())
+			error("C002", String.valueOf(ctx.getConstraints().getMaxDepth()));
+	}
+	
+	/**
+	 * Counts a checked node, failing if the query has too many nodes or the
+	 * check ran out of time
+	 * @param ctx
+	 */
+	private void count(SanitiseContext ctx)
+	{
+		if (!ctx.node())
+			error("C003", String.valueOf(ctx.getConstraints().getMaxNodes()));
+		if (ctx.isExpired())
+			error(TIMEOUT, String.valueOf(ctx.getConstraints().getMaxMillis()));
+	}
+	
+	/**
+	 * Reports a decision to the listener, if any.  Callers pass values they
+	 * already hold so nothing is built when no listener is attached.
+	 * 
+	 * @param kind
+	 * @param table
+	 * @param name
+	 * @param allowed
+	 */
+	private void decide(NodeKind kind, String table, String name, boolean allowed)
+	{
+		DecisionListener listener = decisionListener;
+		if (listener != null)
+			listener.onDecision(kind, table, name, allowed);
 	}
 	
 	
+	/**
+	 * Fails the check using the passed error code.  The rejection is created
+	 * without a stack trace since it never leaves the sanitiser as is.
+	 * @param code
+	 */
+	private void error(String code)
+	{
+		error(code, null);
+	}
+	
 	/**
 	 * Fails the check using the passed error code
 	 * @param code
-	 * @param params optional values that indicate the error
+	 * @param identifier value that indicates the error, may be null
 	 */
-	private void error(String code, String ... params)
+	private void error(String code, String identifier)
 	{
-		log.info("Throwing error " + code);
-		String message = "[" + code + "] - ";
-		message += errorMap.get(code);
-		
-		if (params != null)
-			message += " (";
-		for (String param : params)
-			message += param + ",";
-		if (params != null)
-			message = message.substring(0, message.length() - 1) + ")";
-		
-		throw new IllegalArgumentException(message);
+		log.info("Throwing error {}", code);
+		throw QueryRejectedException.of(code, errorMap.get(code), identifier, false);
 	}
 }
@@ -0,0 +1,283 @@
+package com.jf.java.sql;
+
+/**
+ * The literal insensitive shape of a query.  String and numeric literals are
+ * replaced by typed placeholders and whitespace is collapsed, so queries which
+ * only differ in their literal values have the same shape and the same hash.
+ *
+ * The sanitiser never decides on the value of a literal, so all queries of the
+ * same shape share the same verdict.  Queries which cannot be tokenised with
+ * certainty (backslashes in strings, dollar quoting, unterminated literals or
+ * numbers running into identifiers) have no shape and are handled as is.
+ * Placeholders start with a control character, so a query which contains
+ * that character has no shape either and can never be mistaken for the
+ * shape of another.
+ *
+ * @author james
+ *
+ */
+public final class QueryShape
+{
+	/** Starts every placeholder, a control character no shape is made of */
+	private static final char PLACEHOLDER = '\u0001';
+	/** Placeholder for string literals */
+	private static final String STRING = PLACEHOLDER + "s";
+	/** Placeholder for integer literals */
+	private static final String INTEGER = PLACEHOLDER + "i";
+	/** Placeholder for decimal literals */
+	private static final String DECIMAL = PLACEHOLDER + "d";
+
+	/** The normalised query */
+	private final String shape;
+	/** Stable hash of the normalised query */
+	private final long hash;
+	/** Number of literals replaced */
+	private final int literals;
+
+	/**
+	 * Creates a new shape
+	 * @param shape
+	 * @param literals
+	 */
+	private QueryShape(String shape, int literals)
+	{
+		this.shape = shape;
+		this.literals = literals;
+
+		long h = Fingerprints.SEED;
+		for (int i = 0; i < shape.length(); i++)
+			h = Fingerprints.mix(h, shape.charAt(i));
+		this.hash = h;
+	}
+
+	/**
+	 * Normalises the passed query in a single pass
+	 *
+	 * @param query
+	 * @return the shape of the query or null if it cannot be safely normalised
+	 */
+	public static QueryShape of(String query)
+	{
+		if (query.indexOf(PLACEHOLDER) >= 0)
+			return null;
+
+		int len = query.length();
+		StringBuilder out = new StringBuilder(len);
+		int literals = 0;
+		boolean space = false;
+
+		int i = 0;
+		while (i < len)
+		{
+			char c = query.charAt(i);
+
+			if (Character.isWhitespace(c))
+			{
+				space = out.length() > 0;
+				i++;
+				continue;
+			}
+
+			if (space)
+			{
+				out.append(' ');
+				space = false;
+			}
+
+			if (c == '\'')
+			{
+				int end = skipString(query, i);
+				if (end < 0)
+					return null;
+
+				out.append(STRING);
+				literals++;
+				i = end;
+			}
+			else if (c == '"' || c == '`')
+			{
+				int end = query.indexOf(c, i + 1);
+				if (end < 0)
+					return null;
+
+				out.append(query, i, end + 1);
+				i = end + 1;
+			}
+			else if (c == '-' && i + 1 < len && query.charAt(i + 1) == '-')
+			{
+				int end = query.indexOf('\n', i);
+				end = end < 0 ? len : end + 1;
+				out.append(query, i, end);
+				i = end;
+			}
+			else if (c == '/' && i + 1 < len && query.charAt(i + 1) == '*')
+			{
+				int end = query.indexOf("*/", i + 2);
+				if (end < 0)
+					return null;
+
+				out.append(query, i, end + 2);
+				i = end + 2;
+			}
+			else if (c == '$' || c == '[' || c == '\\')
+			{
+				return null;
+			}
+			else if (isIdentifierPart(c))
+			{
+				if (isDigit(c) || (c == '.' && i + 1 < len && isDigit(query.charAt(i + 1))))
+				{
+					int end = skipNumber(query, i);
+					if (end < 0)
+						return null;
+
+					out.append(isInteger(query, i, end) ? INTEGER : DECIMAL);
+					literals++;
+					i = end;
+				}
+				else
+				{
+					int end = i + 1;
+					while (end < len && isIdentifierPart(query.charAt(end)) && query.charAt(end) != '.')
+						end++;
+					out.append(query, i, end);
+					i = end;
+				}
+			}
+			else
+			{
+				out.append(c);
+				i++;
+			}
+		}
+
+		return new QueryShape(out.toString(), literals);
+	}
+
+	/**
+	 * @return the normalised query
+	 */
+	public String getShape()
+	{
+		return shape;
+	}
+
+	/**
+	 * @return the stable 64-bit hash of the normalised query
+	 */
+	public long getHash()
+	{
+		return hash;
+	}
+
+	/**
+	 * @return the number of literals replaced by placeholders
+	 */
+	public int getLiterals()
+	{
+		return literals;
+	}
+
+	@Override
+	public String toString()
+	{
+		return shape;
+	}
+
+	/**
+	 * Finds the end of a quoted string starting at the passed index
+	 * @param query
+	 * @param start index of the opening quote
+	 * @return the index after the closing quote, -1 if not safely terminated
+	 */
+	private static int skipString(String query, int start)
+	{
+		int i = start + 1;
+		while (i < query.length())
+		{
+			char c = query.charAt(i);
+			if (c == '\\')
+				return -1;
+			if (c == '\'')
+			{
+				if (i + 1 < query.length() && query.charAt(i + 1) == '\'')
+				{
+					i += 2;
+					continue;
+				}
+				return i + 1;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the end of a number starting at the passed index
+	 * @param query
+	 * @param start index of the first digit or the decimal point
+	 * @return the index after the number, -1 if it runs into an identifier
+	 */
+	private static int skipNumber(String query, int start)
+	{
+		int len = query.length();
+		int i = start;
+		while (i < len && isDigit(query.charAt(i)))
+			i++;
+		if (i < len && query.charAt(i) == '.')
+		{
+			i++;
+			while (i < len && isDigit(query.charAt(i)))
+				i++;
+		}
+		if (i < len && (query.charAt(i) == 'e' || query.charAt(i) == 'E'))
+		{
+			int exp = i + 1;
+			if (exp < len && (query.charAt(exp) == '+' || query.charAt(exp) == '-'))
+				exp++;
+			if (exp < len && isDigit(query.charAt(exp)))
+			{
+				i = exp;
+				while (i < len && isDigit(query.charAt(i)))
+					i++;
+			}
+		}
+
+		if (i < len && isIdentifierPart(query.charAt(i)))
+			return -1;
+		return i;
+	}
+
+	/**
+	 * @param query
+	 * @param start
+	 * @param end
+	 * @return true if the number between the passed indices is an integer
+	 */
+	private static boolean isInteger(String query, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+			if (!isDigit(query.charAt(i)))
+				return false;
+		return true;
+	}
+
+	/**
+	 * @param c
+	 * @return true if the character is an ASCII digit
+	 */
+	private static boolean isDigit(char c)
+	{
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * @param c
+	 * @return true if the character can be part of an identifier or number
+	 */
+	private static boolean isIdentifierPart(char c)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isDigit(c)
+				|| c == '_' || c == '.' || c > 127;
+	}
+}
@@ -0,0 +1,25 @@
+package com.jf.java.sql;
+
+/**
+ * The query could not be parsed (S001)
+ * 
+ * @author james
+ *
+ */
+public class QuerySyntaxException extends QueryRejectedException
+{
+	/** Serial version */
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Creates a new rejection
+	 * @param code error code
+	 * @param description description of the error code
+	 * @param identifier offending identifier, may be null
+	 * @param stackTrace true to capture the stack trace
+	 */
+	public QuerySyntaxException(String code, String description, String identifier, boolean stackTrace)
+	{
+		super(code, description, identifier, stackTrace);
+	}
+}
@@ -0,0 +1,343 @@
+package com.jf.java.sql;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.temporal.Temporal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A query with JDBC <code>?</code> or named <code>:name</code> placeholders,
+ * validated once by {@link QuerySanitiser#prepare(String, QueryConstraints)}.
+ * Binding values only checks their number and types, so the query is never
+ * parsed again.
+ *
+ * Named placeholders are turned into JDBC ones, each occurrence taking the
+ * value bound to its name.  Values must be null, strings, characters,
+ * booleans, finite numbers of the JDK number types, dates, times or UUIDs;
+ * anything else is rejected (B012), as are missing or extra values.
+ *
+ * A template is immutable and can be bound from any number of threads.
+ *
+ * @author james
+ *
+ */
+public final class QueryTemplate
+{
+	/** Code of an illegal placeholder or value */
+	static final String ILLEGAL_PARAMETER = "B012";
+
+	/** Query with JDBC placeholders */
+	private final String query;
+	/** Name of each placeholder in order, empty if they are not named */
+	private final String[] names;
+	/** Distinct names of the placeholders, in order */
+	private final Set<String> parameterNames;
+	/** Number of placeholders */
+	private final int count;
+	/** Result of validating the template */
+	private final SanitiseResult result;
+	/** Description of the error code */
+	private final String description;
+	/** Whether rejections capture their stack trace */
+	private final boolean stackTraces;
+
+	/**
+	 * Creates a new template
+	 * @param query
+	 * @param names
+	 * @param count
+	 * @param result
+	 * @param description
+	 * @param stackTraces
+	 */
+	private QueryTemplate(
+			String query,
+			String[] names,
+			int count,
+			SanitiseResult result,
+			String description,
+			boolean stackTraces)
+	{
+		this.query = query;
+		this.names = names;
+		this.parameterNames = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(names)));
+		this.count = count;
+		this.result = result;
+		this.description = description;
+		this.stackTraces = stackTraces;
+	}
+
+	/**
+	 * Creates the template of a validated query
+	 *
+	 * @param sql validated query, with its row cap if any
+	 * @param result result of the validation
+	 * @param description description of the error code
+	 * @param stackTraces true to capture the stack trace of rejections
+	 * @return the template
+	 * @throws QueryRejectedException if placeholders are mixed or indexed
+	 */
+	static QueryTemplate of(String sql, SanitiseResult result, String description, boolean stackTraces)
+	{
+		List<String> names = new ArrayList<>();
+		StringBuilder query = new StringBuilder(sql.length());
+		int positional = scan(sql, names, query);
+		if (positional < 0)
+			throw QueryRejectedException.of(ILLEGAL_PARAMETER, description, "indexed placeholder", stackTraces);
+		if (positional > 0 && !names.isEmpty())
+			throw QueryRejectedException.of(ILLEGAL_PARAMETER, description, "mixed placeholders", stackTraces);
+
+		return new QueryTemplate(
+				query.toString(),
+				names.toArray(new String[0]),
+				positional + names.size(),
+				result,
+				description,
+				stackTraces);
+	}
+
+	/**
+	 * Counts the placeholders of a query, ignoring those in strings, quoted
+	 * names and comments
+	 *
+	 * @param sql
+	 * @return the number of placeholders
+	 */
+	static int count(String sql)
+	{
+		List<String> names = new ArrayList<>();
+		int positional = scan(sql, names, new StringBuilder(sql.length()));
+		return positional < 0 ? -1 : positional + names.size();
+	}
+
+	/**
+	 * @return the query with JDBC placeholders
+	 */
+	public String getQuery()
+	{
+		return query;
+	}
+
+	/**
+	 * @return the number of placeholders
+	 */
+	public int getParameterCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @return the distinct names of the placeholders in order, empty if they
+	 * are not named
+	 */
+	public Set<String> getParameterNames()
+	{
+		return parameterNames;
+	}
+
+	/**
+	 * @return what the query depends on
+	 */
+	public QueryDependencies getDependencies()
+	{
+		return result.getDependencies();
+	}
+
+	/**
+	 * @return the estimated cost of the query, -1 if not estimated
+	 */
+	public long getEstimatedCost()
+	{
+		return result.getEstimatedCost();
+	}
+
+	/**
+	 * Binds values to the placeholders in order
+	 *
+	 * @param values one per placeholder
+	 * @return the bound query
+	 * @throws QueryRejectedException if the placeholders are named, or a
+	 * value is missing, extra or of an illegal type
+	 */
+	public BoundQuery bind(Object... values)
+	{
+		if (names.length > 0)
+			throw error("named placeholders");
+		if (values.length != count)
+			throw error(count + " values expected");
+
+		Object[] copy = values.clone();
+		for (int i = 0; i < copy.length; i++)
+			if (!isBindable(copy[i]))
+				throw error("value " + (i + 1) + " of type " + copy[i].getClass().getName());
+		return new BoundQuery(query, Collections.unmodifiableList(Arrays.asList(copy)));
+	}
+
+	/**
+	 * Binds values to the placeholders by name
+	 *
+	 * @param values one per distinct name
+	 * @return the bound query
+	 * @throws QueryRejectedException if the placeholders are not named, or a
+	 * value is missing, extra or of an illegal type
+	 */
+	public BoundQuery bind(Map<String, ?> values)
+	{
+		if (names.length == 0 && count > 0)
+			throw error("positional placeholders");
+
+		for (String name : parameterNames)
+			if (!values.containsKey(name))
+				throw error("value of " + name + " missing");
+		if (values.size() != parameterNames.size())
+			for (String name : values.keySet())
+				if (!parameterNames.contains(name))
+					throw error("unknown name " + name);
+
+		Object[] bound = new Object[names.length];
+		for (int i = 0; i < bound.length; i++)
+		{
+			Object value = values.get(names[i]);
+			if (!isBindable(value))
+				throw error("value of " + names[i] + " of type " + value.getClass().getName());
+			bound[i] = value;
+		}
+		return new BoundQuery(query, Collections.unmodifiableList(Arrays.asList(bound)));
+	}
+
+	@Override
+	public String toString()
+	{
+		return query;
+	}
+
+	/**
+	 * @param identifier
+	 * @return the rejection of a binding
+	 */
+	private QueryRejectedException error(String identifier)
+	{
+		return QueryRejectedException.of(ILLEGAL_PARAMETER, description, identifier, stackTraces);
+	}
+
+	/**
+	 * @param value
+	 * @return true if the value is of a type which can be bound
+	 */
+	private static boolean isBindable(Object value)
+	{
+		if (value == null || value instanceof String || value instanceof Character || value instanceof Boolean)
+			return true;
+		if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+				|| value instanceof BigDecimal || value instanceof BigInteger)
+			return true;
+		if (value instanceof Double)
+			return Double.isFinite((Double) value);
+		if (value instanceof Float)
+			return Float.isFinite((Float) value);
+		return value instanceof Date || value instanceof Temporal || value instanceof UUID;
+	}
+
+	/**
+	 * Finds the placeholders of a query, copying it with named placeholders
+	 * turned into JDBC ones.  Strings, quoted names, comments and
+	 * <code>::</code> casts are skipped.
+	 *
+	 * @param sql
+	 * @param names receives the name of each named placeholder in order
+	 * @param out receives the query with JDBC placeholders
+	 * @return the number of JDBC placeholders, -1 if one is indexed
+	 */
+	private static int scan(String sql, List<String> names, StringBuilder out)
+	{
+		int positional = 0;
+		int len = sql.length();
+		int i = 0;
+		while (i < len)
+		{
+			char ch = sql.charAt(i);
+			int end = skip(sql, i);
+			if (end > i)
+			{
+				out.append(sql, i, end);
+				i = end;
+			}
+			else if (ch == '?')
+			{
+				if (i + 1 < len && Character.isDigit(sql.charAt(i + 1)))
+					return -1;
+				positional++;
+				out.append('?');
+				i++;
+			}
+			else if (ch == ':' && i + 1 < len && sql.charAt(i + 1) == ':')
+			{
+				out.append("::");
+				i += 2;
+			}
+			else if (ch == ':' && i + 1 < len && (Character.isLetter(sql.charAt(i + 1)) || sql.charAt(i + 1) == '_'))
+			{
+				int start = ++i;
+				while (i < len && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_'))
+					i++;
+				names.add(sql.substring(start, i));
+				out.append('?');
+			}
+			else
+			{
+				out.append(ch);
+				i++;
+			}
+		}
+		return positional;
+	}
+
+	/**
+	 * @param sql
+	 * @param i position of a character
+	 * @return the end of the string, quoted name or comment starting at the
+	 * position, the position itself if none starts there
+	 */
+	private static int skip(String sql, int i)
+	{
+		char ch = sql.charAt(i);
+		char next = i + 1 < sql.length() ? sql.charAt(i + 1) : 0;
+		switch (ch)
+		{
+			case '\'':
+			case '"':
+			case '`':
+				return after(sql, i + 1, String.valueOf(ch));
+			case '[':
+				return after(sql, i + 1, "]");
+			case '$':
+				return next == '$' ? after(sql, i + 2, "$$") : i;
+			case '-':
+				return next == '-' ? after(sql, i + 2, "\n") : i;
+			case '/':
+				return next == '*' ? after(sql, i + 2, "*/") : i;
+			default:
+				return i;
+		}
+	}
+
+	/**
+	 * @param sql
+	 * @param from
+	 * @param terminator
+	 * @return the position after the terminator, or the end of the query
+	 */
+	private static int after(String sql, int from, String terminator)
+	{
+		int at = sql.indexOf(terminator, from);
+		return at < 0 ? sql.length() : at + terminator.length();
+	}
+}
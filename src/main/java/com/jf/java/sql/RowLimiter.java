@@ -0,0 +1,220 @@
+package com.jf.java.sql;
+
+import java.util.List;
+
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.LongValue;
+import net.sf.jsqlparser.statement.Statement;
+import net.sf.jsqlparser.statement.select.Fetch;
+import net.sf.jsqlparser.statement.select.Limit;
+import net.sf.jsqlparser.statement.select.OrderByElement;
+import net.sf.jsqlparser.statement.select.PlainSelect;
+import net.sf.jsqlparser.statement.select.Select;
+import net.sf.jsqlparser.statement.select.SelectBody;
+import net.sf.jsqlparser.statement.select.SetOperation;
+import net.sf.jsqlparser.statement.select.SetOperationList;
+import net.sf.jsqlparser.statement.select.Top;
+import net.sf.jsqlparser.statement.select.UnionOp;
+
+/**
+ * Caps the number of rows an accepted SELECT returns by adding or tightening
+ * its LIMIT, FETCH or TOP.  Only the outermost result is capped: sub-selects
+ * feed aggregates and joins, so capping them would change the answer.
+ *
+ * The selects of a set operation keep their own limits, except in an
+ * unordered UNION ALL where no more than the cap can be taken from each of
+ * them, so any limit above the cap is tightened too.
+ *
+ * @author james
+ *
+ */
+final class RowLimiter
+{
+	/**
+	 * Not instantiable
+	 */
+	private RowLimiter()
+	{
+	}
+
+	/**
+	 * Caps the rows returned by the passed statement, changing it in place
+	 *
+	 * @param stmt an accepted SELECT
+	 * @param maxRows maximum number of rows
+	 * @return true if the statement was changed
+	 */
+	static boolean cap(Statement stmt, long maxRows)
+	{
+		if (!(stmt instanceof Select))
+			return false;
+
+		SelectBody body = ((Select) stmt).getSelectBody();
+		if (body instanceof PlainSelect)
+			return cap((PlainSelect) body, maxRows, true);
+
+		if (body instanceof SetOperationList)
+		{
+			SetOperationList list = (SetOperationList) body;
+			boolean changed = false;
+			if (isEmpty(list.getOrderByElements()) && isUnionAll(list.getOperations()))
+				for (SelectBody sel : list.getSelects())
+					if (sel instanceof PlainSelect)
+						changed |= cap((PlainSelect) sel, maxRows, false);
+
+			if (list.getFetch() != null)
+				return capFetch(list.getFetch(), maxRows) || changed;
+			if (hasTrailingLimit(list))
+			{
+				List<SelectBody> selects = list.getSelects();
+				return cap((PlainSelect) selects.get(selects.size() - 1), maxRows, false) || changed;
+			}
+
+			Limit limit = list.getLimit();
+			if (limit == null)
+			{
+				list.setLimit(limit(maxRows));
+				return true;
+			}
+			return capLimit(limit, maxRows) || changed;
+		}
+		return false;
+	}
+
+	/**
+	 * Caps a plain select
+	 * @param select
+	 * @param maxRows
+	 * @param add true to add a limit if there is none
+	 * @return true if the select was changed
+	 */
+	private static boolean cap(PlainSelect select, long maxRows, boolean add)
+	{
+		if (select.getFetch() != null)
+			return capFetch(select.getFetch(), maxRows);
+		if (select.getTop() != null)
+			return capTop(select.getTop(), maxRows);
+
+		Limit limit = select.getLimit();
+		if (limit == null)
+		{
+			if (!add)
+				return false;
+			select.setLimit(limit(maxRows));
+			return true;
+		}
+		return capLimit(limit, maxRows);
+	}
+
+	/**
+	 * Tightens a LIMIT, replacing ALL, NULL and any row count which is not a
+	 * number since it cannot be checked
+	 * @param limit
+	 * @param maxRows
+	 * @return true if the limit was changed
+	 */
+	private static boolean capLimit(Limit limit, long maxRows)
+	{
+		if (!limit.isLimitAll() && !limit.isLimitNull() && isWithin(limit.getRowCount(), maxRows))
+			return false;
+
+		limit.setLimitAll(false);
+		limit.setLimitNull(false);
+		limit.setRowCount(new LongValue(maxRows));
+		return true;
+	}
+
+	/**
+	 * Tightens a FETCH FIRST, replacing a parameter
+	 * @param fetch
+	 * @param maxRows
+	 * @return true if the fetch was changed
+	 */
+	private static boolean capFetch(Fetch fetch, long maxRows)
+	{
+		if (!fetch.isFetchJdbcParameter() && fetch.getRowCount() <= maxRows)
+			return false;
+
+		fetch.setFetchJdbcParameter(false);
+		fetch.setRowCount(maxRows);
+		return true;
+	}
+
+	/**
+	 * Tightens a TOP, replacing percentages and parameters
+	 * @param top
+	 * @param maxRows
+	 * @return true if the top was changed
+	 */
+	private static boolean capTop(Top top, long maxRows)
+	{
+		if (!top.isPercentage() && isWithin(top.getExpression(), maxRows))
+			return false;
+
+		top.setPercentage(false);
+		top.setExpression(new LongValue(maxRows));
+		return true;
+	}
+
+	/**
+	 * @param rowCount
+	 * @param maxRows
+	 * @return true if the row count is a number within the cap
+	 */
+	private static boolean isWithin(Expression rowCount, long maxRows)
+	{
+		return rowCount instanceof LongValue && ((LongValue) rowCount).getValue() <= maxRows;
+	}
+
+	/**
+	 * @param maxRows
+	 * @return a new LIMIT of the passed number of rows
+	 */
+	private static Limit limit(long maxRows)
+	{
+		Limit limit = new Limit();
+		limit.setRowCount(new LongValue(maxRows));
+		return limit;
+	}
+
+	/**
+	 * A limit written after the last select of a set operation without 
+	 * brackets is parsed as part of that select, but applies to the whole
+	 * set operation
+	 * 
+	 * @param list
+	 * @return true if the last select carries the limit of the set operation
+	 */
+	private static boolean hasTrailingLimit(SetOperationList list)
+	{
+		int last = list.getSelects().size() - 1;
+		SelectBody sel = list.getSelects().get(last);
+		List<Boolean> brackets = list.getBrackets();
+		if (!(sel instanceof PlainSelect) || (brackets != null && brackets.get(last)))
+			return false;
+
+		PlainSelect plain = (PlainSelect) sel;
+		return plain.getLimit() != null || plain.getFetch() != null;
+	}
+
+	/**
+	 * @param operations
+	 * @return true if all the operations are UNION ALL
+	 */
+	private static boolean isUnionAll(List<SetOperation> operations)
+	{
+		for (SetOperation op : operations)
+			if (!(op instanceof UnionOp) || !((UnionOp) op).isAll())
+				return false;
+		return true;
+	}
+
+	/**
+	 * @param elements
+	 * @return true if there are no elements
+	 */
+	private static boolean isEmpty(List<OrderByElement> elements)
+	{
+		return elements == null || elements.isEmpty();
+	}
+}
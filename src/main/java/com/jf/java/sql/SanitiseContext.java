@@ -0,0 +1,297 @@
+package com.jf.java.sql;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The state of a single check: the indexes built while walking the statement
+ * and the budgets it is spending.  A context is used by one thread for one
+ * query and then dropped.
+ *
+ * @author james
+ *
+ */
+final class SanitiseContext
+{
+	/** Constraints of the query */
+	private final QueryConstraints constraints;
+	/** Catalog columns are resolved against, null if not resolving */
+	private final SchemaCatalog catalog;
+	/** Work stack of the expression walk, reused across expressions */
+	private final ArrayDeque<Object> work;
+	/** Fully qualified names of the tables read */
+	private final Set<String> tableNames;
+	/** Table names by alias */
+	private final Map<String, String> tableAliases;
+	/** Aliases of sub-selects */
+	private final Set<String> subSelectAliases;
+	/** Aliases of selections */
+	private final Set<String> selectAliases;
+	/** Names of the functions called */
+	private final Set<String> functions;
+
+	/** Maximum nesting, zero for no limit */
+	private final int maxDepth;
+	/** Maximum number of nodes, zero for no limit */
+	private final int maxNodes;
+	/** Maximum number of joins, zero for no limit */
+	private final int maxJoins;
+	/** Deadline as a {@link System#nanoTime()} value, only set if timed */
+	private final long deadline;
+	/** Whether the check has a deadline */
+	private final boolean timed;
+
+	/** Current nesting */
+	private int depth;
+	/** Nodes checked so far */
+	private int nodes;
+	/** Joins seen so far */
+	private int joins;
+	/** Estimated cost of the query, -1 if not estimated */
+	private long cost;
+	/** Whether placeholders are allowed, when preparing a template */
+	private boolean template;
+	/** Names visible in the SELECT being checked */
+	private SymbolScope scope;
+
+	/**
+	 * Creates a new context, starting the clock of the check
+	 * @param constraints
+	 * @param catalog catalog to resolve columns against, may be null
+	 */
+	SanitiseContext(QueryConstraints constraints, SchemaCatalog catalog)
+	{
+		this.constraints = constraints;
+		this.catalog = catalog;
+		this.work = new ArrayDeque<>();
+		this.tableNames = new LinkedHashSet<>();
+		this.tableAliases = new LinkedHashMap<>();
+		this.subSelectAliases = new LinkedHashSet<>();
+		this.selectAliases = new LinkedHashSet<>();
+		this.functions = new LinkedHashSet<>();
+		this.maxDepth = constraints.getMaxDepth();
+		this.maxNodes = constraints.getMaxNodes();
+		this.maxJoins = constraints.getMaxJoins();
+		this.cost = -1;
+
+		long maxMillis = constraints.getMaxMillis();
+		this.timed = maxMillis > 0;
+		this.deadline = timed ? System.nanoTime() + maxMillis * 1_000_000L : 0;
+	}
+
+	/**
+	 * @return the constraints of the query
+	 */
+	QueryConstraints getConstraints()
+	{
+		return constraints;
+	}
+
+	/**
+	 * @return the catalog to resolve columns against, null if not resolving
+	 */
+	SchemaCatalog getCatalog()
+	{
+		return catalog;
+	}
+
+	/**
+	 * @return the names visible in the SELECT being checked, null outside
+	 * of one
+	 */
+	SymbolScope getScope()
+	{
+		return scope;
+	}
+
+	/**
+	 * @param scope the names visible in the SELECT being checked
+	 */
+	void setScope(SymbolScope scope)
+	{
+		this.scope = scope;
+	}
+
+	/**
+	 * @return the work stack of the expression walk
+	 */
+	ArrayDeque<Object> getWork()
+	{
+		return work;
+	}
+
+	/**
+	 * @return the estimated cost of the query, -1 if not estimated
+	 */
+	long getCost()
+	{
+		return cost;
+	}
+
+	/**
+	 * @param cost the estimated cost of the query
+	 */
+	void setCost(long cost)
+	{
+		this.cost = cost;
+	}
+
+	/**
+	 * @return true if placeholders are allowed, when preparing a template
+	 */
+	boolean isTemplate()
+	{
+		return template;
+	}
+
+	/**
+	 * @param template true to allow placeholders
+	 */
+	void setTemplate(boolean template)
+	{
+		this.template = template;
+	}
+
+	/**
+	 * Records a table read by the query
+	 * @param name fully qualified name
+	 * @param alias may be null
+	 */
+	void addTable(String name, String alias)
+	{
+		tableNames.add(name);
+		if (alias != null)
+			tableAliases.put(alias, name);
+	}
+
+	/**
+	 * Records the alias of a sub-select
+	 * @param alias
+	 */
+	void addSubSelect(String alias)
+	{
+		subSelectAliases.add(alias);
+	}
+
+	/**
+	 * Records the alias of a selection
+	 * @param alias
+	 */
+	void addSelectAlias(String alias)
+	{
+		selectAliases.add(alias);
+	}
+
+	/**
+	 * Records a function called by the query
+	 * @param name
+	 */
+	void addFunction(String name)
+	{
+		functions.add(name);
+	}
+
+	/**
+	 * @return a frozen copy of what the query depends on
+	 */
+	QueryDependencies getDependencies()
+	{
+		return QueryDependencies.copyOf(tableNames, tableAliases, subSelectAliases, selectAliases, functions);
+	}
+
+	/**
+	 * Goes one level deeper
+	 * @return false if the maximum nesting is exceeded
+	 */
+	boolean enter()
+	{
+		return ++depth <= maxDepth || maxDepth <= 0;
+	}
+
+	/**
+	 * Comes back one level
+	 */
+	void exit()
+	{
+		depth--;
+	}
+
+	/**
+	 * Counts a checked node
+	 * @return false if the maximum number of nodes is exceeded
+	 */
+	boolean node()
+	{
+		return ++nodes <= maxNodes || maxNodes <= 0;
+	}
+
+	/**
+	 * Counts a join
+	 * @return false if the maximum number of joins is exceeded
+	 */
+	boolean join()
+	{
+		return ++joins <= maxJoins || maxJoins <= 0;
+	}
+
+	/**
+	 * @return true if the deadline of the check has passed
+	 */
+	boolean isExpired()
+	{
+		return timed && System.nanoTime() - deadline > 0;
+	}
+
+	/**
+	 * Checks the nesting of parentheses in the raw query, ignoring those in
+	 * strings, quoted names and comments
+	 *
+	 * @param query
+	 * @param maxDepth
+	 * @return true if the nesting exceeds the maximum
+	 */
+	static boolean isTooDeep(String query, int maxDepth)
+	{
+		int len = query.length();
+		int depth = 0;
+		int i = 0;
+		while (i < len)
+		{
+			char c = query.charAt(i);
+			if (c == '(')
+			{
+				if (++depth > maxDepth)
+					return true;
+				i++;
+			}
+			else if (c == ')')
+			{
+				depth--;
+				i++;
+			}
+			else if (c == '\'' || c == '"' || c == '`')
+			{
+				int end = query.indexOf(c, i + 1);
+				i = end < 0 ? len : end + 1;
+			}
+			else if (c == '-' && i + 1 < len && query.charAt(i + 1) == '-')
+			{
+				int end = query.indexOf('\n', i);
+				i = end < 0 ? len : end + 1;
+			}
+			else if (c == '/' && i + 1 < len && query.charAt(i + 1) == '*')
+			{
+				int end = query.indexOf("*/", i + 2);
+				i = end < 0 ? len : end + 2;
+			}
+			else
+			{
+				i++;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,46 @@
+package com.jf.java.sql;
+
+/**
+ * A query paired with the constraints it is to be checked against, used to
+ * submit batches where each query has its own constraints.
+ * 
+ * @author james
+ *
+ */
+public final class SanitiseRequest
+{
+	/** Raw query */
+	private final String query;
+	/** Constraints for the query */
+	private final QueryConstraints constraints;
+	
+	/**
+	 * Creates a new request
+	 * @param query
+	 * @param constraints
+	 */
+	public SanitiseRequest(String query, QueryConstraints constraints)
+	{
+		if (query == null || constraints == null)
+			throw new NullPointerException("Query and constraints are required");
+		
+		this.query = query;
+		this.constraints = constraints;
+	}
+	
+	/**
+	 * @return the raw query
+	 */
+	public String getQuery()
+	{
+		return query;
+	}
+	
+	/**
+	 * @return the constraints for the query
+	 */
+	public QueryConstraints getConstraints()
+	{
+		return constraints;
+	}
+}
@@ -0,0 +1,238 @@
+package com.jf.java.sql;
+
+import net.sf.jsqlparser.statement.Statement;
+
+/**
+ * The outcome of checking a query, returned instead of throwing so that
+ * rejections cost no more than acceptances.
+ * 
+ * An accepted result also holds what the query depends on and, unless the 
+ * verdict came from the cache, the parsed statement, so callers do not need
+ * to parse the query again.
+ * 
+ * @author james
+ *
+ */
+public final class SanitiseResult
+{
+	/** Shared accepted result */
+	private static final SanitiseResult ACCEPTED = new SanitiseResult(null, null, null, null, QueryDependencies.EMPTY, null, -1);
+	
+	/** Error code, null if accepted */
+	private final String code;
+	/** Description of the error code, null if accepted */
+	private final String description;
+	/** Offending identifier, may be null */
+	private final String identifier;
+	/** Parsed statement, null if rejected or not parsed for this result */
+	private final Statement statement;
+	/** What the query depends on, null if rejected */
+	private final QueryDependencies dependencies;
+	/** Query re-rendered with its row cap, null if not rewritten */
+	private final String rewrittenQuery;
+	/** Estimated cost of an accepted query, -1 if not estimated */
+	private final long estimatedCost;
+	
+	/**
+	 * Creates a new result
+	 * @param code
+	 * @param description
+	 * @param identifier
+	 * @param statement
+	 * @param dependencies
+	 * @param rewrittenQuery
+	 * @param estimatedCost
+	 */
+	private SanitiseResult(
+			String code, 
+			String description, 
+			String identifier, 
+			Statement statement, 
+			QueryDependencies dependencies,
+			String rewrittenQuery,
+			long estimatedCost)
+	{
+		this.code = code;
+		this.description = description;
+		this.identifier = identifier;
+		this.statement = statement;
+		this.dependencies = dependencies;
+		this.rewrittenQuery = rewrittenQuery;
+		this.estimatedCost = estimatedCost;
+	}
+	
+	/**
+	 * @return an accepted result without a statement or dependencies
+	 */
+	public static SanitiseResult accepted()
+	{
+		return ACCEPTED;
+	}
+	
+	/**
+	 * @param statement parsed statement, may be null
+	 * @param dependencies what the query depends on
+	 * @return an accepted result
+	 */
+	public static SanitiseResult accepted(Statement statement, QueryDependencies dependencies)
+	{
+		return accepted(statement, dependencies, null);
+	}
+	
+	/**
+	 * @param statement parsed statement, may be null
+	 * @param dependencies what the query depends on
+	 * @param rewrittenQuery query to run instead of the checked one, null if
+	 * it was not rewritten
+	 * @return an accepted result
+	 */
+	public static SanitiseResult accepted(Statement statement, QueryDependencies dependencies, String rewrittenQuery)
+	{
+		return accepted(statement, dependencies, rewrittenQuery, -1);
+	}
+	
+	/**
+	 * @param statement parsed statement, may be null
+	 * @param dependencies what the query depends on
+	 * @param rewrittenQuery query to run instead of the checked one, null if
+	 * it was not rewritten
+	 * @param estimatedCost estimated cost of the query, -1 if not estimated
+	 * @return an accepted result
+	 */
+	public static SanitiseResult accepted(
+			Statement statement, 
+			QueryDependencies dependencies, 
+			String rewrittenQuery, 
+			long estimatedCost)
+	{
+		return new SanitiseResult(null, null, null, statement, dependencies, rewrittenQuery, estimatedCost);
+	}
+	
+	/**
+	 * @param code error code
+	 * @param description description of the error code
+	 * @param identifier offending identifier, may be null
+	 * @return a rejected result
+	 */
+	public static SanitiseResult rejected(String code, String description, String identifier)
+	{
+		return new SanitiseResult(code, description, identifier, null, null, null, -1);
+	}
+	
+	/**
+	 * @return true if the query was accepted
+	 */
+	public boolean isAccepted()
+	{
+		return code == null;
+	}
+	
+	/**
+	 * @return the error code, null if accepted
+	 */
+	public String getCode()
+	{
+		return code;
+	}
+	
+	/**
+	 * @return the description of the error code, null if accepted
+	 */
+	public String getDescription()
+	{
+		return description;
+	}
+	
+	/**
+	 * @return the offending identifier, null if accepted or not applicable
+	 */
+	public String getIdentifier()
+	{
+		return identifier;
+	}
+	
+	/**
+	 * The statement is only available when the query was parsed for this 
+	 * result, not when its verdict came from the cache.  It is the live parse
+	 * tree and must not be changed if the result is shared.
+	 * 
+	 * @return the parsed statement, null if rejected or not parsed
+	 */
+	public Statement getStatement()
+	{
+		return statement;
+	}
+	
+	/**
+	 * @return what the query depends on, null if rejected
+	 */
+	public QueryDependencies getDependencies()
+	{
+		return dependencies;
+	}
+	
+	/**
+	 * When the constraints cap the number of rows, an accepted query without
+	 * a tight enough limit is rewritten from its parse tree with the cap 
+	 * applied.  The rewritten query is what should be run; comments and 
+	 * formatting of the original are not kept.
+	 * 
+	 * @return the query with its row cap, null if it did not need rewriting
+	 */
+	public String getRewrittenQuery()
+	{
+		return rewrittenQuery;
+	}
+	
+	/**
+	 * The cost is estimated when the constraints have a cost limit or row
+	 * count hints, as the number of rows the query is expected to touch.  
+	 * Callers can flag queries above their own threshold without rejecting
+	 * them.
+	 * 
+	 * @return the estimated cost of an accepted query, -1 if not estimated
+	 */
+	public long getEstimatedCost()
+	{
+		return estimatedCost;
+	}
+	
+	/**
+	 * @return this result without its statement, so the parse tree can be 
+	 * collected
+	 */
+	SanitiseResult withoutStatement()
+	{
+		if (statement == null)
+			return this;
+		return new SanitiseResult(code, description, identifier, null, dependencies, rewrittenQuery, estimatedCost);
+	}
+	
+	/**
+	 * @return the error message, null if accepted
+	 */
+	public String getMessage()
+	{
+		if (code == null)
+			return null;
+		return QueryRejectedException.message(code, description, identifier);
+	}
+	
+	/**
+	 * Creates the exception matching this rejection
+	 * @param stackTrace true to capture the stack trace
+	 * @return the exception, null if accepted
+	 */
+	public QueryRejectedException toException(boolean stackTrace)
+	{
+		if (code == null)
+			return null;
+		return QueryRejectedException.of(code, description, identifier, stackTrace);
+	}
+	
+	@Override
+	public String toString()
+	{
+		return code == null ? "ACCEPTED" : getMessage();
+	}
+}
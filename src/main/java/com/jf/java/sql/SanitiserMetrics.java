@@ -0,0 +1,40 @@
+package com.jf.java.sql;
+
+/**
+ * Receives measurements of the work done by a sanitiser.  Measurements are only
+ * taken when metrics are attached to the sanitiser, so instrumentation costs
+ * nothing otherwise.  {@link JmxSanitiserMetrics} publishes them over JMX, and
+ * other implementations can forward them to any metrics library.
+ *
+ * Implementations are called on the sanitising thread and must be thread-safe
+ * if the sanitiser is shared.
+ *
+ * @author james
+ *
+ */
+public interface SanitiserMetrics
+{
+	/**
+	 * Called once for every checked query, whether its verdict came from the
+	 * cache or not
+	 *
+	 * @param length length of the query text, -1 for an already parsed
+	 * statement
+	 * @param code error code of the rejection, null if accepted
+	 */
+	void onCheck(int length, String code);
+
+	/**
+	 * Called after the parser ran, successfully or not
+	 *
+	 * @param nanos time spent parsing
+	 */
+	void onParse(long nanos);
+
+	/**
+	 * Called after a parsed statement was walked, successfully or not
+	 *
+	 * @param nanos time spent validating
+	 */
+	void onValidate(long nanos);
+}
@@ -0,0 +1,86 @@
+package com.jf.java.sql;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link JmxSanitiserMetrics}.  As an MXBean, its
+ * attributes are published as open types and can be read by any JMX client
+ * without the sanitiser's classes.
+ *
+ * @author james
+ *
+ */
+public interface SanitiserMetricsMXBean
+{
+	/**
+	 * @return the number of queries checked
+	 */
+	long getChecks();
+
+	/**
+	 * @return the number of queries accepted
+	 */
+	long getAccepted();
+
+	/**
+	 * @return the number of queries rejected
+	 */
+	long getRejected();
+
+	/**
+	 * @return the number of rejections by error code
+	 */
+	Map<String, Long> getRejectionsByCode();
+
+	/**
+	 * @return the mean number of queries checked per second since the
+	 * metrics were created or last reset
+	 */
+	double getChecksPerSecond();
+
+	/**
+	 * @return the distribution of parse times in nanoseconds
+	 */
+	HistogramSnapshot getParseNanos();
+
+	/**
+	 * @return the distribution of validation times in nanoseconds
+	 */
+	HistogramSnapshot getValidateNanos();
+
+	/**
+	 * @return the distribution of query lengths in characters
+	 */
+	HistogramSnapshot getQueryLength();
+
+	/**
+	 * @return true if the sanitiser has a verdict cache
+	 */
+	boolean isCacheEnabled();
+
+	/**
+	 * @return the number of cached verdicts, zero without a cache
+	 */
+	long getCacheSize();
+
+	/**
+	 * @return the number of cache hits, zero without a cache
+	 */
+	long getCacheHits();
+
+	/**
+	 * @return the number of cache misses, zero without a cache
+	 */
+	long getCacheMisses();
+
+	/**
+	 * @return the number of cache evictions, zero without a cache
+	 */
+	long getCacheEvictions();
+
+	/**
+	 * Clears all counters and distributions.  Cache counters are kept by the
+	 * cache and are not affected.
+	 */
+	void reset();
+}
@@ -0,0 +1,731 @@
+package com.jf.java.sql;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves a {@link QuerySanitiser} over TCP to clients which cannot embed it.
+ * One selector thread accepts connections and moves bytes without blocking,
+ * while checks run on a pool of workers.
+ *
+ * Every message is a frame of a 4 byte big-endian length followed by that
+ * many bytes.  Strings are a 4 byte length and UTF-8 bytes, with a length of
+ * -1 for null.  A request frame holds:
+ *
+ * <pre>
+ * int    request id, echoed in the response
+ * string tenant, looked up in the constraint registry of the sanitiser
+ * int    number of queries
+ * string query, once per query
+ * </pre>
+ *
+ * and its response frame:
+ *
+ * <pre>
+ * int    request id
+ * int    number of results, in the order of the queries
+ * byte   0 if accepted, then string rewritten query and long estimated cost
+ *        1 if rejected, then string error code and string message
+ * </pre>
+ *
+ * Clients may pipeline requests without waiting for responses, which are
+ * sent in the order the requests arrived on the connection.  The queries of
+ * one request are checked as a batch.  A request is outstanding until its
+ * response has been written, so a client which sends without reading is 
+ * bounded as well as one sending faster than the checks run.  A connection
+ * with too many requests outstanding is not read, nor are the frames it
+ * already sent dispatched, until responses are written, and one sending a
+ * malformed or oversized frame is closed.
+ *
+ * @author james
+ *
+ */
+public class SanitiserServer implements Closeable
+{
+	/** Default port of the standalone server */
+	public static final int DEFAULT_PORT = 7878;
+	/** Result status of an accepted query */
+	public static final byte ACCEPTED = 0;
+	/** Result status of a rejected query */
+	public static final byte REJECTED = 1;
+
+	/** No buffers */
+	private static final ByteBuffer[] NO_BUFFERS = new ByteBuffer[0];
+	/** Initial size of the read buffer of a connection */
+	private static final int READ_BUFFER = 16 * 1024;
+
+	/** Class logger */
+	private final Logger log;
+	/** Sanitiser checking the queries */
+	private final QuerySanitiser sanitiser;
+	/** Workers running the checks */
+	private final ExecutorService workers;
+	/** Connections with responses to write */
+	private final Queue<Connection> flushes;
+	/** Longest frame accepted, in bytes */
+	private int maxFrameLength;
+	/** Most requests a connection may have outstanding before it is not read */
+	private int maxPending;
+
+	/** Selector of the server and its connections, null until started */
+	private Selector selector;
+	/** Listening channel, null until started */
+	private ServerSocketChannel server;
+	/** Selector thread, null until started */
+	private Thread thread;
+	/** Whether the selector thread keeps running */
+	private volatile boolean running;
+
+	/**
+	 * Creates a server with a worker per processor
+	 * @param sanitiser sanitiser with a constraint registry
+	 */
+	public SanitiserServer(QuerySanitiser sanitiser)
+	{
+		this(sanitiser, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a server
+	 * @param sanitiser sanitiser with a constraint registry
+	 * @param workers number of threads running checks
+	 */
+	public SanitiserServer(QuerySanitiser sanitiser, int workers)
+	{
+		AtomicInteger count = new AtomicInteger();
+		this.log = LoggerFactory.getLogger(getClass());
+		this.sanitiser = sanitiser;
+		this.workers = Executors.newFixedThreadPool(Math.max(1, workers), r -> {
+			Thread worker = new Thread(r, "query-sanitiser-worker-" + count.incrementAndGet());
+			worker.setDaemon(true);
+			return worker;
+		});
+		this.flushes = new ConcurrentLinkedQueue<>();
+		this.maxFrameLength = 16 << 20;
+		this.maxPending = 1024;
+	}
+
+	/**
+	 * @return the longest frame accepted, in bytes
+	 */
+	public int getMaxFrameLength()
+	{
+		return maxFrameLength;
+	}
+
+	/**
+	 * @param maxFrameLength the longest frame accepted, in bytes; connections
+	 * sending a longer one are closed
+	 */
+	public void setMaxFrameLength(int maxFrameLength)
+	{
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	/**
+	 * @return the most requests a connection may have outstanding
+	 */
+	public int getMaxPending()
+	{
+		return maxPending;
+	}
+
+	/**
+	 * @param maxPending the most requests a connection may have outstanding,
+	 * being checked or with a response not yet written, before it is not 
+	 * read until responses are written
+	 */
+	public void setMaxPending(int maxPending)
+	{
+		this.maxPending = maxPending;
+	}
+
+	/**
+	 * Binds the server and starts serving on a new thread
+	 * @param address address to listen on, port zero for any free port
+	 * @throws IOException if the address cannot be bound
+	 */
+	public synchronized void start(InetSocketAddress address) throws IOException
+	{
+		if (running)
+			throw new IllegalStateException("Server already started");
+
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.bind(address);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		running = true;
+		thread = new Thread(this::doServe, "query-sanitiser-server");
+		thread.start();
+		log.info("sanitiser server listening on {}", getAddress());
+	}
+
+	/**
+	 * @return the address the server listens on
+	 * @throws IOException if the server is not bound
+	 */
+	public InetSocketAddress getAddress() throws IOException
+	{
+		return (InetSocketAddress) server.getLocalAddress();
+	}
+
+	/**
+	 * Waits for the server to stop
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void awaitTermination() throws InterruptedException
+	{
+		Thread serving = thread;
+		if (serving != null)
+			serving.join();
+	}
+
+	/**
+	 * Stops serving, closing every connection.  Responses not yet written are
+	 * dropped.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (!running)
+			return;
+
+		running = false;
+		selector.wakeup();
+		try
+		{
+			thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		workers.shutdown();
+	}
+
+	/**
+	 * Runs the selector loop until the server is closed
+	 */
+	private void doServe()
+	{
+		try
+		{
+			while (running)
+			{
+				selector.select();
+
+				Connection flushed;
+				while ((flushed = flushes.poll()) != null)
+				{
+					try
+					{
+						doFlush(flushed);
+					}
+					catch (IOException | RuntimeException e)
+					{
+						log.debug("closing connection {}: {}", flushed, e.toString());
+						close(flushed);
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+
+					if (key.isAcceptable())
+					{
+						doAccept();
+						continue;
+					}
+
+					Connection conn = (Connection) key.attachment();
+					try
+					{
+						if (key.isReadable())
+							doRead(conn);
+						if (key.isValid() && key.isWritable())
+							doFlush(conn);
+					}
+					catch (IOException | RuntimeException e)
+					{
+						log.debug("closing connection {}: {}", conn, e.toString());
+						close(conn);
+					}
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			log.error("sanitiser server failed", e);
+		}
+		finally
+		{
+			for (SelectionKey key : selector.keys())
+				closeQuietly(key.channel());
+			closeQuietly(selector);
+			log.info("sanitiser server stopped");
+		}
+	}
+
+	/**
+	 * Accepts a pending connection
+	 */
+	private void doAccept()
+	{
+		try
+		{
+			SocketChannel channel = server.accept();
+			if (channel == null)
+				return;
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Connection conn = new Connection(channel);
+			conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+		}
+		catch (IOException e)
+		{
+			log.warn("failed to accept a connection", e);
+		}
+	}
+
+	/**
+	 * Reads from a connection and dispatches its complete frames
+	 * @param conn
+	 * @throws IOException if the connection fails or sends a bad frame
+	 */
+	private void doRead(Connection conn) throws IOException
+	{
+		if (conn.channel.read(conn.in) < 0)
+		{
+			close(conn);
+			return;
+		}
+		doDecode(conn);
+		interest(conn);
+	}
+
+	/**
+	 * Dispatches the complete frames read from a connection until it has as
+	 * many requests outstanding as allowed.  The remaining frames stay
+	 * buffered until responses drain, see {@link #doFlush(Connection)}.
+	 * @param conn
+	 * @throws IOException if the connection sent a bad frame
+	 */
+	private void doDecode(Connection conn) throws IOException
+	{
+		ByteBuffer in = conn.in;
+		in.flip();
+		while (conn.pending.get() < maxPending && in.remaining() >= 4)
+		{
+			int length = in.getInt(in.position());
+			if (length < 0 || length > maxFrameLength)
+				throw new IOException("Frame of " + length + " bytes");
+			if (in.remaining() < 4 + length)
+				break;
+
+			in.position(in.position() + 4);
+			ByteBuffer frame = in.slice();
+			frame.limit(length);
+			in.position(in.position() + length);
+			dispatch(conn, decode(frame));
+		}
+		in.compact();
+
+		if (!in.hasRemaining() && conn.pending.get() < maxPending)
+		{
+			ByteBuffer grown = ByteBuffer.allocate((int) Math.min(2L * in.capacity(), 4L + maxFrameLength));
+			in.flip();
+			grown.put(in);
+			conn.in = grown;
+		}
+	}
+
+	/**
+	 * Writes as many queued responses as the connection takes, then
+	 * dispatches the frames left buffered while it had too many requests
+	 * outstanding
+	 * @param conn
+	 * @throws IOException if the connection fails or sent a bad frame
+	 */
+	private void doFlush(Connection conn) throws IOException
+	{
+		if (!conn.key.isValid())
+			return;
+		if (conn.failed)
+		{
+			close(conn);
+			return;
+		}
+
+		while (!conn.out.isEmpty())
+		{
+			ByteBuffer[] queued = conn.out.toArray(NO_BUFFERS);
+			conn.channel.write(queued);
+
+			int written = 0;
+			while (written < queued.length && !queued[written].hasRemaining())
+			{
+				conn.out.poll();
+				conn.pending.decrementAndGet();
+				written++;
+			}
+			if (written < queued.length)
+				break;
+		}
+		if (conn.in.position() > 0)
+			doDecode(conn);
+		interest(conn);
+	}
+
+	/**
+	 * Reads while the connection has room for requests and writes while it
+	 * has responses queued
+	 * @param conn
+	 */
+	private void interest(Connection conn)
+	{
+		if (!conn.key.isValid())
+			return;
+		int ops = 0;
+		if (conn.pending.get() < maxPending)
+			ops |= SelectionKey.OP_READ;
+		if (!conn.out.isEmpty())
+			ops |= SelectionKey.OP_WRITE;
+		conn.key.interestOps(ops);
+	}
+
+	/**
+	 * Runs a request on the workers, queueing its response once those of the
+	 * earlier requests of the connection are queued.  The request stays 
+	 * outstanding until the response is written.
+	 * @param conn
+	 * @param request
+	 */
+	private void dispatch(Connection conn, Request request)
+	{
+		conn.pending.incrementAndGet();
+		CompletableFuture<ByteBuffer> work = CompletableFuture.supplyAsync(() -> respond(request), workers);
+		conn.tail = CompletableFuture.allOf(conn.tail, work).handle((v, e) -> {
+			if (e != null)
+			{
+				log.warn("failed to check request {}", request.id, e);
+				conn.failed = true;
+			}
+			else
+			{
+				conn.out.add(work.join());
+			}
+			flushes.add(conn);
+			selector.wakeup();
+			return null;
+		});
+	}
+
+	/**
+	 * Checks the queries of a request
+	 * @param request
+	 * @return the response frame
+	 */
+	private ByteBuffer respond(Request request)
+	{
+		List<SanitiseResult> results;
+		ConstraintRegistry registry = sanitiser.getConstraintRegistry();
+		QueryConstraints constraints = registry == null ? null : registry.get(request.tenant);
+		if (constraints == null || request.queries.size() == 1)
+		{
+			results = new ArrayList<>(request.queries.size());
+			for (String query : request.queries)
+				results.add(sanitiser.checkForTenant(query, request.tenant));
+		}
+		else
+		{
+			results = sanitiser.checkAll(request.queries, constraints);
+		}
+		return encode(request.id, results);
+	}
+
+	/**
+	 * Closes a connection
+	 * @param conn
+	 */
+	private void close(Connection conn)
+	{
+		conn.key.cancel();
+		closeQuietly(conn.channel);
+	}
+
+	/**
+	 * Decodes a request frame
+	 * @param frame
+	 * @return the request
+	 * @throws IOException if the frame is malformed
+	 */
+	static Request decode(ByteBuffer frame) throws IOException
+	{
+		try
+		{
+			int id = frame.getInt();
+			String tenant = readString(frame);
+			int count = frame.getInt();
+			if (tenant == null || count < 0 || count > frame.remaining() / 4)
+				throw new IOException("Malformed request " + id);
+
+			List<String> queries = new ArrayList<>(count);
+			for (int i = 0; i < count; i++)
+			{
+				String query = readString(frame);
+				if (query == null)
+					throw new IOException("Malformed request " + id);
+				queries.add(query);
+			}
+			if (frame.hasRemaining())
+				throw new IOException("Malformed request " + id);
+			return new Request(id, tenant, queries);
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IOException("Truncated request", e);
+		}
+	}
+
+	/**
+	 * Encodes a response frame
+	 * @param id request id
+	 * @param results
+	 * @return the frame, ready to write
+	 */
+	static ByteBuffer encode(int id, List<SanitiseResult> results)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 32 * results.size());
+		try (DataOutputStream out = new DataOutputStream(bytes))
+		{
+			out.writeInt(0);
+			out.writeInt(id);
+			out.writeInt(results.size());
+			for (SanitiseResult result : results)
+			{
+				if (result.isAccepted())
+				{
+					out.writeByte(ACCEPTED);
+					writeString(out, result.getRewrittenQuery());
+					out.writeLong(result.getEstimatedCost());
+				}
+				else
+				{
+					out.writeByte(REJECTED);
+					writeString(out, result.getCode());
+					writeString(out, result.getMessage());
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+
+		ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+		frame.putInt(0, frame.remaining() - 4);
+		return frame;
+	}
+
+	/**
+	 * @param buffer
+	 * @return the string at the position of the buffer, null if its length is
+	 * -1
+	 * @throws IOException if the length is not valid
+	 */
+	private static String readString(ByteBuffer buffer) throws IOException
+	{
+		int length = buffer.getInt();
+		if (length == -1)
+			return null;
+		if (length < 0 || length > buffer.remaining())
+			throw new IOException("String of " + length + " bytes");
+
+		String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return value;
+	}
+
+	/**
+	 * @param out
+	 * @param value string to write, may be null
+	 * @throws IOException
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		if (value == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * @param closeable
+	 */
+	private void closeQuietly(Closeable closeable)
+	{
+		try
+		{
+			closeable.close();
+		}
+		catch (IOException e)
+		{
+			log.debug("failed to close {}", closeable, e);
+		}
+	}
+
+	/**
+	 * Starts a standalone server.  Arguments are the directory of the tenant
+	 * constraint files, see {@link ConstraintRegistry}, then optionally the
+	 * port and the address to listen on, by default 7878 on the loopback
+	 * address.
+	 *
+	 * @param args
+	 * @throws Exception if the server cannot start
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 1)
+		{
+			System.err.println("usage: SanitiserServer <constraints-dir> [port] [host]");
+			System.exit(2);
+		}
+
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+		String host = args.length > 2 ? args[2] : "127.0.0.1";
+
+		ConstraintRegistry registry = new ConstraintRegistry(Paths.get(args[0]));
+		registry.watch();
+
+		QuerySanitiser sanitiser = new QuerySanitiser();
+		sanitiser.setLogQueries(false);
+		sanitiser.setStackTraces(false);
+		sanitiser.setVerdictCache(new VerdictCache(1 << 16));
+		sanitiser.setConstraintRegistry(registry);
+		sanitiser.setWarmUpIterations(50);
+		sanitiser.warmUp();
+
+		SanitiserServer server = new SanitiserServer(sanitiser);
+		server.start(new InetSocketAddress(host, port));
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try
+			{
+				server.close();
+				registry.close();
+			}
+			catch (IOException e)
+			{
+				LoggerFactory.getLogger(SanitiserServer.class).warn("failed to stop the sanitiser server", e);
+			}
+		}));
+		server.awaitTermination();
+	}
+
+	/**
+	 * A decoded request
+	 */
+	static final class Request
+	{
+		/** Request id */
+		final int id;
+		/** Tenant of the constraints */
+		final String tenant;
+		/** Queries to check */
+		final List<String> queries;
+
+		/**
+		 * Creates a new request
+		 * @param id
+		 * @param tenant
+		 * @param queries
+		 */
+		Request(int id, String tenant, List<String> queries)
+		{
+			this.id = id;
+			this.tenant = tenant;
+			this.queries = queries;
+		}
+	}
+
+	/**
+	 * State of a client connection
+	 */
+	private final class Connection
+	{
+		/** Channel of the client */
+		private final SocketChannel channel;
+		/** Responses waiting to be written, in order */
+		private final Queue<ByteBuffer> out;
+		/** Requests dispatched whose response is not written yet */
+		private final AtomicInteger pending;
+		/** Key of the channel */
+		private SelectionKey key;
+		/** Bytes read but not yet decoded */
+		private ByteBuffer in;
+		/** Completes once the response of the last request is queued */
+		private CompletableFuture<Void> tail;
+		/** Whether a check failed, closing the connection */
+		private volatile boolean failed;
+
+		/**
+		 * Creates a new connection
+		 * @param channel
+		 */
+		private Connection(SocketChannel channel)
+		{
+			this.channel = channel;
+			this.out = new ConcurrentLinkedQueue<>();
+			this.pending = new AtomicInteger();
+			this.in = ByteBuffer.allocate(READ_BUFFER);
+			this.tail = CompletableFuture.completedFuture(null);
+		}
+
+		@Override
+		public String toString()
+		{
+			try
+			{
+				return String.valueOf(channel.getRemoteAddress());
+			}
+			catch (IOException e)
+			{
+				return "closed";
+			}
+		}
+	}
+}
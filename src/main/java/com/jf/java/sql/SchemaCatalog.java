@@ -0,0 +1,30 @@
+package com.jf.java.sql;
+
+/**
+ * The tables and columns of a database, used to resolve column references
+ * without querying the database.  Tables are named as in the whitelist, so
+ * with their schema if they are whitelisted with it.
+ *
+ * Implementations must be thread-safe; see {@link CsvSchemaCatalog}.
+ *
+ * @author james
+ *
+ */
+public interface SchemaCatalog
+{
+	/**
+	 * Tables the catalog does not know are not checked, so a catalog may only
+	 * describe some of the tables
+	 *
+	 * @param table name of the table
+	 * @return true if the catalog lists the columns of the table
+	 */
+	boolean hasTable(String table);
+
+	/**
+	 * @param table name of the table
+	 * @param column name of the column
+	 * @return true if the table is known and has the column
+	 */
+	boolean hasColumn(String table, String column);
+}
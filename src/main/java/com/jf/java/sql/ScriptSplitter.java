@@ -0,0 +1,302 @@
+package com.jf.java.sql;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits a SQL script into statements as it is read.  Statements end at a
+ * semicolon outside strings, quoted names and comments, or at the end of the
+ * script.  Only the statement being read is held in memory.
+ *
+ * Comments and whitespace before a statement are not part of it, and empty
+ * statements are skipped.  Offsets count the bytes of the script as encoded
+ * in UTF-8.
+ *
+ * @author james
+ *
+ */
+final class ScriptSplitter
+{
+	/** Outside any literal or comment */
+	private static final int CODE = 0;
+	/** In a single quoted string */
+	private static final int STRING = 1;
+	/** In a double quoted name */
+	private static final int DOUBLE_QUOTED = 2;
+	/** In a back quoted name */
+	private static final int BACK_QUOTED = 3;
+	/** In a bracketed name */
+	private static final int BRACKETED = 4;
+	/** In a dollar quoted string */
+	private static final int DOLLAR_QUOTED = 5;
+	/** In a line comment */
+	private static final int LINE_COMMENT = 6;
+	/** In a block comment */
+	private static final int BLOCK_COMMENT = 7;
+
+	/** Script being read */
+	private final Reader reader;
+	/** Longest statement text kept, zero for no limit */
+	private final int maxLength;
+	/** Read buffer */
+	private final char[] buffer;
+	/** Next character in the buffer */
+	private int pos;
+	/** End of the characters in the buffer */
+	private int limit;
+	/** Bytes consumed so far */
+	private long offset;
+	/** Line of the next character */
+	private int line;
+	/** Text of the current statement */
+	private final StringBuilder text;
+
+	/** Byte offset of the current statement */
+	private long start;
+	/** Line of the current statement */
+	private int startLine;
+	/** Whether the current statement is longer than the maximum length */
+	private boolean truncated;
+
+	/**
+	 * Creates a new splitter
+	 * @param reader script to read
+	 * @param maxLength longest statement text to keep, zero for no limit
+	 */
+	ScriptSplitter(Reader reader, int maxLength)
+	{
+		this.reader = reader;
+		this.maxLength = maxLength;
+		this.buffer = new char[8192];
+		this.line = 1;
+		this.text = new StringBuilder();
+	}
+
+	/**
+	 * Reads the next statement
+	 * @return false at the end of the script
+	 * @throws IOException if the script cannot be read
+	 */
+	boolean next() throws IOException
+	{
+		text.setLength(0);
+		truncated = false;
+		boolean started = false;
+		int state = CODE;
+
+		int c;
+		while (true)
+		{
+			long before = offset;
+			int beforeLine = line;
+			if ((c = read()) < 0)
+				break;
+			char ch = (char) c;
+
+			if (state == CODE)
+			{
+				if (ch == ';')
+				{
+					if (started)
+						break;
+					continue;
+				}
+				if (Character.isWhitespace(ch))
+				{
+					if (started && !isFull())
+						text.append(ch);
+					continue;
+				}
+				if ((ch == '-' || ch == '/') && peek() == (ch == '-' ? '-' : '*'))
+				{
+					state = ch == '-' ? LINE_COMMENT : BLOCK_COMMENT;
+					read();
+					if (started)
+					{
+						append(ch);
+						append(ch == '-' ? '-' : '*');
+					}
+					continue;
+				}
+
+				if (!started)
+				{
+					started = true;
+					start = before;
+					startLine = beforeLine;
+				}
+				append(ch);
+
+				if (ch == '\'')
+					state = STRING;
+				else if (ch == '"')
+					state = DOUBLE_QUOTED;
+				else if (ch == '`')
+					state = BACK_QUOTED;
+				else if (ch == '[')
+					state = BRACKETED;
+				else if (ch == '$' && peek() == '$')
+				{
+					state = DOLLAR_QUOTED;
+					append((char) read());
+				}
+				continue;
+			}
+
+			if (started)
+				append(ch);
+
+			switch (state)
+			{
+				case STRING:
+					state = ch == '\'' ? CODE : state;
+					break;
+				case DOUBLE_QUOTED:
+					state = ch == '"' ? CODE : state;
+					break;
+				case BACK_QUOTED:
+					state = ch == '`' ? CODE : state;
+					break;
+				case BRACKETED:
+					state = ch == ']' ? CODE : state;
+					break;
+				case LINE_COMMENT:
+					state = ch == '\n' ? CODE : state;
+					break;
+				case BLOCK_COMMENT:
+				case DOLLAR_QUOTED:
+					char end = state == BLOCK_COMMENT ? '*' : '$';
+					char after = state == BLOCK_COMMENT ? '/' : '$';
+					if (ch == end && peek() == after)
+					{
+						read();
+						if (started)
+							append(after);
+						state = CODE;
+					}
+					break;
+				default:
+					break;
+			}
+		}
+
+		int len = text.length();
+		while (len > 0 && Character.isWhitespace(text.charAt(len - 1)))
+			len--;
+		text.setLength(len);
+		return started;
+	}
+
+	/**
+	 * @return the text of the statement, only the first characters if it is
+	 * truncated
+	 */
+	String getText()
+	{
+		return text.toString();
+	}
+
+	/**
+	 * @return the byte offset of the statement in the script
+	 */
+	long getOffset()
+	{
+		return start;
+	}
+
+	/**
+	 * @return the line the statement starts on, from one
+	 */
+	int getLine()
+	{
+		return startLine;
+	}
+
+	/**
+	 * @return true if the statement is longer than the maximum length
+	 */
+	boolean isTruncated()
+	{
+		return truncated;
+	}
+
+	/**
+	 * Appends a character to the statement, marking it as truncated if it is
+	 * full.  Whitespace is not appended this way since trailing whitespace
+	 * does not count.
+	 * 
+	 * @param ch
+	 */
+	private void append(char ch)
+	{
+		if (isFull())
+			truncated = true;
+		else
+			text.append(ch);
+	}
+
+	/**
+	 * @return true if the statement text reached the maximum length
+	 */
+	private boolean isFull()
+	{
+		return maxLength > 0 && text.length() >= maxLength;
+	}
+
+	/**
+	 * Consumes a character, counting its bytes and lines
+	 * @return the character or -1 at the end of the script
+	 * @throws IOException
+	 */
+	private int read() throws IOException
+	{
+		if (pos == limit && !fill())
+			return -1;
+
+		char ch = buffer[pos++];
+		if (ch < 0x80)
+			offset++;
+		else if (ch < 0x800)
+			offset += 2;
+		else if (Character.isHighSurrogate(ch))
+			offset += 4;
+		else if (!Character.isLowSurrogate(ch))
+			offset += 3;
+
+		if (ch == '\n')
+			line++;
+		return ch;
+	}
+
+	/**
+	 * @return the next character without consuming it, -1 at the end
+	 * @throws IOException
+	 */
+	private int peek() throws IOException
+	{
+		if (pos == limit && !fill())
+			return -1;
+		return buffer[pos];
+	}
+
+	/**
+	 * Refills the empty buffer
+	 * @return false at the end of the script
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException
+	{
+		int n;
+		do
+		{
+			n = reader.read(buffer, 0, buffer.length);
+		}
+		while (n == 0);
+
+		if (n < 0)
+			return false;
+		pos = 0;
+		limit = n;
+		return true;
+	}
+}
@@ -0,0 +1,87 @@
+package com.jf.java.sql;
+
+/**
+ * The result of checking one statement of a script, along with where the
+ * statement is in the script.
+ *
+ * @author james
+ *
+ */
+public final class ScriptVerdict
+{
+	/** Position of the statement in the script, from zero */
+	private final int index;
+	/** Byte offset of the statement in the script */
+	private final long offset;
+	/** Line the statement starts on, from one */
+	private final int line;
+	/** Text of the statement */
+	private final String query;
+	/** Result of the check */
+	private final SanitiseResult result;
+
+	/**
+	 * Creates a new verdict
+	 * @param index
+	 * @param offset
+	 * @param line
+	 * @param query
+	 * @param result
+	 */
+	public ScriptVerdict(int index, long offset, int line, String query, SanitiseResult result)
+	{
+		this.index = index;
+		this.offset = offset;
+		this.line = line;
+		this.query = query;
+		this.result = result;
+	}
+
+	/**
+	 * @return the position of the statement in the script, from zero
+	 */
+	public int getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * @return the byte offset of the statement in the script, counted in
+	 * UTF-8
+	 */
+	public long getOffset()
+	{
+		return offset;
+	}
+
+	/**
+	 * @return the line the statement starts on, from one
+	 */
+	public int getLine()
+	{
+		return line;
+	}
+
+	/**
+	 * @return the text of the statement without its semicolon, only the first
+	 * characters if it exceeds the length limit
+	 */
+	public String getQuery()
+	{
+		return query;
+	}
+
+	/**
+	 * @return the result of the check
+	 */
+	public SanitiseResult getResult()
+	{
+		return result;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "#" + index + " at line " + line + " (byte " + offset + "): " + result;
+	}
+}
@@ -0,0 +1,397 @@
+package com.jf.java.sql;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.jsqlparser.expression.BinaryExpression;
+import net.sf.jsqlparser.expression.CastExpression;
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.ExpressionVisitor;
+import net.sf.jsqlparser.expression.Function;
+import net.sf.jsqlparser.expression.Parenthesis;
+import net.sf.jsqlparser.expression.SignedExpression;
+import net.sf.jsqlparser.expression.operators.relational.ExpressionList;
+import net.sf.jsqlparser.expression.operators.relational.InExpression;
+import net.sf.jsqlparser.expression.operators.relational.IsNullExpression;
+import net.sf.jsqlparser.expression.operators.relational.ItemsList;
+import net.sf.jsqlparser.expression.operators.relational.MultiExpressionList;
+import net.sf.jsqlparser.statement.Statement;
+import net.sf.jsqlparser.statement.select.FromItem;
+import net.sf.jsqlparser.statement.select.Join;
+import net.sf.jsqlparser.statement.select.OrderByElement;
+import net.sf.jsqlparser.statement.select.PlainSelect;
+import net.sf.jsqlparser.statement.select.Select;
+import net.sf.jsqlparser.statement.select.SelectBody;
+import net.sf.jsqlparser.statement.select.SelectExpressionItem;
+import net.sf.jsqlparser.statement.select.SelectItem;
+import net.sf.jsqlparser.statement.select.SelectVisitor;
+import net.sf.jsqlparser.statement.select.SetOperationList;
+import net.sf.jsqlparser.statement.select.SubSelect;
+import net.sf.jsqlparser.statement.select.WithItem;
+
+/**
+ * Writes a statement as SQL without recursing into its tree, so that a
+ * statement accepted by the iterative walk, such as a chain of 100k OR
+ * terms, can be written back with the default thread stack.
+ *
+ * The text is exactly that of <code>toString()</code>: every node with
+ * children is written by its own <code>toString()</code> while its children
+ * are swapped for markers, which are then replaced by the text of the
+ * children from an explicit work stack.  Leaves are written as they are.
+ * Markers are delimited by a control character, and another one is taken
+ * whenever the text of a node already holds it, such as a literal does.
+ * The children are put back before the next node is written, so the
+ * statement is left as it was.
+ *
+ * @author james
+ *
+ */
+final class StatementPrinter
+{
+	/** Text and nodes left to write, in order */
+	private final ArrayDeque<Object> work;
+	/** Children of the node being written, indexed by their markers */
+	private final List<Object> children;
+	/** Delimits the index of a child in the text of its parent */
+	private char mark;
+
+	/**
+	 * Creates a new printer
+	 */
+	private StatementPrinter()
+	{
+		this.work = new ArrayDeque<>();
+		this.children = new ArrayList<>();
+		this.mark = '\u0000';
+	}
+
+	/**
+	 * @param stmt
+	 * @return the SQL of the statement, the same as its
+	 * <code>toString()</code>
+	 */
+	static String print(Statement stmt)
+	{
+		return new StatementPrinter().write(stmt);
+	}
+
+	/**
+	 * @param root
+	 * @return the SQL of the node and its children
+	 */
+	private String write(Object root)
+	{
+		StringBuilder out = new StringBuilder();
+		work.push(root);
+		while (!work.isEmpty())
+		{
+			Object next = work.pop();
+			if (next instanceof String)
+			{
+				out.append((String) next);
+				continue;
+			}
+
+			children.clear();
+			swap(next, true);
+			String text = next.toString();
+			while (count(text, mark) != 2 * children.size())
+			{
+				mark++;
+				text = next.toString();
+			}
+			swap(next, false);
+			schedule(text);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Pushes the parts of the text of a node and its children so that they
+	 * are written in order
+	 * @param text text of the node, with markers for its children
+	 */
+	private void schedule(String text)
+	{
+		List<Object> parts = new ArrayList<>();
+		int start = 0;
+		int at;
+		while ((at = text.indexOf(mark, start)) >= 0)
+		{
+			int end = text.indexOf(mark, at + 1);
+			parts.add(text.substring(start, at));
+			parts.add(children.get(Integer.parseInt(text.substring(at + 1, end))));
+			start = end + 1;
+		}
+		parts.add(text.substring(start));
+
+		for (int i = parts.size() - 1; i >= 0; i--)
+			work.push(parts.get(i));
+	}
+
+	/**
+	 * @param text
+	 * @param c
+	 * @return the number of times the character occurs in the text
+	 */
+	private static int count(String text, char c)
+	{
+		int n = 0;
+		for (int i = 0; i < text.length(); i++)
+			if (text.charAt(i) == c)
+				n++;
+		return n;
+	}
+
+	/**
+	 * Swaps the children of a node for markers, or puts them back
+	 * @param node
+	 * @param out true to swap the children out, false to put them back
+	 */
+	private void swap(Object node, boolean out)
+	{
+		if (node instanceof Select)
+		{
+			Select select = (Select) node;
+			select.setSelectBody(body(select.getSelectBody(), out));
+			if (select.getWithItemsList() != null)
+				for (WithItem with : select.getWithItemsList())
+					with.setSelectBody(body(with.getSelectBody(), out));
+		}
+		else if (node instanceof SetOperationList)
+		{
+			SetOperationList list = (SetOperationList) node;
+			List<SelectBody> selects = list.getSelects();
+			for (int i = 0; i < selects.size(); i++)
+				selects.set(i, body(selects.get(i), out));
+			orderBy(list.getOrderByElements(), out);
+		}
+		else if (node instanceof PlainSelect)
+		{
+			PlainSelect select = (PlainSelect) node;
+			if (select.getDistinct() != null)
+				items(select.getDistinct().getOnSelectItems(), out);
+			items(select.getSelectItems(), out);
+			from(select.getFromItem(), out);
+			if (select.getJoins() != null)
+			{
+				for (Join join : select.getJoins())
+				{
+					from(join.getRightItem(), out);
+					join.setOnExpression(child(join.getOnExpression(), out));
+				}
+			}
+			select.setWhere(child(select.getWhere(), out));
+			list(select.getGroupByColumnReferences(), out);
+			select.setHaving(child(select.getHaving(), out));
+			orderBy(select.getOrderByElements(), out);
+		}
+		else if (node instanceof BinaryExpression)
+		{
+			BinaryExpression bin = (BinaryExpression) node;
+			bin.setLeftExpression(child(bin.getLeftExpression(), out));
+			bin.setRightExpression(child(bin.getRightExpression(), out));
+		}
+		else if (node instanceof Parenthesis)
+		{
+			Parenthesis par = (Parenthesis) node;
+			par.setExpression(child(par.getExpression(), out));
+		}
+		else if (node instanceof SignedExpression)
+		{
+			SignedExpression signed = (SignedExpression) node;
+			signed.setExpression(child(signed.getExpression(), out));
+		}
+		else if (node instanceof CastExpression)
+		{
+			CastExpression cast = (CastExpression) node;
+			cast.setLeftExpression(child(cast.getLeftExpression(), out));
+		}
+		else if (node instanceof IsNullExpression)
+		{
+			IsNullExpression isNull = (IsNullExpression) node;
+			isNull.setLeftExpression(child(isNull.getLeftExpression(), out));
+		}
+		else if (node instanceof Function)
+		{
+			Function func = (Function) node;
+			if (func.getParameters() != null)
+				list(func.getParameters().getExpressions(), out);
+		}
+		else if (node instanceof InExpression)
+		{
+			InExpression in = (InExpression) node;
+			in.setLeftExpression(child(in.getLeftExpression(), out));
+			items(in.getLeftItemsList(), out);
+			items(in.getRightItemsList(), out);
+		}
+	}
+
+	/**
+	 * @param items selections, may be null
+	 * @param out
+	 */
+	private void items(List<SelectItem> items, boolean out)
+	{
+		if (items == null)
+			return;
+		for (SelectItem item : items)
+		{
+			if (item instanceof SelectExpressionItem)
+			{
+				SelectExpressionItem sei = (SelectExpressionItem) item;
+				sei.setExpression(child(sei.getExpression(), out));
+			}
+		}
+	}
+
+	/**
+	 * @param items items of an IN condition, may be null
+	 * @param out
+	 */
+	private void items(ItemsList items, boolean out)
+	{
+		if (items instanceof ExpressionList)
+		{
+			list(((ExpressionList) items).getExpressions(), out);
+		}
+		else if (items instanceof MultiExpressionList)
+		{
+			for (ExpressionList row : ((MultiExpressionList) items).getExprList())
+				list(row.getExpressions(), out);
+		}
+		else if (items instanceof SubSelect)
+		{
+			SubSelect sub = (SubSelect) items;
+			sub.setSelectBody(body(sub.getSelectBody(), out));
+		}
+	}
+
+	/**
+	 * @param from
+	 * @param out
+	 */
+	private void from(FromItem from, boolean out)
+	{
+		if (from instanceof SubSelect)
+		{
+			SubSelect sub = (SubSelect) from;
+			sub.setSelectBody(body(sub.getSelectBody(), out));
+		}
+	}
+
+	/**
+	 * @param elements may be null
+	 * @param out
+	 */
+	private void orderBy(List<OrderByElement> elements, boolean out)
+	{
+		if (elements == null)
+			return;
+		for (OrderByElement oe : elements)
+			oe.setExpression(child(oe.getExpression(), out));
+	}
+
+	/**
+	 * @param list may be null
+	 * @param out
+	 */
+	private void list(List<Expression> list, boolean out)
+	{
+		if (list == null)
+			return;
+		for (int i = 0; i < list.size(); i++)
+			list.set(i, child(list.get(i), out));
+	}
+
+	/**
+	 * @param body
+	 * @param out
+	 * @return the marker of the body, or the body itself when putting it back
+	 */
+	private SelectBody body(SelectBody body, boolean out)
+	{
+		return (SelectBody) exchange(body, out);
+	}
+
+	/**
+	 * @param exp may be null
+	 * @param out
+	 * @return the marker of an expression with children, or the expression
+	 * itself when it is a leaf or is put back
+	 */
+	private Expression child(Expression exp, boolean out)
+	{
+		return (Expression) exchange(exp, out);
+	}
+
+	/**
+	 * @param node may be null
+	 * @param out
+	 * @return the marker of a node with children, or the node itself when it
+	 * is a leaf or is put back
+	 */
+	private Object exchange(Object node, boolean out)
+	{
+		if (!out)
+			return node instanceof Marker ? children.get(((Marker) node).index) : node;
+		if (!hasChildren(node))
+			return node;
+
+		children.add(node);
+		return new Marker(children.size() - 1);
+	}
+
+	/**
+	 * @param node may be null
+	 * @return true if the text of the node includes that of other nodes
+	 */
+	private static boolean hasChildren(Object node)
+	{
+		return node instanceof SelectBody
+				|| node instanceof BinaryExpression
+				|| node instanceof Parenthesis
+				|| node instanceof SignedExpression
+				|| node instanceof CastExpression
+				|| node instanceof IsNullExpression
+				|| node instanceof Function
+				|| node instanceof InExpression;
+	}
+
+	/**
+	 * Stands for a child in the text of its parent
+	 */
+	private final class Marker implements Expression, SelectBody
+	{
+		/** Index of the child */
+		private final int index;
+
+		/**
+		 * Creates a new marker
+		 * @param index
+		 */
+		private Marker(int index)
+		{
+			this.index = index;
+		}
+
+		@Override
+		public void accept(ExpressionVisitor visitor)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void accept(SelectVisitor visitor)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String toString()
+		{
+			return mark + String.valueOf(index) + mark;
+		}
+	}
+}
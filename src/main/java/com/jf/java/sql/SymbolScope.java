@@ -0,0 +1,318 @@
+package com.jf.java.sql;
+
+import java.util.Arrays;
+
+import net.sf.jsqlparser.schema.Table;
+
+/**
+ * The names visible in one SELECT: its tables and sub-selects by alias and
+ * full name, and the names of its selections.  Names not found in a scope
+ * are looked up in its parent, so a correlated sub-select sees the query
+ * around it, while sibling sub-selects never see each other.  A sub-select
+ * in FROM keeps its own scope, whose selected names are its output columns:
+ * they are visible to the scope reading it, and are the only columns its
+ * alias qualifies.
+ *
+ * A SELECT rarely has more than a handful of names, so they are kept in
+ * small arrays scanned in order, which is cheaper than hashing them and is
+ * dropped as soon as the SELECT has been checked.  A name of an inner scope
+ * hides the same name of its parents.
+ *
+ * @author james
+ *
+ */
+final class SymbolScope
+{
+	/** Initial capacity of the arrays */
+	private static final int CAPACITY = 4;
+	/** Shared empty names, replaced on the first addition */
+	private static final String[] NONE = new String[0];
+	/** Shared empty symbols, replaced on the first addition */
+	private static final Object[] NO_SYMBOLS = new Object[0];
+	/** Shared empty sub-selects, replaced on the first addition */
+	private static final SymbolScope[] NO_SCOPES = new SymbolScope[0];
+
+	/** Enclosing scope, null for the outermost */
+	private final SymbolScope parent;
+	/** Aliases and full names of the tables and sub-selects */
+	private String[] names;
+	/** Table, or scope of the sub-select, of each name */
+	private Object[] symbols;
+	/** Number of names */
+	private int size;
+	/** Fully qualified names of the tables read, once per FROM item */
+	private String[] tables;
+	/** Number of tables */
+	private int tableCount;
+	/** Selected column names and aliases */
+	private String[] columns;
+	/** Number of column names and aliases */
+	private int columnCount;
+	/** Aliases of selections */
+	private String[] aliases;
+	/** Number of aliases */
+	private int aliasCount;
+	/** Names of the output columns */
+	private String[] outputs;
+	/** Number of output columns */
+	private int outputCount;
+	/** Scopes of the sub-selects read */
+	private SymbolScope[] subSelects;
+	/** Number of sub-selects */
+	private int subSelectCount;
+	/** Whether the select has a wildcard, so its output columns are unknown */
+	private boolean wildcard;
+
+	/**
+	 * Creates an empty scope
+	 * @param parent enclosing scope, null for the outermost
+	 */
+	SymbolScope(SymbolScope parent)
+	{
+		this.parent = parent;
+		this.names = NONE;
+		this.symbols = NO_SYMBOLS;
+		this.tables = NONE;
+		this.columns = NONE;
+		this.aliases = NONE;
+		this.outputs = NONE;
+		this.subSelects = NO_SCOPES;
+	}
+
+	/**
+	 * @return the enclosing scope, null for the outermost
+	 */
+	SymbolScope getParent()
+	{
+		return parent;
+	}
+
+	/**
+	 * Adds a table read by the select
+	 * @param name fully qualified name
+	 * @param alias may be null
+	 * @param table
+	 */
+	void addTable(String name, String alias, Table table)
+	{
+		if (alias != null)
+			put(alias, table);
+		put(name, table);
+		tables = grow(tables, tableCount);
+		tables[tableCount++] = name;
+	}
+
+	/**
+	 * Adds a sub-select read by the select, whose output columns become
+	 * visible to this scope
+	 * @param alias may be null
+	 * @param inner scope of the sub-select
+	 */
+	void addSubSelect(String alias, SymbolScope inner)
+	{
+		if (alias != null)
+			put(alias, inner);
+		if (subSelectCount == subSelects.length)
+			subSelects = Arrays.copyOf(subSelects, Math.max(CAPACITY, subSelectCount * 2));
+		subSelects[subSelectCount++] = inner;
+	}
+
+	/**
+	 * Adds the name of a selected column
+	 * @param name
+	 */
+	void addColumn(String name)
+	{
+		columns = grow(columns, columnCount);
+		columns[columnCount++] = name;
+	}
+
+	/**
+	 * Adds the alias of a selection, which can also be used as a column
+	 * @param alias
+	 */
+	void addAlias(String alias)
+	{
+		addColumn(alias);
+		addOutput(alias);
+		aliases = grow(aliases, aliasCount);
+		aliases[aliasCount++] = alias;
+	}
+
+	/**
+	 * Adds the name of an output column, a selected column without an alias
+	 * or the alias of a selection
+	 * @param name
+	 */
+	void addOutput(String name)
+	{
+		outputs = grow(outputs, outputCount);
+		outputs[outputCount++] = name;
+	}
+
+	/**
+	 * Marks the select as selecting a wildcard, whose columns are not known
+	 */
+	void addWildcard()
+	{
+		wildcard = true;
+	}
+
+	/**
+	 * @param name alias or full name
+	 * @return true if a table or sub-select of this scope or an enclosing one
+	 * has the name
+	 */
+	boolean isDefined(String name)
+	{
+		for (SymbolScope scope = this; scope != null; scope = scope.parent)
+			if (indexOf(scope.names, scope.size, name) >= 0)
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param name alias or full name
+	 * @return the table of the innermost scope with the name, null if it is
+	 * unknown or names a sub-select
+	 */
+	Table getTable(String name)
+	{
+		for (SymbolScope scope = this; scope != null; scope = scope.parent)
+		{
+			int i = indexOf(scope.names, scope.size, name);
+			if (i >= 0)
+				return scope.symbols[i] instanceof Table ? (Table) scope.symbols[i] : null;
+		}
+		return null;
+	}
+
+	/**
+	 * @param name alias or full name
+	 * @return the scope of the sub-select of the innermost scope with the 
+	 * name, null if it is unknown or names a table
+	 */
+	SymbolScope getSubSelect(String name)
+	{
+		for (SymbolScope scope = this; scope != null; scope = scope.parent)
+		{
+			int i = indexOf(scope.names, scope.size, name);
+			if (i >= 0)
+				return scope.symbols[i] instanceof SymbolScope ? (SymbolScope) scope.symbols[i] : null;
+		}
+		return null;
+	}
+
+	/**
+	 * @param name
+	 * @return true if a selection of this scope or an enclosing one has the
+	 * column name or alias, or a sub-select they read outputs it
+	 */
+	boolean hasColumn(String name)
+	{
+		for (SymbolScope scope = this; scope != null; scope = scope.parent)
+			if (indexOf(scope.columns, scope.columnCount, name) >= 0 || scope.readsColumn(name))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param name
+	 * @return true if a sub-select read by this select, not its enclosing 
+	 * ones, outputs the column
+	 */
+	boolean readsColumn(String name)
+	{
+		for (int i = 0; i < subSelectCount; i++)
+			if (subSelects[i].outputs(name))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param name
+	 * @return true if the select outputs a column of the name, or may do so
+	 * through a wildcard
+	 */
+	boolean outputs(String name)
+	{
+		return wildcard || indexOf(outputs, outputCount, name) >= 0;
+	}
+
+	/**
+	 * @param name
+	 * @return true if a selection of this select, not its enclosing ones, 
+	 * was given the alias
+	 */
+	boolean isAlias(String name)
+	{
+		return indexOf(aliases, aliasCount, name) >= 0;
+	}
+
+	/**
+	 * @return the number of tables read by this select, not its enclosing ones
+	 */
+	int getTableCount()
+	{
+		return tableCount;
+	}
+
+	/**
+	 * @param index
+	 * @return the fully qualified name of a table read by this select
+	 */
+	String getTableName(int index)
+	{
+		return tables[index];
+	}
+
+	/**
+	 * @return the number of sub-selects read by this select, not its 
+	 * enclosing ones
+	 */
+	int getSubSelectCount()
+	{
+		return subSelectCount;
+	}
+
+	/**
+	 * Adds a table or sub-select name
+	 * @param name
+	 * @param symbol
+	 */
+	private void put(String name, Object symbol)
+	{
+		if (size == names.length)
+		{
+			int capacity = Math.max(CAPACITY, size * 2);
+			names = Arrays.copyOf(names, capacity);
+			symbols = Arrays.copyOf(symbols, capacity);
+		}
+		names[size] = name;
+		symbols[size++] = symbol;
+	}
+
+	/**
+	 * @param array
+	 * @param count used length
+	 * @return the array, or a larger copy if it is full
+	 */
+	private static String[] grow(String[] array, int count)
+	{
+		return count < array.length ? array : Arrays.copyOf(array, Math.max(CAPACITY, count * 2));
+	}
+
+	/**
+	 * @param array
+	 * @param count used length
+	 * @param name
+	 * @return the first index of the name, -1 if absent
+	 */
+	private static int indexOf(String[] array, int count, String name)
+	{
+		for (int i = 0; i < count; i++)
+			if (array[i].equals(name))
+				return i;
+		return -1;
+	}
+}
@@ -0,0 +1,26 @@
+package com.jf.java.sql;
+
+/**
+ * A column refers to an unknown table or alias (B003), or is not a
+ * column of its table (B009)
+ * 
+ * @author james
+ *
+ */
+public class UnknownReferenceException extends QueryRejectedException
+{
+	/** Serial version */
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Creates a new rejection
+	 * @param code error code
+	 * @param description description of the error code
+	 * @param identifier offending identifier, may be null
+	 * @param stackTrace true to capture the stack trace
+	 */
+	public UnknownReferenceException(String code, String description, String identifier, boolean stackTrace)
+	{
+		super(code, description, identifier, stackTrace);
+	}
+}
@@ -0,0 +1,421 @@
+package com.jf.java.sql;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A size bounded, least recently used cache of sanitisation verdicts.  Entries
+ * are keyed on the query text and the fingerprint of the constraints it was
+ * checked against, and both accepted and rejected verdicts are kept.
+ *
+ * Concurrent misses on the same key are merged so that only one thread does
+ * the parsing and checking while the others wait for its verdict.
+ *
+ * @author james
+ *
+ */
+public class VerdictCache
+{
+	/** Maximum number of verdicts to keep */
+	private final int maximumSize;
+	/** Cached verdicts in access order, guarded by itself */
+	private final LinkedHashMap<Key, Verdict> entries;
+	/** Verdicts currently being computed */
+	private final ConcurrentMap<Key, FutureTask<Verdict>> inFlight;
+
+	/** Lookups answered by the cache or by another thread's computation */
+	private final LongAdder hits;
+	/** Lookups which had to compute the verdict */
+	private final LongAdder misses;
+	/** Verdicts dropped to respect the maximum size */
+	private final LongAdder evictions;
+
+	/**
+	 * Creates a new cache holding at most the passed number of verdicts
+	 * @param maximumSize
+	 */
+	public VerdictCache(int maximumSize)
+	{
+		if (maximumSize <= 0)
+			throw new IllegalArgumentException("Cache size must be positive");
+
+		this.maximumSize = maximumSize;
+		this.inFlight = new ConcurrentHashMap<>();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+		this.entries = new LinkedHashMap<Key, Verdict>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Verdict> eldest)
+			{
+				if (size() <= VerdictCache.this.maximumSize)
+					return false;
+
+				evictions.increment();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the verdict for the passed query and constraints fingerprint,
+	 * computing it with the loader if it is not cached.  Only one thread
+	 * computes the verdict for a given key at a time.
+	 *
+	 * @param query
+	 * @param fingerprint
+	 * @param loader computes the verdict on a miss
+	 * @return the verdict
+	 */
+	public Verdict get(String query, long fingerprint, Callable<Verdict> loader)
+	{
+		Key key = new Key(query, fingerprint);
+		Verdict verdict = lookup(key);
+		if (verdict != null)
+		{
+			hits.increment();
+			return verdict;
+		}
+
+		FutureTask<Verdict> task = new FutureTask<>(loader);
+		FutureTask<Verdict> running = inFlight.putIfAbsent(key, task);
+		if (running != null)
+		{
+			hits.increment();
+			return await(running);
+		}
+
+		try
+		{
+			verdict = lookup(key);
+			if (verdict != null)
+			{
+				hits.increment();
+				return verdict;
+			}
+
+			misses.increment();
+			task.run();
+			verdict = await(task);
+			if (verdict.isCacheable())
+			{
+				synchronized (entries)
+				{
+					entries.put(key, verdict);
+				}
+			}
+			return verdict;
+		}
+		finally
+		{
+			inFlight.remove(key, task);
+		}
+	}
+
+	/**
+	 * Removes all cached verdicts.  Counters are left untouched.
+	 */
+	public void clear()
+	{
+		synchronized (entries)
+		{
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return the number of verdicts currently cached
+	 */
+	public int size()
+	{
+		synchronized (entries)
+		{
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return the maximum number of verdicts kept
+	 */
+	public final int getMaximumSize()
+	{
+		return maximumSize;
+	}
+
+	/**
+	 * @return the number of lookups which did not need to compute a verdict
+	 */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of lookups which computed a verdict
+	 */
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * @return the number of verdicts evicted to respect the maximum size
+	 */
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+
+	/**
+	 * Looks up a cached verdict
+	 * @param key
+	 * @return the verdict or null if not cached
+	 */
+	private Verdict lookup(Key key)
+	{
+		synchronized (entries)
+		{
+			return entries.get(key);
+		}
+	}
+
+	/**
+	 * Waits for a verdict computation, rethrowing any unchecked failure as is
+	 * @param task
+	 * @return the computed verdict
+	 */
+	private static Verdict await(FutureTask<Verdict> task)
+	{
+		try
+		{
+			return task.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for verdict", e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * The outcome of sanitising a query
+	 */
+	public static final class Verdict
+	{
+		/** Shared accepted verdict */
+		private static final Verdict ACCEPTED = new Verdict(null, null, true, QueryDependencies.EMPTY, null, -1);
+
+		/** Error code, null if accepted */
+		private final String code;
+		/** Offending identifier, may be null */
+		private final String identifier;
+		/** Whether the verdict may be kept for later lookups */
+		private final boolean cacheable;
+		/** What an accepted query depends on, null if rejected */
+		private final QueryDependencies dependencies;
+		/** Query re-rendered with its row cap, null if not rewritten */
+		private final String rewrittenQuery;
+		/** Estimated cost of an accepted query, -1 if not estimated */
+		private final long estimatedCost;
+
+		/**
+		 * Creates a new verdict
+		 * @param code
+		 * @param identifier
+		 * @param cacheable
+		 * @param dependencies
+		 * @param rewrittenQuery
+		 * @param estimatedCost
+		 */
+		private Verdict(
+				String code, 
+				String identifier, 
+				boolean cacheable, 
+				QueryDependencies dependencies, 
+				String rewrittenQuery,
+				long estimatedCost)
+		{
+			this.code = code;
+			this.identifier = identifier;
+			this.cacheable = cacheable;
+			this.dependencies = dependencies;
+			this.rewrittenQuery = rewrittenQuery;
+			this.estimatedCost = estimatedCost;
+		}
+
+		/**
+		 * @return an accepted verdict without dependencies
+		 */
+		public static Verdict accepted()
+		{
+			return ACCEPTED;
+		}
+
+		/**
+		 * @param dependencies what the query depends on
+		 * @return an accepted verdict
+		 */
+		public static Verdict accepted(QueryDependencies dependencies)
+		{
+			return accepted(dependencies, null);
+		}
+
+		/**
+		 * @param dependencies what the query depends on
+		 * @param rewrittenQuery query with its row cap, null if not rewritten
+		 * @return an accepted verdict
+		 */
+		public static Verdict accepted(QueryDependencies dependencies, String rewrittenQuery)
+		{
+			return accepted(dependencies, rewrittenQuery, -1);
+		}
+
+		/**
+		 * @param dependencies what the query depends on
+		 * @param rewrittenQuery query with its row cap, null if not rewritten
+		 * @param estimatedCost estimated cost of the query, -1 if not estimated
+		 * @return an accepted verdict
+		 */
+		public static Verdict accepted(QueryDependencies dependencies, String rewrittenQuery, long estimatedCost)
+		{
+			return new Verdict(null, null, true, dependencies, rewrittenQuery, estimatedCost);
+		}
+
+		/**
+		 * @param code error code
+		 * @param identifier offending identifier, may be null
+		 * @return a rejected verdict
+		 */
+		public static Verdict rejected(String code, String identifier)
+		{
+			return new Verdict(code, identifier, true, null, null, -1);
+		}
+
+		/**
+		 * A rejection which does not only depend on the query, such as a 
+		 * timeout, is handed to the waiting threads but not cached
+		 * 
+		 * @param code error code
+		 * @param identifier offending identifier, may be null
+		 * @return a rejected verdict which is not cached
+		 */
+		public static Verdict rejectedUncached(String code, String identifier)
+		{
+			return new Verdict(code, identifier, false, null, null, -1);
+		}
+
+		/**
+		 * @return true if the query was accepted
+		 */
+		public boolean isAccepted()
+		{
+			return code == null;
+		}
+
+		/**
+		 * @return true if the verdict may be kept for later lookups
+		 */
+		public boolean isCacheable()
+		{
+			return cacheable;
+		}
+
+		/**
+		 * @return what an accepted query depends on, null if rejected
+		 */
+		public QueryDependencies getDependencies()
+		{
+			return dependencies;
+		}
+
+		/**
+		 * @return the query with its row cap, null if not rewritten
+		 */
+		public String getRewrittenQuery()
+		{
+			return rewrittenQuery;
+		}
+
+		/**
+		 * @return the estimated cost of an accepted query, -1 if not estimated
+		 */
+		public long getEstimatedCost()
+		{
+			return estimatedCost;
+		}
+
+		/**
+		 * @return the error code, null if accepted
+		 */
+		public String getCode()
+		{
+			return code;
+		}
+
+		/**
+		 * @return the offending identifier, may be null
+		 */
+		public String getIdentifier()
+		{
+			return identifier;
+		}
+	}
+
+	/**
+	 * Cache key made of the query and the constraints fingerprint
+	 */
+	static final class Key
+	{
+		/** Query text */
+		private final String query;
+		/** Constraints fingerprint */
+		private final long fingerprint;
+
+		/**
+		 * Creates a new key
+		 * @param query
+		 * @param fingerprint
+		 */
+		Key(String query, long fingerprint)
+		{
+			this.query = query;
+			this.fingerprint = fingerprint;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * query.hashCode() + Long.hashCode(fingerprint);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+
+			Key other = (Key) obj;
+			return fingerprint == other.fingerprint && query.equals(other.query);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package com.jf.java.sql;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Default queries run to warm up a sanitiser, covering the clauses, joins,
+ * expressions and rejections of typical report queries so that the parser
+ * grammar is loaded and the walk is compiled before real queries arrive.
+ *
+ * @author james
+ *
+ */
+final class WarmUpCorpus
+{
+	/** Representative queries, accepted and rejected */
+	static final List<String> QUERIES = Collections.unmodifiableList(Arrays.asList(
+			"select u.id, u.name from users u where u.id = 1",
+			"select * from users u where u.name like 'a%' and (u.age > 18 or u.age is null) order by u.name limit 10",
+			"select u.name, count(o.id) as n, sum(o.total) as total from users u "
+					+ "join orders o on o.user_id = u.id and o.closed is not null "
+					+ "where o.created >= '2020-01-01' group by u.name having count(o.id) > 2",
+			"select s.name, s.n from (select u.name, count(*) as n from users u group by u.name) s where s.n > 1",
+			"select u.id from users u union all select o.user_id from orders o order by 1",
+			"select distinct lower(u.name), coalesce(u.email, 'none') from users u left join orders o on o.user_id = u.id",
+			"select cast(o.total as numeric), o.details->>'ship' as ship from orders o where o.total <> -1.5",
+			"select o.id from orders o where o.total >= 10 and o.total <= 20 or o.total = 100",
+			"select p.secret from payments p",
+			"select u.id from users u where u.id = drop_all()",
+			"insert into users (id) values (1)",
+			"select from where"));
+
+	/**
+	 * Not instantiable
+	 */
+	private WarmUpCorpus()
+	{
+	}
+
+	/**
+	 * @return constraints accepting the accepted queries of the corpus
+	 */
+	static QueryConstraints constraints()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("users", "orders"));
+		constraints.setFunctionWhitelist(Arrays.asList("count", "sum", "lower", "coalesce"));
+		return constraints;
+	}
+}
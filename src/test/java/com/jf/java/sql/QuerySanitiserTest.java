@@ -1,13 +1,62 @@
 package com.jf.java.sql;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.function.Executable;
 
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.LongValue;
+import net.sf.jsqlparser.expression.operators.conditional.AndExpression;
+import net.sf.jsqlparser.expression.operators.conditional.OrExpression;
+import net.sf.jsqlparser.expression.operators.relational.EqualsTo;
+import net.sf.jsqlparser.parser.CCJSqlParserUtil;
+import net.sf.jsqlparser.schema.Column;
+import net.sf.jsqlparser.schema.Table;
+import net.sf.jsqlparser.statement.select.PlainSelect;
+import net.sf.jsqlparser.statement.select.Select;
+
 /**
  * Unit test for simple App.
  */
@@ -287,7 +336,7 @@ public class QuerySanitiserTest
 				+ "select * from frontoffice.product dfp "
 				+ "join operations.business_transaction_line fpl on dfp.id = fpl.y "
 				+ "join ("
-				+ "select now(), 1 from operations.business_transaction_line"
+				+ "select id, now(), 1 from operations.business_transaction_line"
 				+ ") xx on xx.id = dfp.id) g " + 
 				"join frontoffice.product fp on fp.composite = g.urid " + 
 				"join (select now()) " + 
@@ -336,14 +385,1477 @@ public class QuerySanitiserTest
 				"now", "sum"));
 		
 		sanitser.doSanitise(
-				"select p.composite\n" + 
+				"select l.composite\n" + 
 				"from transaction_line l\n" + 
 				"union\n" + 
-				"select p.composite\n" + 
+				"select l.composite\n" + 
 				"from transaction_line l\n", 
 				constraints);
 	}
 	
+	/**
+	 * Test that a repeated query is answered from the verdict cache
+	 */
+	@Test
+	public void doTest_CachedVerdict_ShouldHit()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("transactions"));
+		VerdictCache cache = new VerdictCache(16);
+		sanitser.setVerdictCache(cache);
+		
+		sanitser.doSanitise("select * from transactions", constraints);
+		sanitser.doSanitise("select * from transactions", constraints);
+		
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+	}
+	
+	/**
+	 * Test that a cached rejection throws again with the same code
+	 */
+	@Test
+	public void doTest_CachedRejection_ShouldThrow()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("transactions"));
+		VerdictCache cache = new VerdictCache(16);
+		sanitser.setVerdictCache(cache);
+		
+		for (int i = 0; i < 2; i++)
+		{
+			QueryRejectedException e = assertThrows(QueryRejectedException.class, () -> {
+				sanitser.doSanitise("select * from transaction_lines", constraints);
+			});
+			assertEquals("B005", e.getCode());
+		}
+		assertEquals(1, cache.getHits());
+	}
+	
+	/**
+	 * Test that changing the whitelist does not reuse a stale verdict
+	 */
+	@Test
+	public void doTest_CachedVerdictChangedConstraints_ShouldThrow()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("transactions"));
+		sanitser.setVerdictCache(new VerdictCache(16));
+		
+		sanitser.doSanitise("select * from transactions", constraints);
+		constraints.setTableWhitelist(Arrays.asList("transaction_lines"));
+		
+		assertThrows(QueryRejectedException.class, () -> {
+			sanitser.doSanitise("select * from transactions", constraints);
+		});
+	}
+	
+	/**
+	 * Test that the cache evicts the least recently used verdict
+	 */
+	@Test
+	public void doTest_CacheFull_ShouldEvict()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("a", "b", "c"));
+		VerdictCache cache = new VerdictCache(2);
+		sanitser.setVerdictCache(cache);
+		
+		sanitser.doSanitise("select * from a", constraints);
+		sanitser.doSanitise("select * from b", constraints);
+		sanitser.doSanitise("select * from a", constraints);
+		sanitser.doSanitise("select * from c", constraints);
+		sanitser.doSanitise("select * from a", constraints);
+		
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertEquals(2, cache.getHits());
+	}
+	
+	/**
+	 * Test that concurrent misses on the same key compute the verdict once
+	 * @throws Exception 
+	 */
+	@Test
+	public void doTest_ConcurrentMisses_ShouldMerge() throws Exception
+	{
+		VerdictCache cache = new VerdictCache(16);
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread(() -> {
+				try
+				{
+					start.await();
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				cache.get("select 1", 1L, () -> {
+					loads.incrementAndGet();
+					Thread.sleep(200);
+					return VerdictCache.Verdict.accepted();
+				});
+			});
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		
+		assertEquals(1, loads.get());
+		assertEquals(1, cache.getMisses());
+		assertEquals(7, cache.getHits());
+	}
+	
+	/**
+	 * Test that queries differing only in literals share a cached verdict
+	 */
+	@Test
+	public void doTest_SameShapeDifferentLiterals_ShouldHit()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("transaction"));
+		VerdictCache cache = new VerdictCache(16);
+		sanitser.setVerdictCache(cache);
+		sanitser.setNormaliseLiterals(true);
+		
+		sanitser.doSanitise("select * from transaction t "
+				+ "where t.type = 'e8033084-b14c-4ecf-aa9d-d838e0516414' and t.id < 8", constraints);
+		sanitser.doSanitise("select * from transaction t\n"
+				+ "where t.type = '1bfbcca7-6fa7-4026-9926-93e1443c2b83'  and t.id < 12", constraints);
+		
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+	}
+	
+	/**
+	 * Test the shape of queries with literals
+	 */
+	@Test
+	public void doTest_QueryShape_ShouldNormaliseLiterals()
+	{
+		QueryShape a = QueryShape.of("select t.a1 from t where t.b = 'it''s' and t.c < 8.8 -- 'x'\n");
+		QueryShape b = QueryShape.of("select  t.a1 from t\nwhere t.b = 'no' and t.c < 1.5 -- 'x'\n");
+		
+		assertEquals("select t.a1 from t where t.b = \u0001s and t.c < \u0001d -- 'x'\n", a.getShape());
+		assertEquals(a.getShape(), b.getShape());
+		assertEquals(a.getHash(), b.getHash());
+		assertEquals(2, a.getLiterals());
+		assertNotEquals(a.getHash(), QueryShape.of("select t.a1 from t where t.b = 1").getHash());
+		assertNull(QueryShape.of("select * from t where t.b = 'a\\'b'"));
+		assertNull(QueryShape.of("select 1from t"));
+		assertNull(QueryShape.of("select t.a1 from t where t.b = \u0001s"));
+		assertNull(QueryShape.of("select t.a1 from t /* \u0001s */"));
+		assertNotEquals(QueryShape.of("select t.a1 from t where t.b = ?s").getShape(),
+				QueryShape.of("select t.a1 from t where t.b = 'x'").getShape());
+	}
+	
+	/**
+	 * Test compiled constraints resolve qualified names regardless of case
+	 */
+	@Test
+	public void doTest_CompiledIgnoreCase_ShouldPass()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList(
+				"operations.business_transaction", "product"));
+		constraints.setFunctionWhitelist(Arrays.asList("now"));
+		CompiledQueryConstraints compiled = constraints.compile(true);
+		
+		sanitser.doSanitise("select NOW() from Operations.Business_Transaction t "
+				+ "join PRODUCT p on p.id = t.product", compiled);
+		
+		assertThrows(QueryRejectedException.class, () -> {
+			sanitser.doSanitise("select * from product.operations", compiled);
+		});
+		assertThrows(QueryRejectedException.class, () -> {
+			sanitser.doSanitise("select * from Product", constraints.compile());
+		});
+	}
+	
+	/**
+	 * Test compiled constraints cannot be changed and share fingerprints
+	 */
+	@Test
+	public void doTest_CompiledImmutable_ShouldThrow()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("transaction", "product"));
+		CompiledQueryConstraints compiled = constraints.compile();
+		
+		assertEquals(constraints.fingerprint(), compiled.fingerprint());
+		assertNotEquals(compiled.fingerprint(), constraints.compile(true).fingerprint());
+		assertThrows(UnsupportedOperationException.class, () -> {
+			compiled.setTableWhitelist(Arrays.asList("users"));
+		});
+		assertThrows(UnsupportedOperationException.class, () -> {
+			compiled.getFunctionWhitelist().add("execute");
+		});
+	}
+	
+	/**
+	 * Test the fingerprint of mutable constraints is kept until a setter 
+	 * changes them, and collections passed in or handed out cannot change 
+	 * them behind its back
+	 */
+	@Test
+	public void doTest_Fingerprint_ShouldFollowChanges()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		Set<String> tables = new HashSet<>(Arrays.asList("users", "orders"));
+		constraints.setTableWhitelist(tables);
+		long first = constraints.fingerprint();
+		assertEquals(first, constraints.fingerprint());
+		
+		sanitser.setVerdictCache(new VerdictCache(16));
+		assertTrue(sanitser.check("select o.id from orders o", constraints).isAccepted());
+		tables.remove("orders");
+		assertEquals(first, constraints.fingerprint());
+		assertTrue(sanitser.check("select o.id from orders o", constraints).isAccepted());
+		assertThrows(UnsupportedOperationException.class, () -> constraints.getTableWhitelist().remove("orders"));
+		assertThrows(UnsupportedOperationException.class, () -> constraints.getTableRows().put("orders", 10L));
+		
+		constraints.setTableWhitelist(tables);
+		long second = constraints.fingerprint();
+		assertNotEquals(first, second);
+		assertEquals("B005", sanitser.check("select o.id from orders o", constraints).getCode());
+		
+		constraints.setTableRows(Collections.singletonMap("users", 10L));
+		long third = constraints.fingerprint();
+		assertNotEquals(second, third);
+		
+		constraints.setMaxRows(5);
+		assertNotEquals(third, constraints.fingerprint());
+		assertEquals(constraints.compile().fingerprint(), constraints.fingerprint());
+	}
+	
+	/**
+	 * Test that the decision trace reports tables, columns and functions
+	 */
+	@Test
+	public void doTest_DecisionListener_ShouldTrace()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("transaction"));
+		constraints.setFunctionWhitelist(Arrays.asList("now"));
+		List<String> trace = new ArrayList<>();
+		sanitser.setLogQueries(false);
+		sanitser.setDecisionListener((kind, table, name, allowed) -> {
+			trace.add(kind + ":" + table + ":" + name + ":" + allowed);
+		});
+		
+		assertThrows(QueryRejectedException.class, () -> {
+			sanitser.doSanitise("select now(), t.id from transaction t where sum(t.x) > 1", constraints);
+		});
+		
+		assertEquals(Arrays.asList(
+				"SELECT:null:null:true",
+				"TABLE:transaction:t:true",
+				"FUNCTION:null:sum:false"), trace);
+	}
+	
+	/**
+	 * Test the non-throwing check of accepted and rejected queries
+	 */
+	@Test
+	public void doTest_Check_ShouldReturnResult()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("transactions"));
+		
+		assertTrue(sanitser.check("select * from transactions", constraints).isAccepted());
+		
+		SanitiseResult result = sanitser.check("select * from transaction_lines", constraints);
+		assertFalse(result.isAccepted());
+		assertEquals("B005", result.getCode());
+		assertEquals("transaction_lines", result.getIdentifier());
+		assertEquals("[B005] - Table not allowed in query (transaction_lines)", result.getMessage());
+		
+		assertEquals("S001", sanitser.check("", constraints).getCode());
+		assertEquals("B001", sanitser.check("DROP TABLE users;", constraints).getCode());
+	}
+	
+	/**
+	 * Test that rejections are typed and can skip the stack trace
+	 */
+	@Test
+	public void doTest_TypedRejection_ShouldThrow()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("transactions"));
+		
+		TableNotAllowedException e = assertThrows(TableNotAllowedException.class, () -> {
+			sanitser.doSanitise("select * from transaction_lines", constraints);
+		});
+		assertTrue(e.getStackTrace().length > 0);
+		
+		sanitser.setStackTraces(false);
+		FunctionNotAllowedException f = assertThrows(FunctionNotAllowedException.class, () -> {
+			sanitser.doSanitise("select now() from transactions", constraints);
+		});
+		assertEquals("now", f.getIdentifier());
+		assertEquals(0, f.getStackTrace().length);
+	}
+	
+	/**
+	 * Test a batch with repeated queries and mixed constraints
+	 */
+	@Test
+	public void doTest_Batch_ShouldKeepOrder()
+	{
+		QueryConstraints transactions = new QueryConstraints();
+		transactions.setTableWhitelist(Arrays.asList("transactions"));
+		QueryConstraints lines = new QueryConstraints();
+		lines.setTableWhitelist(Arrays.asList("transaction_lines"));
+		VerdictCache cache = new VerdictCache(16);
+		sanitser.setVerdictCache(cache);
+		sanitser.setBatchParallelism(3);
+		
+		List<SanitiseResult> results = sanitser.checkAll(Arrays.asList(
+				new SanitiseRequest("select * from transactions", transactions),
+				new SanitiseRequest("select * from transaction_lines", transactions),
+				new SanitiseRequest("select * from transactions", transactions),
+				new SanitiseRequest("select * from transaction_lines", lines),
+				new SanitiseRequest("DROP TABLE users;", lines)));
+		
+		assertEquals(5, results.size());
+		assertTrue(results.get(0).isAccepted());
+		assertEquals("B005", results.get(1).getCode());
+		assertTrue(results.get(2).isAccepted());
+		assertTrue(results.get(3).isAccepted());
+		assertEquals("B001", results.get(4).getCode());
+		assertEquals(4, cache.getMisses());
+		assertEquals(0, cache.getHits());
+	}
+	
+	/**
+	 * Test asynchronous checks complete with the result
+	 * @throws Exception 
+	 */
+	@Test
+	public void doTest_Async_ShouldComplete() throws Exception
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("transactions"));
+		
+		assertTrue(sanitser.checkAsync("select * from transactions", constraints)
+				.get(10, TimeUnit.SECONDS).isAccepted());
+		assertEquals("B005", sanitser.checkAsync("select * from users", constraints)
+				.get(10, TimeUnit.SECONDS).getCode());
+	}
+	
+	/**
+	 * Test asynchronous checks fail once their deadline passes
+	 */
+	@Test
+	public void doTest_AsyncDeadline_ShouldTimeout()
+	{
+		sanitser.setAsyncExecutor(task -> {});
+		CompletableFuture<SanitiseResult> future = sanitser.checkAsync(
+				"select 1", new QueryConstraints(), 50, TimeUnit.MILLISECONDS);
+		
+		ExecutionException e = assertThrows(ExecutionException.class, () -> {
+			future.get(10, TimeUnit.SECONDS);
+		});
+		assertTrue(e.getCause() instanceof TimeoutException);
+	}
+	
+	/**
+	 * Test the pre-filter rejects what it can prove and leaves the rest
+	 */
+	@Test
+	public void doTest_PreFilter_ShouldRejectEarly()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("transaction", "operations.composite"));
+		
+		assertTrue(new QueryPreFilter(" -- nothing\n", constraints).rejects());
+		assertTrue(new QueryPreFilter("DROP TABLE users;", constraints).rejects());
+		assertTrue(new QueryPreFilter("select * from transaction t, users u", constraints).rejects());
+		
+		QueryPreFilter filter = new QueryPreFilter(
+				"select * from transaction t join operations.users u on t.id = u.id", constraints);
+		assertTrue(filter.rejects());
+		assertEquals("B005", filter.getCode());
+		assertEquals("users", filter.getIdentifier());
+		
+		assertFalse(new QueryPreFilter(
+				"select extract(year from t.d), 'from users' from transaction t "
+				+ "join operations.composite c on c.id = t.id "
+				+ "join (select * from transaction) x on x.id = t.id", constraints).rejects());
+		assertFalse(new QueryPreFilter("select * from generate_series(1, 3)", constraints).rejects());
+		assertFalse(new QueryPreFilter("select * from lateral (select 1) x", constraints).rejects());
+		assertFalse(new QueryPreFilter("select $$ from users $$ from transaction", constraints).rejects());
+		
+		sanitser.setPreFilter(true);
+		assertEquals("S001", sanitser.check("", constraints).getCode());
+		assertEquals("B001", sanitser.check("insert into transaction(id) values(1)", constraints).getCode());
+		assertEquals("B005", sanitser.check("select * from users", constraints).getCode());
+		assertTrue(sanitser.check("select * from transaction", constraints).isAccepted());
+	}
+	
+	/**
+	 * Test that reused parsers recover from failed parses
+	 */
+	@Test
+	public void doTest_ParserReuseAfterFailure_ShouldPass()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("transactions"));
+		
+		for (int i = 0; i < 3; i++)
+		{
+			assertEquals("S001", sanitser.check("select * from #transactions", constraints).getCode());
+			assertEquals("S001", sanitser.check("select * from (", constraints).getCode());
+			assertTrue(sanitser.check("select * from transactions", constraints).isAccepted());
+		}
+	}
+	
+	/**
+	 * Test the complexity limits, should reject with the limit exceeded
+	 */
+	@Test
+	public void doTest_ComplexityLimits_ShouldThrow()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("a", "b", "c"));
+		constraints.setFunctionWhitelist(Arrays.asList("coalesce"));
+		String q = "select a.x from a join b on a.id = b.id join c on c.id = b.id "
+				+ "where (((a.x = 1))) and coalesce(a.y, 1) = 1";
+		assertTrue(sanitser.check(q, constraints).isAccepted());
+		
+		constraints.setMaxQueryLength(20);
+		SanitiseResult result = sanitser.check(q, constraints);
+		assertEquals("C001", result.getCode());
+		assertEquals("20", result.getIdentifier());
+		constraints.setMaxQueryLength(0);
+		
+		constraints.setMaxDepth(2);
+		assertEquals("C002", sanitser.check(q, constraints).getCode());
+		assertEquals("C002", sanitser.check(
+				"select x from (select x from (select x from (select 1 as x) s) t) u", constraints).getCode());
+		constraints.setMaxDepth(3);
+		assertTrue(sanitser.check(q, constraints).isAccepted());
+		assertTrue(sanitser.check("select a.x from a where a.x = '((((((('", constraints).isAccepted());
+		constraints.setMaxDepth(0);
+		
+		constraints.setMaxJoins(1);
+		assertEquals("C004", sanitser.check(q, constraints).getCode());
+		constraints.setMaxJoins(0);
+		
+		constraints.setMaxNodes(10);
+		assertEquals("C003", sanitser.check(q, constraints).getCode());
+		constraints.setMaxNodes(0);
+		
+		assertThrows(QueryTooComplexException.class, () -> {
+			QueryConstraints deep = new QueryConstraints();
+			deep.setMaxDepth(16);
+			StringBuilder sb = new StringBuilder("select ");
+			for (int i = 0; i < 1000; i++)
+				sb.append('(');
+			sanitser.doSanitise(sb.toString(), deep);
+		});
+	}
+	
+	/**
+	 * Test that running out of time rejects the query without caching it
+	 */
+	@Test
+	public void doTest_TimeLimit_ShouldNotCache()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("a"));
+		StringBuilder q = new StringBuilder("select a.x from a where a.x = 0");
+		for (int i = 1; i < 300; i++)
+			q.append(" or a.x = ").append(i);
+		
+		sanitser.setVerdictCache(new VerdictCache(16));
+		constraints.setMaxMillis(1);
+		sanitser.setDecisionListener((kind, table, name, allowed) -> {
+			try
+			{
+				Thread.sleep(2);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		});
+		assertEquals("C005", sanitser.check(q.toString(), constraints).getCode());
+		assertEquals(0, sanitser.getVerdictCache().size());
+		
+		sanitser.setDecisionListener(null);
+		constraints.setMaxMillis(60_000);
+		assertTrue(sanitser.check(q.toString(), constraints).isAccepted());
+		assertEquals(1, sanitser.getVerdictCache().size());
+	}
+	
+	/**
+	 * Test a left-deep chain of 100k terms, should pass without overflowing
+	 * the stack and still reject an unknown column at the end of the chain
+	 * @throws Exception 
+	 */
+	@Test
+	public void doTest_DeepPredicateChain_ShouldPass() throws Exception
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("a"));
+		Select select = (Select) CCJSqlParserUtil.parse("select a.x from a where a.x = 0");
+		PlainSelect body = (PlainSelect) select.getSelectBody();
+		
+		Expression where = body.getWhere();
+		for (int i = 1; i < 100_000; i++)
+			where = new OrExpression(where, equalTo("a", "x", i));
+		body.setWhere(where);
+		assertTrue(sanitser.check(select, constraints).isAccepted());
+		
+		StringBuilder sb = new StringBuilder("select a.x from a where a.x = 0");
+		for (int i = 1; i < 100_000; i++)
+			sb.append(" or a.x = ").append(i);
+		constraints.setMaxRows(10);
+		SanitiseResult capped = sanitser.check(sb.toString(), constraints);
+		assertTrue(capped.isAccepted());
+		assertTrue(capped.getRewrittenQuery().startsWith("SELECT a.x FROM a WHERE a.x = 0 OR a.x = 1 OR "));
+		assertTrue(capped.getRewrittenQuery().endsWith(" OR a.x = 99999 LIMIT 10"));
+		assertTrue(sanitser.check(select, constraints).getRewrittenQuery().endsWith(" OR a.x = 99999 LIMIT 10"));
+		assertEquals("SELECT a.x FROM a WHERE a.x = '\u00000\u0000' OR a.x = 1 LIMIT 10",
+				sanitser.check("select a.x from a where a.x = '\u00000\u0000' or a.x = 1", constraints).getRewrittenQuery());
+		constraints.setMaxRows(0);
+		
+		body.setWhere(new AndExpression(where, equalTo("b", "y", 1)));
+		SanitiseResult result = sanitser.check(select, constraints);
+		assertEquals("B003", result.getCode());
+		assertEquals("b", result.getIdentifier());
+	}
+	
+	/**
+	 * @param table
+	 * @param column
+	 * @param value
+	 * @return table.column = value
+	 */
+	private static Expression equalTo(String table, String column, long value)
+	{
+		EqualsTo eq = new EqualsTo();
+		eq.setLeftExpression(new Column(new Table(table), column));
+		eq.setRightExpression(new LongValue(value));
+		return eq;
+	}
+	
+	/**
+	 * Test the JMX metrics, should count checks, rejections and phases
+	 * @throws Exception 
+	 */
+	@Test
+	public void doTest_JmxMetrics_ShouldCount() throws Exception
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("transactions"));
+		sanitser.setVerdictCache(new VerdictCache(16));
+		JmxSanitiserMetrics metrics = JmxSanitiserMetrics.register(sanitser, "test");
+		ObjectName name = JmxSanitiserMetrics.objectName("test");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			sanitser.check("select * from transactions", constraints);
+			sanitser.check("select * from transactions", constraints);
+			sanitser.check("select * from users", constraints);
+			sanitser.check("delete from transactions", constraints);
+			
+			assertEquals(4L, server.getAttribute(name, "Checks"));
+			assertEquals(2L, server.getAttribute(name, "Accepted"));
+			assertEquals(2L, server.getAttribute(name, "Rejected"));
+			assertEquals(1L, metrics.getRejectionsByCode().get("B005").longValue());
+			assertEquals(1L, metrics.getRejectionsByCode().get("B001").longValue());
+			assertEquals(1L, server.getAttribute(name, "CacheHits"));
+			assertEquals(3L, ((CompositeData) server.getAttribute(name, "ParseNanos")).get("count"));
+			assertEquals(3L, metrics.getValidateNanos().getCount());
+			assertEquals(4L, metrics.getQueryLength().getCount());
+			assertEquals(26L, metrics.getQueryLength().getMax());
+			
+			server.invoke(name, "reset", null, null);
+			assertEquals(0L, metrics.getChecks());
+		}
+		finally
+		{
+			server.unregisterMBean(name);
+		}
+	}
+	
+	/**
+	 * Test a multi-statement script, should report each statement with its 
+	 * position
+	 * @throws Exception 
+	 */
+	@Test
+	public void doTest_Script_ShouldSplit() throws Exception
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("transactions"));
+		String script = "-- report pack\n"
+				+ "select * from transactions where transactions.note = 'a;b';\n"
+				+ "\n"
+				+ "/* ; */ select * from users;;\n"
+				+ "delete from transactions; select '\u00e9' from transactions -- end\n";
+		
+		List<ScriptVerdict> verdicts = new ArrayList<>();
+		int count = sanitser.checkScript(new StringReader(script), constraints, verdicts::add);
+		assertEquals(4, count);
+		
+		assertTrue(verdicts.get(0).getResult().isAccepted());
+		assertEquals("select * from transactions where transactions.note = 'a;b'", verdicts.get(0).getQuery());
+		assertEquals(2, verdicts.get(0).getLine());
+		assertEquals(15, verdicts.get(0).getOffset());
+		
+		assertEquals("B005", verdicts.get(1).getResult().getCode());
+		assertEquals(4, verdicts.get(1).getLine());
+		assertEquals(script.indexOf("select * from users"), verdicts.get(1).getOffset());
+		
+		assertEquals("B001", verdicts.get(2).getResult().getCode());
+		assertEquals(5, verdicts.get(2).getLine());
+		
+		assertTrue(verdicts.get(3).getResult().isAccepted());
+		assertEquals("select '\u00e9' from transactions -- end", verdicts.get(3).getQuery());
+		
+		Path file = Files.createTempFile("script", ".sql");
+		try
+		{
+			Files.write(file, script.getBytes(StandardCharsets.UTF_8));
+			List<ScriptVerdict> mapped = new ArrayList<>();
+			sanitser.checkScript(file, constraints, mapped::add);
+			assertEquals(4, mapped.size());
+			for (int i = 0; i < 4; i++)
+			{
+				assertEquals(verdicts.get(i).getQuery(), mapped.get(i).getQuery());
+				assertEquals(verdicts.get(i).getOffset(), mapped.get(i).getOffset());
+			}
+		}
+		finally
+		{
+			Files.delete(file);
+		}
+		
+		constraints.setMaxQueryLength(30);
+		verdicts.clear();
+		sanitser.checkScript(new StringReader(script), constraints, verdicts::add);
+		assertEquals("C001", verdicts.get(0).getResult().getCode());
+		assertEquals(30, verdicts.get(0).getQuery().length());
+		assertEquals("B005", verdicts.get(1).getResult().getCode());
+	}
+	
+	/**
+	 * Test reading a file through small mapped windows, should decode 
+	 * characters split across windows
+	 * @throws Exception 
+	 */
+	@Test
+	public void doTest_MappedWindows_ShouldDecode() throws Exception
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 200; i++)
+			sb.append("a\u00e9\u20ac\uD83D\uDE00");
+		String text = sb.toString();
+		
+		Path file = Files.createTempFile("mapped", ".sql");
+		try
+		{
+			Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+			StringBuilder read = new StringBuilder();
+			try (MappedFileReader reader = new MappedFileReader(file, 17))
+			{
+				char[] buffer = new char[7];
+				int n;
+				while ((n = reader.read(buffer, 0, buffer.length)) >= 0)
+					read.append(buffer, 0, n);
+			}
+			assertEquals(text, read.toString());
+		}
+		finally
+		{
+			Files.delete(file);
+		}
+	}
+	
+	/**
+	 * Test the dependencies of an accepted query, should hold the statement 
+	 * and what it reads unless cached
+	 */
+	@Test
+	public void doTest_Dependencies_ShouldResolve()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("transactions", "accounts.users"));
+		constraints.setFunctionWhitelist(Arrays.asList("sum", "coalesce"));
+		String q = "select u.name as who, sum(t.amount) total from transactions t "
+				+ "join accounts.users u on u.id = t.owner "
+				+ "join (select transactions.id from transactions) s on s.id = t.id "
+				+ "where coalesce(t.void, 0) = 0 group by u.name";
+		
+		SanitiseResult result = sanitser.doSanitise(q, constraints);
+		assertTrue(result.getStatement() instanceof Select);
+		QueryDependencies deps = result.getDependencies();
+		assertEquals(Arrays.asList("transactions", "accounts.users"), new ArrayList<>(deps.getTables()));
+		assertEquals("accounts.users", deps.getTableAliases().get("u"));
+		assertEquals("transactions", deps.getTableAliases().get("t"));
+		assertTrue(deps.getSubSelects().contains("s"));
+		assertTrue(deps.getSelectAliases().containsAll(Arrays.asList("who", "total")));
+		assertEquals(Arrays.asList("coalesce", "sum"), new ArrayList<>(deps.getFunctions()));
+		assertThrows(UnsupportedOperationException.class, () -> deps.getTables().add("users"));
+		
+		sanitser.setVerdictCache(new VerdictCache(16));
+		assertTrue(sanitser.check(q, constraints).getStatement() != null);
+		SanitiseResult cached = sanitser.check(q, constraints);
+		assertNull(cached.getStatement());
+		assertEquals(deps.getTables(), cached.getDependencies().getTables());
+		assertNull(sanitser.check("select * from users", constraints).getDependencies());
+	}
+	
+	/**
+	 * Test the row cap, should add or tighten limits of accepted queries
+	 */
+	@Test
+	public void doTest_RowCap_ShouldRewrite()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("t", "u"));
+		constraints.setMaxRows(100);
+		
+		assertEquals("SELECT * FROM t LIMIT 100", 
+				sanitser.doSanitise("select * from t", constraints).getRewrittenQuery());
+		assertNull(sanitser.doSanitise("select * from t limit 10", constraints).getRewrittenQuery());
+		assertEquals("SELECT * FROM t LIMIT 100 OFFSET 20", 
+				sanitser.doSanitise("select * from t limit 500 offset 20", constraints).getRewrittenQuery());
+		assertEquals("SELECT * FROM t LIMIT 100", 
+				sanitser.doSanitise("select * from t limit all", constraints).getRewrittenQuery());
+		assertEquals("SELECT * FROM t FETCH FIRST 100 ROWS ONLY", 
+				sanitser.doSanitise("select * from t fetch first 500 rows only", constraints).getRewrittenQuery());
+		assertEquals("SELECT t.a FROM t UNION ALL SELECT u.a FROM u LIMIT 100", 
+				sanitser.doSanitise("select t.a from t union all select u.a from u limit 1000", constraints)
+					.getRewrittenQuery());
+		assertEquals("(SELECT t.a FROM t LIMIT 100) UNION ALL (SELECT u.a FROM u) LIMIT 100", 
+				sanitser.doSanitise("(select t.a from t limit 500) union all (select u.a from u)", constraints)
+					.getRewrittenQuery());
+		assertEquals("(SELECT t.a FROM t LIMIT 500) UNION (SELECT u.a FROM u) LIMIT 100", 
+				sanitser.doSanitise("(select t.a from t limit 500) union (select u.a from u)", constraints)
+					.getRewrittenQuery());
+		
+		sanitser.setVerdictCache(new VerdictCache(16));
+		sanitser.setNormaliseLiterals(true);
+		assertEquals("SELECT * FROM t WHERE t.a = 1 LIMIT 100", 
+				sanitser.check("select * from t where t.a = 1", constraints).getRewrittenQuery());
+		assertEquals("SELECT * FROM t WHERE t.a = 2 LIMIT 100", 
+				sanitser.check("select * from t where t.a = 2", constraints).getRewrittenQuery());
+		assertEquals("SELECT * FROM t WHERE t.a = 1 LIMIT 100", 
+				sanitser.check("select * from t where t.a = 1", constraints).getRewrittenQuery());
+		assertEquals(1, sanitser.getVerdictCache().getHits());
+	}
+	
+	/**
+	 * Test columns are resolved against the schema catalog and the column
+	 * whitelists
+	 * @throws Exception
+	 */
+	@Test
+	public void doTest_SchemaCatalog_ShouldResolveColumns() throws Exception
+	{
+		CsvSchemaCatalog catalog = CsvSchemaCatalog.load(new StringReader(
+				"table,column\n# users\nusers,id\nusers,name\nusers,email\n\norders,id,bigint\norders,user_id\norders,total\n"), 
+				false);
+		assertEquals(2, catalog.getTableCount());
+		assertEquals(6, catalog.getColumnCount());
+		
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("users", "orders", "audit"));
+		long open = constraints.fingerprint();
+		constraints.setColumnWhitelist("users", Arrays.asList("id", "name"));
+		assertNotEquals(open, constraints.fingerprint());
+		assertEquals(constraints.fingerprint(), constraints.compile().fingerprint());
+		
+		assertEquals("B010", sanitser.check("select u.email from users u", constraints).getCode());
+		assertEquals("B010", sanitser.check("select email from users", constraints).getCode());
+		assertNull(sanitser.check("select u.id from users u", constraints).getCode());
+		
+		sanitser.setSchemaCatalog(catalog);
+		assertNull(sanitser.check("select u.id, o.total from users u join orders o on o.user_id = u.id", constraints).getCode());
+		assertNull(sanitser.check("select total from users u join orders o on o.user_id = u.id", constraints).getCode());
+		assertNull(sanitser.check("select u.name as n from users u order by n", constraints).getCode());
+		assertNull(sanitser.check("select a.anything from audit a", constraints).getCode());
+		assertNull(sanitser.check("select a.nope from users u join audit a on a.id = u.id", constraints).getCode());
+		assertEquals("B010", sanitser.check("select nope from users u join audit a on a.id = u.id", constraints).getCode());
+		assertEquals("B009", sanitser.check("select u.nope from users u", constraints).getCode());
+		assertEquals("B009", sanitser.check("select nope from users", constraints).getCode());
+		assertEquals("B009", sanitser.check("select o.id from orders o where o.price > 1", constraints).getCode());
+		assertEquals("B010", sanitser.check("select u.email from users u", constraints).getCode());
+		assertEquals("B010", sanitser.check("select o.total from orders o join users u on u.email = 'x'", constraints).getCode());
+		assertEquals("B010", sanitser.check("select U.EMAIL from USERS U", constraints.compile(true)).getCode());
+		
+		Executable test = () -> sanitser.doSanitise("select u.nope from users u", constraints);
+		assertThrows(UnknownReferenceException.class, test, "Unknown column");
+		test = () -> sanitser.doSanitise("select u.email from users u", constraints);
+		assertThrows(ColumnNotAllowedException.class, test, "Column blocked");
+	}
+	
+	/**
+	 * Test a wildcard cannot select the columns left out of a whitelist
+	 */
+	@Test
+	public void doTest_ColumnWhitelist_ShouldRejectWildcard()
+	{
+		QueryConstraints constraints = restrictedColumns();
+		assertEquals("B010", sanitser.check("select * from t", constraints).getCode());
+		assertEquals("B010", sanitser.check("select * from u join t on t.a = u.id", constraints).getCode());
+		assertEquals("B006", sanitser.check("select t.* from t", constraints).getCode());
+		assertNull(sanitser.check("select * from u", constraints).getCode());
+		assertNull(sanitser.check("select * from (select t.a from t) s", constraints).getCode());
+	}
+	
+	/**
+	 * Test an unqualified column which may belong to several tables must be
+	 * allowed by all of their whitelists
+	 */
+	@Test
+	public void doTest_ColumnWhitelist_ShouldRejectAmbiguous()
+	{
+		QueryConstraints constraints = restrictedColumns();
+		assertEquals("B010", sanitser.check("select secret from t, u", constraints).getCode());
+		assertNull(sanitser.check("select a from t, u", constraints).getCode());
+		assertNull(sanitser.check("select u.secret from t, u", constraints).getCode());
+	}
+	
+	/**
+	 * Test columns of a derived table cannot reach the columns left out of the
+	 * whitelist of the table it reads
+	 */
+	@Test
+	public void doTest_ColumnWhitelist_ShouldRejectDerived()
+	{
+		QueryConstraints constraints = restrictedColumns();
+		assertEquals("B010", sanitser.check("select s.secret from (select * from t) s", constraints).getCode());
+		assertEquals("B010", sanitser.check("select s.secret from (select t.secret from t) s", constraints).getCode());
+		assertEquals("B010", sanitser.check("select s.secret from (select secret from t) s", constraints).getCode());
+		assertNull(sanitser.check("select s.a from (select t.a from t) s", constraints).getCode());
+	}
+	
+	/**
+	 * Test an alias of a selection cannot stand for a column left out of the
+	 * whitelist, except as a bare ORDER BY name
+	 */
+	@Test
+	public void doTest_ColumnWhitelist_ShouldRejectAliases()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("users"));
+		constraints.setFunctionWhitelist(Arrays.asList("count"));
+		constraints.setColumnWhitelist("users", Arrays.asList("id", "name"));
+		
+		assertEquals("B010", sanitser.check("select u.id as salary from users u where salary > 100000", 
+				constraints).getCode());
+		assertEquals("B010", sanitser.check("select u.id as salary, salary from users u", constraints).getCode());
+		assertEquals("B010", sanitser.check("select count(salary) as salary from users u", constraints).getCode());
+		assertEquals("B010", sanitser.check("select u.id as salary from users u order by salary + 0", 
+				constraints).getCode());
+		assertEquals("B010", sanitser.check("select u.id as salary from users u group by salary", 
+				constraints).getCode());
+		assertNull(sanitser.check("select u.id as salary from users u order by salary", constraints).getCode());
+	}
+	
+	/**
+	 * @return constraints allowing tables t and u, and only column a of t
+	 */
+	private static QueryConstraints restrictedColumns()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("t", "u"));
+		constraints.setColumnWhitelist("t", Arrays.asList("a"));
+		return constraints;
+	}
+	
+	/**
+	 * Test the static cost estimate, should reject cartesian joins of large
+	 * tables and report the cost of accepted queries
+	 */
+	@Test
+	public void doTest_Cost_ShouldRejectExpensive()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("users", "orders", "events"));
+		assertEquals(-1, sanitser.doSanitise("select u.id from users u", constraints).getEstimatedCost());
+		
+		Map<String, Long> rows = new HashMap<>();
+		rows.put("users", 10_000L);
+		rows.put("orders", 1_000_000L);
+		constraints.setTableRows(rows);
+		constraints.setMaxCost(5_000_000);
+		
+		assertEquals(10_000, sanitser.doSanitise("select u.id from users u", constraints).getEstimatedCost());
+		assertEquals(1_000, sanitser.doSanitise("select u.id from users u where u.id = 1", constraints).getEstimatedCost());
+		assertEquals(1_000, sanitser.doSanitise("select e.id from events e", constraints).getEstimatedCost());
+		assertEquals(2_010_000, sanitser.doSanitise(
+				"select u.id from users u join orders o on o.user_id = u.id", constraints).getEstimatedCost());
+		assertEquals(4_010_000, sanitser.doSanitise(
+				"select distinct u.id from users u join orders o on o.user_id = u.id order by u.id", constraints)
+				.getEstimatedCost());
+		assertEquals(201_000, sanitser.doSanitise(
+				"select u.id from users u, orders o where o.user_id = u.id", constraints).getEstimatedCost());
+		
+		assertEquals("C006", sanitser.check("select u.id from users u cross join orders o", constraints).getCode());
+		assertEquals("C006", sanitser.check("select u.id from users u, orders o", constraints).getCode());
+		assertEquals("C006", sanitser.check("select u.id from users u join orders o", constraints).getCode());
+		assertEquals("C006", sanitser.check("select o.id from orders o union select o.id from orders o "
+				+ "union select o.id from orders o", constraints).getCode());
+		assertEquals(constraints.fingerprint(), constraints.compile().fingerprint());
+		
+		Executable test = () -> sanitser.doSanitise("select u.id from users u cross join orders o", constraints);
+		assertThrows(QueryTooComplexException.class, test, "Cartesian join blocked");
+		
+		sanitser.setVerdictCache(new VerdictCache(16));
+		sanitser.check("select u.id from users u", constraints);
+		assertEquals(10_000, sanitser.check("select u.id from users u", constraints).getEstimatedCost());
+		assertEquals(1, sanitser.getVerdictCache().getHits());
+	}
+	
+	/**
+	 * Test the sub-selects of IN conditions add their cost to the query
+	 */
+	@Test
+	public void doTest_Cost_ShouldCountInSubSelects()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("users", "orders"));
+		Map<String, Long> rows = new HashMap<>();
+		rows.put("users", 10_000L);
+		rows.put("orders", 1_000_000L);
+		constraints.setTableRows(rows);
+		constraints.setMaxCost(500_000);
+		
+		assertEquals(101_000, sanitser.doSanitise("select u.id from users u where u.id in "
+				+ "(select o.user_id from orders o where o.total > 1)", constraints).getEstimatedCost());
+		assertEquals(101_000, sanitser.doSanitise("select u.id from users u where u.id = 1 or (u.id in "
+				+ "(select o.user_id from orders o where o.total > 1) and u.id is not null)", constraints)
+				.getEstimatedCost());
+		assertEquals("C006", sanitser.check("select u.id from users u where u.id in "
+				+ "(select o.user_id from orders o)", constraints).getCode());
+	}
+	
+	/**
+	 * Test constraints are looked up by tenant and reloaded when their file
+	 * changes, without changing snapshots already taken
+	 * @throws Exception 
+	 */
+	@Test
+	public void doTest_TenantRegistry_ShouldReload() throws Exception
+	{
+		Path dir = Files.createTempDirectory("tenants");
+		Path acme = dir.resolve("acme.properties");
+		try (ConstraintRegistry registry = new ConstraintRegistry(dir))
+		{
+			Files.write(acme, "tables=users\nmaxRows=10\n".getBytes(StandardCharsets.UTF_8));
+			registry.reload();
+			sanitser.setConstraintRegistry(registry);
+			
+			assertEquals("SELECT u.id FROM users u LIMIT 10", 
+					sanitser.doSanitiseForTenant("select u.id from users u", "acme").getRewrittenQuery());
+			assertEquals("S002", sanitser.checkForTenant("select u.id from users u", "nobody").getCode());
+			assertEquals("B005", sanitser.checkForTenant("select o.id from orders o", "acme").getCode());
+			
+			Map<String, CompiledQueryConstraints> before = registry.getSnapshot();
+			registry.watch();
+			Path next = dir.resolve("acme.tmp");
+			Files.write(next, "tables=orders\n".getBytes(StandardCharsets.UTF_8));
+			Files.move(next, acme, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			
+			long deadline = System.currentTimeMillis() + 10_000;
+			while (!sanitser.checkForTenant("select o.id from orders o", "acme").isAccepted() 
+					&& System.currentTimeMillis() < deadline)
+				Thread.sleep(20);
+			
+			assertTrue(sanitser.checkForTenant("select o.id from orders o", "acme").isAccepted());
+			assertEquals("B005", sanitser.checkForTenant("select u.id from users u", "acme").getCode());
+			assertTrue(before.get("acme").isTableAllowed("users"));
+			
+			Files.delete(acme);
+			deadline = System.currentTimeMillis() + 10_000;
+			while (registry.get("acme") != null && System.currentTimeMillis() < deadline)
+				Thread.sleep(20);
+			
+			Executable test = () -> sanitser.doSanitiseForTenant("select o.id from orders o", "acme");
+			assertThrows(QueryRejectedException.class, test, "Tenant removed");
+		}
+		finally
+		{
+			Files.deleteIfExists(acme);
+			Files.delete(dir);
+		}
+	}
+	
+	/**
+	 * Test the warm-up runs the corpus before reporting ready, without
+	 * touching the metrics or cache of the sanitiser
+	 */
+	@Test
+	public void doTest_WarmUp_ShouldReportReady()
+	{
+		QueryConstraints constraints = WarmUpCorpus.constraints();
+		int accepted = 0;
+		for (String query : WarmUpCorpus.QUERIES)
+			if (sanitser.check(query, constraints).isAccepted())
+				accepted++;
+		assertEquals(WarmUpCorpus.QUERIES.size() - 4, accepted);
+		
+		assertTrue(sanitser.isReady());
+		JmxSanitiserMetrics metrics = new JmxSanitiserMetrics();
+		sanitser.setMetrics(metrics);
+		sanitser.setVerdictCache(new VerdictCache(16));
+		sanitser.setWarmUpIterations(5);
+		assertFalse(sanitser.isReady());
+		assertEquals(0, sanitser.getWarmUpNanos());
+		
+		sanitser.afterPropertiesSet();
+		assertTrue(sanitser.isReady());
+		assertTrue(sanitser.getWarmUpNanos() > 0);
+		assertEquals(0, metrics.getChecks());
+		assertEquals(0, sanitser.getVerdictCache().size());
+	}
+	
+	/**
+	 * Test the server answers pipelined and batched requests in order over
+	 * localhost, and drops clients sending oversized frames
+	 * @throws Exception 
+	 */
+	@Test
+	public void doTest_Server_ShouldAnswerPipelined() throws Exception
+	{
+		Path dir = Files.createTempDirectory("tenants");
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("users"));
+		constraints.setMaxRows(5);
+		
+		try (ConstraintRegistry registry = new ConstraintRegistry(dir);
+				SanitiserServer server = new SanitiserServer(sanitser, 2))
+		{
+			registry.put("acme", constraints);
+			sanitser.setConstraintRegistry(registry);
+			server.setMaxFrameLength(1024);
+			server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			
+			try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getAddress().getPort()))
+			{
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				writeRequest(out, 1, "acme", "select u.id from users u limit 2");
+				writeRequest(out, 2, "acme", "select u.id from users u", "select o.id from orders o", 
+						"select u.name from users u where u.name = '\u00e9'");
+				writeRequest(out, 3, "nobody", "select u.id from users u");
+				out.flush();
+				
+				assertEquals(Arrays.asList("1", "ACCEPTED"), readResponse(in));
+				assertEquals(Arrays.asList("2", "SELECT u.id FROM users u LIMIT 5", "B005", 
+						"SELECT u.name FROM users u WHERE u.name = '\u00e9' LIMIT 5"), readResponse(in));
+				assertEquals(Arrays.asList("3", "S002"), readResponse(in));
+				
+				out.writeInt(4096);
+				out.flush();
+				assertEquals(-1, in.read());
+			}
+		}
+		finally
+		{
+			Files.delete(dir);
+		}
+	}
+	
+	/**
+	 * Test a connection with too many requests outstanding keeps its frames
+	 * buffered and dispatches them as responses drain
+	 * @throws Exception 
+	 */
+	@Test
+	public void doTest_Server_ShouldResumeAfterDraining() throws Exception
+	{
+		Path dir = Files.createTempDirectory("tenants");
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("users"));
+		
+		try (ConstraintRegistry registry = new ConstraintRegistry(dir);
+				SanitiserServer server = new SanitiserServer(sanitser, 2))
+		{
+			registry.put("acme", constraints);
+			sanitser.setConstraintRegistry(registry);
+			server.setMaxPending(1);
+			server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			
+			try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getAddress().getPort()))
+			{
+				socket.setSoTimeout(10000);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				for (int i = 0; i < 50; i++)
+					writeRequest(out, i, "acme", i % 2 == 0 ? "select u.id from users u" : "select o.id from orders o");
+				out.flush();
+				
+				for (int i = 0; i < 50; i++)
+					assertEquals(Arrays.asList(String.valueOf(i), i % 2 == 0 ? "ACCEPTED" : "B005"), readResponse(in));
+			}
+		}
+		finally
+		{
+			Files.delete(dir);
+		}
+	}
+	
+	/**
+	 * Test a client which sends without reading its responses stops being
+	 * read once too many responses are unwritten, and is served again once
+	 * it reads them
+	 * @throws Exception 
+	 */
+	@Test
+	public void doTest_Server_ShouldStopReadingSlowClients() throws Exception
+	{
+		Path dir = Files.createTempDirectory("tenants");
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("users"));
+		constraints.setMaxRows(1);
+		char[] name = new char[64 * 1024];
+		Arrays.fill(name, 'x');
+		String query = "select u.id from users u where u.name = '" + new String(name) + "'";
+		int requests = 500;
+		
+		try (ConstraintRegistry registry = new ConstraintRegistry(dir);
+				SanitiserServer server = new SanitiserServer(sanitser, 2))
+		{
+			registry.put("acme", constraints);
+			sanitser.setLogQueries(false);
+			sanitser.setVerdictCache(new VerdictCache(16));
+			sanitser.setConstraintRegistry(registry);
+			server.setMaxPending(4);
+			server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			
+			try (Socket socket = new Socket())
+			{
+				socket.setReceiveBufferSize(64 * 1024);
+				socket.setSendBufferSize(64 * 1024);
+				socket.setSoTimeout(30000);
+				socket.connect(server.getAddress());
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+					try
+					{
+						for (int i = 0; i < requests; i++)
+							writeRequest(out, i, "acme", query);
+						out.flush();
+					}
+					catch (IOException e)
+					{
+						throw new UncheckedIOException(e);
+					}
+				});
+				
+				assertThrows(TimeoutException.class, () -> sent.get(2, TimeUnit.SECONDS));
+				for (int i = 0; i < requests; i++)
+					assertEquals(String.valueOf(i), readResponse(in).get(0));
+				sent.get(30, TimeUnit.SECONDS);
+			}
+		}
+		finally
+		{
+			Files.delete(dir);
+		}
+	}
+	
+	/**
+	 * Writes a request frame of the sanitiser server
+	 * @param out
+	 * @param id
+	 * @param tenant
+	 * @param queries
+	 * @throws IOException
+	 */
+	private static void writeRequest(DataOutputStream out, int id, String tenant, String... queries) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream frame = new DataOutputStream(bytes);
+		frame.writeInt(id);
+		byte[] name = tenant.getBytes(StandardCharsets.UTF_8);
+		frame.writeInt(name.length);
+		frame.write(name);
+		frame.writeInt(queries.length);
+		for (String query : queries)
+		{
+			byte[] text = query.getBytes(StandardCharsets.UTF_8);
+			frame.writeInt(text.length);
+			frame.write(text);
+		}
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+	}
+	
+	/**
+	 * Reads a response frame of the sanitiser server
+	 * @param in
+	 * @return the request id followed by, for each query, its rewritten query
+	 * or ACCEPTED, or its error code
+	 * @throws IOException
+	 */
+	private static List<String> readResponse(DataInputStream in) throws IOException
+	{
+		in.readInt();
+		List<String> values = new ArrayList<>();
+		values.add(String.valueOf(in.readInt()));
+		int count = in.readInt();
+		for (int i = 0; i < count; i++)
+		{
+			byte status = in.readByte();
+			String value = readString(in);
+			if (status == SanitiserServer.ACCEPTED)
+				in.readLong();
+			else
+				readString(in);
+			values.add(value == null ? "ACCEPTED" : value);
+		}
+		return values;
+	}
+	
+	/**
+	 * @param in
+	 * @return the string, null if its length is -1
+	 * @throws IOException
+	 */
+	private static String readString(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Test templates are validated once and then bound by position or name,
+	 * rejecting illegal placeholders and values
+	 */
+	@Test
+	public void doTest_Template_ShouldBindParameters()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("users"));
+		
+		String sql = "select u.id from users u where u.id = ? and u.name = ? and u.note <> '?:x'";
+		assertThrows(IllegalExpressionException.class, () -> sanitser.doSanitise(sql, constraints));
+		
+		QueryTemplate template = sanitser.prepare(sql, constraints);
+		assertEquals(2, template.getParameterCount());
+		assertEquals(sql, template.getQuery());
+		BoundQuery bound = template.bind(1, "a");
+		assertEquals(sql, bound.getQuery());
+		assertEquals(Arrays.asList(1, "a"), bound.getParameters());
+		assertThrows(IllegalParameterException.class, () -> template.bind(1));
+		assertThrows(IllegalParameterException.class, () -> template.bind(new Object(), "a"));
+		assertThrows(IllegalParameterException.class, () -> template.bind(Double.NaN, "a"));
+		
+		QueryTemplate named = sanitser.prepare(
+				"select u.id from users u where (u.id = :id or u.parent = :id) and u.name = :name", constraints);
+		assertEquals("select u.id from users u where (u.id = ? or u.parent = ?) and u.name = ?", named.getQuery());
+		assertEquals(Arrays.asList("id", "name"), new ArrayList<>(named.getParameterNames()));
+		Map<String, Object> values = new HashMap<>();
+		values.put("id", 5L);
+		assertThrows(IllegalParameterException.class, () -> named.bind(values));
+		values.put("name", null);
+		assertEquals(Arrays.asList(5L, 5L, null), named.bind(values).getParameters());
+		values.put("other", 1);
+		assertThrows(IllegalParameterException.class, () -> named.bind(values));
+		
+		assertThrows(IllegalParameterException.class, 
+				() -> sanitser.prepare("select u.id from users u where u.id = ? and u.name = :name", constraints));
+		assertThrows(TableNotAllowedException.class, 
+				() -> sanitser.prepare("select p.id from payments p where p.id = ?", constraints));
+		
+		constraints.setMaxRows(10);
+		QueryTemplate capped = sanitser.prepare("select u.id from users u where u.id = ?", constraints);
+		assertEquals("SELECT u.id FROM users u WHERE u.id = ? LIMIT 10", capped.getQuery());
+		assertThrows(IllegalParameterException.class, 
+				() -> sanitser.prepare("select u.id from users u limit ?", constraints));
+	}
+	
+	/**
+	 * Test literals of conditions are replaced with placeholders in the order
+	 * they are written, leaving selections, ordinals and limits alone
+	 */
+	@Test
+	public void doTest_Parameterise_ShouldBindLiterals()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("users", "orders"));
+		constraints.setFunctionWhitelist(Arrays.asList("lower", "count"));
+		constraints.setMaxRows(100);
+		
+		BoundQuery bound = sanitser.parameterise(
+				"select u.name, 'x' as tag from (select o.user_id from orders o where o.total < 8.8) s "
+						+ "join users u on u.id = s.user_id and u.type = 'it''s' "
+						+ "where lower(u.name) = 'bob' and (u.age > -18 or u.age is null) "
+						+ "group by u.name, 2 having count(*) > 1 order by 1 limit 10", constraints);
+		assertEquals("SELECT u.name, 'x' AS tag FROM (SELECT o.user_id FROM orders o WHERE o.total < ?) s "
+				+ "JOIN users u ON u.id = s.user_id AND u.type = ? "
+				+ "WHERE lower(u.name) = ? AND (u.age > ? OR u.age IS NULL) "
+				+ "GROUP BY u.name, 2 HAVING count(*) > ? ORDER BY 1 LIMIT 10", bound.getQuery());
+		assertEquals(Arrays.asList(new BigDecimal("8.8"), "it's", "bob", -18L, 1L), bound.getParameters());
+		
+		BoundQuery other = sanitser.parameterise(
+				"select u.name, 'x' as tag from (select o.user_id from orders o where o.total < 1.5) s "
+						+ "join users u on u.id = s.user_id and u.type = 'a' "
+						+ "where lower(u.name) = 'alice' and (u.age > 21 or u.age is null) "
+						+ "group by u.name, 2 having count(*) > 3 order by 1 limit 10", constraints);
+		assertEquals(bound.getQuery(), other.getQuery());
+		
+		constraints.setMaxRows(0);
+		String plain = "select u.name from users u";
+		assertEquals(plain, sanitser.parameterise(plain, constraints).getQuery());
+		assertThrows(TableNotAllowedException.class, 
+				() -> sanitser.parameterise("select p.id from payments p where p.id = 1", constraints));
+	}
+	
+	/**
+	 * Test the literals of a chain of 100k terms are replaced without 
+	 * overflowing the stack
+	 */
+	@Test
+	public void doTest_Parameterise_ShouldBindDeepChains()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("a"));
+		
+		StringBuilder sb = new StringBuilder("select a.x from a where a.x = 0");
+		for (int i = 1; i < 100_000; i++)
+			sb.append(" or a.x = ").append(i);
+		assertTrue(sanitser.check(sb.toString(), constraints).isAccepted());
+		
+		BoundQuery bound = sanitser.parameterise(sb.toString(), constraints);
+		assertTrue(bound.getQuery().startsWith("SELECT a.x FROM a WHERE a.x = ? OR a.x = ? OR "));
+		assertTrue(bound.getQuery().endsWith(" OR a.x = ?"));
+		assertEquals(100_000, bound.getParameters().size());
+		assertEquals(99_999L, bound.getParameters().get(99_999));
+	}
+	
+	/**
+	 * Test string literals are bound as strings even when compared with
+	 * columns of other types, unless they are cast
+	 */
+	@Test
+	public void doTest_Parameterise_ShouldBindStringsAsStrings()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("users"));
+		
+		BoundQuery bound = sanitser.parameterise("select u.id from users u "
+				+ "where u.uuid = '9f1c2a52-0f4e-4b8e-9d7a-1c2b3d4e5f60' and u.created > '2020-01-01'", constraints);
+		assertEquals("SELECT u.id FROM users u WHERE u.uuid = ? AND u.created > ?", bound.getQuery());
+		assertEquals(Arrays.asList("9f1c2a52-0f4e-4b8e-9d7a-1c2b3d4e5f60", "2020-01-01"), bound.getParameters());
+		
+		BoundQuery cast = sanitser.parameterise(
+				"select u.id from users u where u.created > cast('2020-01-01' as date)", constraints);
+		assertEquals("SELECT u.id FROM users u WHERE u.created > CAST(? AS date)", cast.getQuery());
+		assertEquals(Arrays.asList("2020-01-01"), cast.getParameters());
+	}
+	
+	/**
+	 * Test IN lists of literals are accepted whatever their length, while
+	 * other lists and sub-selects are walked like any other expression
+	 */
+	@Test
+	public void doTest_In_ShouldCheckLists()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("users", "orders"));
+		constraints.setFunctionWhitelist(Arrays.asList("lower"));
+		constraints.setMaxNodes(100);
+		
+		StringBuilder sb = new StringBuilder("select u.id from users u where u.id in (");
+		for (int i = 0; i < 20000; i++)
+			sb.append(i == 0 ? "" : ", ").append(i);
+		String ids = sb.append(")").toString();
+		assertTrue(sanitser.check(ids, constraints).isAccepted());
+		assertTrue(sanitser.check("select u.id from users u where u.id not in (-1, 2.5, +3)", constraints).isAccepted());
+		assertTrue(sanitser.check("select u.id from users u where lower(u.name) in ('a', 'b')", constraints).isAccepted());
+		assertTrue(sanitser.check("select u.id from users u where u.id in (1, u.parent)", constraints).isAccepted());
+		assertTrue(sanitser.check(
+				"select u.id from users u where u.id in (select o.user_id from orders o where o.total > 1)", 
+				constraints).isAccepted());
+		
+		assertEquals("B003", sanitser.check(
+				"select u.id from users u where u.id in (1, x.parent)", constraints).getCode());
+		assertEquals("B007", sanitser.check(
+				"select u.id from users u where u.id in (1, upper('a'))", constraints).getCode());
+		assertEquals("B005", sanitser.check(
+				"select u.id from users u where u.id in (select p.user_id from payments p)", constraints).getCode());
+		assertEquals("B003", sanitser.check(
+				"select u.id from users u where x.parent in (select o.user_id from orders o)", constraints).getCode());
+		
+		constraints.setMaxNodes(0);
+		BoundQuery bound = sanitser.parameterise(
+				"select u.id from users u where u.id in (1, 2) and u.name = 'a'", constraints);
+		assertEquals("SELECT u.id FROM users u WHERE u.id IN (1, 2) AND u.name = ?", bound.getQuery());
+		assertEquals(Arrays.asList("a"), bound.getParameters());
+	}
+	
+	/**
+	 * Test aliases are only visible in their own select and the sub-selects
+	 * correlated to it
+	 */
+	@Test
+	public void doTest_Scope_ShouldHideSiblingAliases()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("users", "orders"));
+		constraints.setFunctionWhitelist(Arrays.asList("count"));
+		
+		assertTrue(sanitser.check("select u.id from users u where u.id in "
+				+ "(select o.user_id from orders o where o.user_id = u.id)", constraints).isAccepted());
+		assertTrue(sanitser.check("select s.id from (select u.id from users u) s "
+				+ "join (select u.id from users u) t on s.id = t.id", constraints).isAccepted());
+		assertTrue(sanitser.check("select count(*) from (select a from users) s where a > 1", 
+				constraints).isAccepted());
+		assertTrue(sanitser.check("select n from (select count(*) as n from users) s where n > 1 order by n", 
+				constraints).isAccepted());
+		
+		assertEquals("B003", sanitser.check("select a.id from (select u.id from users u) a "
+				+ "join (select o.id from orders o where u.name = 1) b on a.id = b.id", constraints).getCode());
+		assertEquals("B003", sanitser.check("select u.id from (select o.id from orders o) s "
+				+ "join users u on o.user_id = u.id", constraints).getCode());
+		assertEquals("B003", sanitser.check("select u.id from users u "
+				+ "join (select o.id from orders o where o.user_id = u.parent) s on s.id = u.id", constraints).getCode());
+	}
+	
+	/**
+	 * Test a qualified column must belong to the table or sub-select it 
+	 * names, whatever columns are selected elsewhere in the query
+	 */
+	@Test
+	public void doTest_Scope_ShouldQualifyDerivedColumns()
+	{
+		QueryConstraints constraints = new QueryConstraints();
+		constraints.setTableWhitelist(Arrays.asList("users", "orders"));
+		
+		assertTrue(sanitser.check("select x.q from users u "
+				+ "join (select o.user_id as q from orders o) x on x.q = u.id", constraints).isAccepted());
+		assertTrue(sanitser.check("select x.total from users u "
+				+ "join (select * from orders o) x on x.user_id = u.id", constraints).isAccepted());
+		
+		assertEquals("B003", sanitser.check("select x.q from users u "
+				+ "join (select u.zz as q from orders o) x on x.q = u.id", constraints).getCode());
+		assertEquals("B003", sanitser.check("select u.id from users u where z.id = 1", constraints).getCode());
+		assertEquals("B009", sanitser.check("select x.zz from users u "
+				+ "join (select o.user_id as q from orders o) x on x.q = u.id", constraints).getCode());
+		assertEquals("B009", sanitser.check("select x.user_id from users u "
+				+ "join (select o.user_id as q from orders o) x on x.q = u.id", constraints).getCode());
+	}
+	
 	/*select p.composite, sum(cast(l.line_params->>'quantity' as numeric)) as qty, t.details->>'ship' as ship
 from transaction_line l
 join product p on p.composite = l.product